@@ -12,6 +12,8 @@ import com.google.common.base.Objects;
 import org.jdeferred.Promise;
 import org.jdeferred.impl.DeferredObject;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
@@ -31,6 +33,7 @@ public class AsyncBluetoothGatt extends BluetoothGattCallback {
     private DeferredObject<Integer, Integer, Void> readRemoteRssi;
     private HashMap<CharacteristicKey, DeferredObject<BluetoothGattCharacteristic, Integer, Void>> readCharacteristic;
     private HashMap<CharacteristicKey, DeferredObject<BluetoothGattCharacteristic, Integer, Void>> writeCharacteristic;
+    private HashMap<CharacteristicKey, ArrayDeque<DeferredObject<BluetoothGattCharacteristic, Integer, Void>>> writeWithoutResponse;
     private HashMap<CharacteristicKey, DeferredObject<Void, Void, BluetoothGattCharacteristic>> changeCharacteristic;
     private HashMap<DescriptorKey, DeferredObject<BluetoothGattDescriptor, Integer, Void>> readDescriptor;
     private HashMap<DescriptorKey, DeferredObject<BluetoothGattDescriptor, Integer, Void>> writeDescriptor;
@@ -119,6 +122,7 @@ public class AsyncBluetoothGatt extends BluetoothGattCallback {
         this.autoConnect = autoConnect;
         readCharacteristic = new HashMap<CharacteristicKey, DeferredObject<BluetoothGattCharacteristic, Integer, Void>>();
         writeCharacteristic = new HashMap<CharacteristicKey, DeferredObject<BluetoothGattCharacteristic, Integer, Void>>();
+        writeWithoutResponse = new HashMap<CharacteristicKey, ArrayDeque<DeferredObject<BluetoothGattCharacteristic, Integer, Void>>>();
         readDescriptor = new HashMap<DescriptorKey, DeferredObject<BluetoothGattDescriptor, Integer, Void>>();
         writeDescriptor = new HashMap<DescriptorKey, DeferredObject<BluetoothGattDescriptor, Integer, Void>>();
         changeCharacteristic = new HashMap<CharacteristicKey, DeferredObject<Void, Void, BluetoothGattCharacteristic>>();
@@ -139,6 +143,18 @@ public class AsyncBluetoothGatt extends BluetoothGattCallback {
         readRemoteRssi = null;
         readCharacteristic.clear();
         writeCharacteristic.clear();
+        // Writes without response still queued won't be reported by the new connection, fail them
+        // so their callers don't wait forever.
+        List<DeferredObject<BluetoothGattCharacteristic, Integer, Void>> unsent = new ArrayList<DeferredObject<BluetoothGattCharacteristic, Integer, Void>>();
+        synchronized (writeWithoutResponse) {
+            for (ArrayDeque<DeferredObject<BluetoothGattCharacteristic, Integer, Void>> pending : writeWithoutResponse.values()) {
+                unsent.addAll(pending);
+            }
+            writeWithoutResponse.clear();
+        }
+        for (DeferredObject<BluetoothGattCharacteristic, Integer, Void> deferred : unsent) {
+            deferred.reject(null);
+        }
         changeCharacteristic.clear();
         readDescriptor.clear();
         writeDescriptor.clear();
@@ -246,11 +262,21 @@ public class AsyncBluetoothGatt extends BluetoothGattCallback {
         }
     }
 
-    // Close the device.
+    // Close the device and release its GATT client.  Does nothing if connect never got a GATT, and
+    // connecting again afterwards opens a new one.
     public void close() {
-        disconnect();
-        gatt.close();
+        if (gatt == null) {
+            return;
+        }
+        // Close before resolving disconnect, its callbacks may close again.
+        BluetoothGatt closed = gatt;
         gatt = null;
+        connect = null;
+        closed.disconnect();
+        closed.close();
+        if (disconnect != null && disconnect.isPending()) {
+            disconnect.resolve(null);
+        }
     }
 
     // Get service with associated UUID.
@@ -295,20 +321,50 @@ public class AsyncBluetoothGatt extends BluetoothGattCallback {
         return deferred.promise();
     }
 
-    // Write characteristic and return promise for its completion.
+    // Write characteristic and return promise for its completion.  Writes with the
+    // WRITE_TYPE_NO_RESPONSE write type can be pipelined, each one gets its own promise and they
+    // complete in order as the stack reports them sent.  The promise is rejected immediately if the
+    // stack refused the write, e.g. because its buffers are full.
     public Promise<BluetoothGattCharacteristic, Integer, Void> writeCharacteristic(BluetoothGattCharacteristic characteristic) {
         checkConnected();
+        if (characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            return writeWithoutResponse(characteristic);
+        }
         // If there's already a request in flight, return the current promise for results.
         DeferredObject<BluetoothGattCharacteristic, Integer, Void> deferred = writeCharacteristic.get(new CharacteristicKey(characteristic));
         if (deferred != null && deferred.isPending()) {
             return deferred.promise();
         }
-        // Read descriptor and return a promise for the results.
+        // Write characteristic and return a promise for the results.  The deferred is stored
+        // before starting the write so a fast write callback can't arrive before it exists.
         deferred = new DeferredObject<BluetoothGattCharacteristic, Integer, Void>();
+        writeCharacteristic.put(new CharacteristicKey(characteristic), deferred);
         if (!gatt.writeCharacteristic(characteristic)) {
             deferred.reject(null);
         }
-        writeCharacteristic.put(new CharacteristicKey(characteristic), deferred);
+        return deferred.promise();
+    }
+
+    private Promise<BluetoothGattCharacteristic, Integer, Void> writeWithoutResponse(BluetoothGattCharacteristic characteristic) {
+        DeferredObject<BluetoothGattCharacteristic, Integer, Void> deferred = new DeferredObject<BluetoothGattCharacteristic, Integer, Void>();
+        boolean started;
+        synchronized (writeWithoutResponse) {
+            CharacteristicKey key = new CharacteristicKey(characteristic);
+            ArrayDeque<DeferredObject<BluetoothGattCharacteristic, Integer, Void>> pending = writeWithoutResponse.get(key);
+            if (pending == null) {
+                pending = new ArrayDeque<DeferredObject<BluetoothGattCharacteristic, Integer, Void>>();
+                writeWithoutResponse.put(key, pending);
+            }
+            // Queue the deferred before starting the write so a fast write callback finds it.
+            pending.add(deferred);
+            started = gatt.writeCharacteristic(characteristic);
+            if (!started) {
+                pending.removeLast();
+            }
+        }
+        if (!started) {
+            deferred.reject(null);
+        }
         return deferred.promise();
     }
 
@@ -455,7 +511,17 @@ public class AsyncBluetoothGatt extends BluetoothGattCallback {
     @Override
     public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
         super.onCharacteristicRead(gatt, characteristic, status);
-        DeferredObject<BluetoothGattCharacteristic, Integer, Void> deferred = writeCharacteristic.get(new CharacteristicKey(characteristic));
+        // Complete the oldest pipelined write without response first, if there is one.
+        DeferredObject<BluetoothGattCharacteristic, Integer, Void> deferred = null;
+        synchronized (writeWithoutResponse) {
+            ArrayDeque<DeferredObject<BluetoothGattCharacteristic, Integer, Void>> pending = writeWithoutResponse.get(new CharacteristicKey(characteristic));
+            if (pending != null) {
+                deferred = pending.poll();
+            }
+        }
+        if (deferred == null) {
+            deferred = writeCharacteristic.get(new CharacteristicKey(characteristic));
+        }
         if (deferred != null) {
             // Resolve or reject the deferred based on success or failure of the characteristic write.
             if (status == BluetoothGatt.GATT_SUCCESS) {
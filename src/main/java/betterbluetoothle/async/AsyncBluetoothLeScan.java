@@ -12,10 +12,21 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 
+import betterbluetoothle.scan.Beacon;
+import betterbluetoothle.scan.BeaconDecoder;
+import betterbluetoothle.scan.ScanAggregator;
+import betterbluetoothle.scan.ScanBatcher;
+import betterbluetoothle.scan.ScanCaptureWriter;
+
 public class AsyncBluetoothLeScan implements BluetoothAdapter.LeScanCallback {
 
+    // Bits of the Bluetooth base UUID 00000000-0000-1000-8000-00805f9b34fb around a 16-bit UUID,
+    // as parseUUIDs builds it.
+    private static final long BASE_UUID_MSB = 0x1000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
     // Store result of scan for returning in a promise.
-    public class ScanResult {
+    public static class ScanResult {
         public final BluetoothDevice device;
         public final int rssi;
         public final byte[] bytes;
@@ -30,77 +41,191 @@ public class AsyncBluetoothLeScan implements BluetoothAdapter.LeScanCallback {
         //  http://stackoverflow.com/questions/18019161/startlescan-with-128-bit-uuids-doesnt-work-on-native-android-ble-implementation
         // This is a useful workaround to manually parse advertisement data.
         public List<UUID> parseUUIDs() {
-            List<UUID> uuids = new ArrayList<UUID>();
+            return AsyncBluetoothLeScan.parseUUIDs(bytes);
+        }
+    }
+
+    // Parse the service UUIDs from advertisement data.
+    public static List<UUID> parseUUIDs(byte[] bytes) {
+        List<UUID> uuids = new ArrayList<UUID>();
 
-            int offset = 0;
-            while (offset < (bytes.length - 2)) {
-                int len = bytes[offset++];
-                if (len == 0)
+        int offset = 0;
+        while (offset < (bytes.length - 2)) {
+            int len = bytes[offset++];
+            if (len == 0)
+                break;
+
+            int type = bytes[offset++];
+            switch (type) {
+                case 0x02: // Partial list of 16-bit UUIDs
+                case 0x03: // Complete list of 16-bit UUIDs
+                    while (len > 1) {
+                        int uuid16 = bytes[offset++];
+                        uuid16 += (bytes[offset++] << 8);
+                        len -= 2;
+                        uuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", uuid16)));
+                    }
                     break;
+                case 0x06:// Partial list of 128-bit UUIDs
+                case 0x07:// Complete list of 128-bit UUIDs
+                    // Loop through the advertised 128-bit UUID's.
+                    while (len >= 16) {
+                        try {
+                            // Wrap the advertised bits and order them.
+                            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset++, 16).order(ByteOrder.LITTLE_ENDIAN);
+                            long mostSignificantBit = buffer.getLong();
+                            long leastSignificantBit = buffer.getLong();
+                            uuids.add(new UUID(leastSignificantBit, mostSignificantBit));
+                        } catch (IndexOutOfBoundsException e) {
+                            // Defensive programming.
+                            //Log.e(LOG_TAG, e.toString());
+                            continue;
+                        } finally {
+                            // Move the offset to read the next uuid.
+                            offset += 15;
+                            len -= 16;
+                        }
+                    }
+                    break;
+                default:
+                    offset += (len - 1);
+                    break;
+            }
+        }
+        return uuids;
+    }
+
+    // Return true if the advertisement data includes any of the filter's service UUIDs.
+    public static boolean matches(byte[] bytes, UUID[] filter) {
+        List<UUID> serviceUUIDs = parseUUIDs(bytes);
+        for (UUID uuid : filter) {
+            if (serviceUUIDs.contains(uuid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Same as matches for the advertisement data in length bytes from offset, reading the UUIDs
+    // the way parseUUIDs does but comparing them in place without allocating.
+    public static boolean matches(byte[] bytes, int offset, int length, UUID[] filter) {
+        int end = offset + length;
+        while (offset < end - 2) {
+            int len = bytes[offset++];
+            if (len <= 0)
+                break;
 
-                int type = bytes[offset++];
-                switch (type) {
-                    case 0x02: // Partial list of 16-bit UUIDs
-                    case 0x03: // Complete list of 16-bit UUIDs
-                        while (len > 1) {
-                            int uuid16 = bytes[offset++];
-                            uuid16 += (bytes[offset++] << 8);
-                            len -= 2;
-                            uuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", uuid16)));
+            int type = bytes[offset++];
+            switch (type) {
+                case 0x02: // Partial list of 16-bit UUIDs
+                case 0x03: // Complete list of 16-bit UUIDs
+                    while (len > 1) {
+                        if (offset + 2 > end) {
+                            return false;
                         }
-                        break;
-                    case 0x06:// Partial list of 128-bit UUIDs
-                    case 0x07:// Complete list of 128-bit UUIDs
-                        // Loop through the advertised 128-bit UUID's.
-                        while (len >= 16) {
-                            try {
-                                // Wrap the advertised bits and order them.
-                                ByteBuffer buffer = ByteBuffer.wrap(bytes, offset++, 16).order(ByteOrder.LITTLE_ENDIAN);
-                                long mostSignificantBit = buffer.getLong();
-                                long leastSignificantBit = buffer.getLong();
-                                uuids.add(new UUID(leastSignificantBit, mostSignificantBit));
-                            } catch (IndexOutOfBoundsException e) {
-                                // Defensive programming.
-                                //Log.e(LOG_TAG, e.toString());
-                                continue;
-                            } finally {
-                                // Move the offset to read the next uuid.
-                                offset += 15;
-                                len -= 16;
-                            }
+                        int uuid16 = bytes[offset++];
+                        uuid16 += (bytes[offset++] << 8);
+                        len -= 2;
+                        if (contains(filter, ((uuid16 & 0xFFFFFFFFL) << 32) | BASE_UUID_MSB, BASE_UUID_LSB)) {
+                            return true;
                         }
-                        break;
-                    default:
-                        offset += (len - 1);
-                        break;
-                }
+                    }
+                    break;
+                case 0x06:// Partial list of 128-bit UUIDs
+                case 0x07:// Complete list of 128-bit UUIDs
+                    while (len >= 16) {
+                        // Little endian, least significant half first.
+                        if (offset + 16 <= end && contains(filter, getLongLE(bytes, offset + 8), getLongLE(bytes, offset))) {
+                            return true;
+                        }
+                        offset += 16;
+                        len -= 16;
+                    }
+                    break;
+                default:
+                    offset += (len - 1);
+                    break;
             }
-            return uuids;
         }
+        return false;
+    }
+
+    private static boolean contains(UUID[] filter, long mostSignificantBits, long leastSignificantBits) {
+        for (UUID uuid : filter) {
+            if (uuid.getMostSignificantBits() == mostSignificantBits && uuid.getLeastSignificantBits() == leastSignificantBits) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getLongLE(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; --i) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
     }
 
     private BluetoothAdapter adapter;
-    private DeferredObject<Void, Void, ScanResult> scan;
-    private UUID[] filter;
+    // Set by start on the caller's thread and read by onLeScan on the binder thread.
+    private volatile DeferredObject<Void, Void, ScanResult> scan;
+    private volatile UUID[] filter;
+    private ScanAggregator aggregator;
+    private ScanBatcher batcher;
+    private ScanCaptureWriter capture;
+    private volatile DeferredObject<Void, Void, Beacon> beaconScan;
+    private int beaconTypes;
+    private final Beacon beacon = new Beacon();
 
     public AsyncBluetoothLeScan(BluetoothAdapter adapter) {
         this.adapter = adapter;
     }
 
+    // Aggregate repeated advertisements from the same device so only first sightings, payload
+    // changes, and periodic updates are notified (or null to notify every advertisement).  The
+    // aggregator keeps its table across scans, call its clear method to forget seen devices.
+    public void setAggregator(ScanAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    public ScanAggregator getAggregator() {
+        return aggregator;
+    }
+
+    // Deliver results in batches through the batcher instead of one progress notification per
+    // result (or null to notify every result).  Any partial batch is flushed when the scan stops.
+    public void setBatcher(ScanBatcher batcher) {
+        this.batcher = batcher;
+    }
+
+    public ScanBatcher getBatcher() {
+        return batcher;
+    }
+
+    // Append every raw advertisement received while scanning, before any filtering, to a capture
+    // file (or null to stop capturing).  The caller owns the writer and must close it.
+    public void setCapture(ScanCaptureWriter capture) {
+        this.capture = capture;
+    }
+
+    public ScanCaptureWriter getCapture() {
+        return capture;
+    }
+
     // Start scanning for the specified UUIDs (or null for no filtering).  The returned promise will
     // notify of discovered devices through its progress notification.
     public Promise<Void, Void, ScanResult> start(UUID[] uuid) {
-        if (scan != null && scan.isPending()) {
-            scan.resolve(null);
-        }
-        scan = new DeferredObject<Void, Void, ScanResult>();
+        resolvePending();
+        DeferredObject<Void, Void, ScanResult> started = new DeferredObject<Void, Void, ScanResult>();
         filter = uuid;
+        scan = started;
         // Note the startLeScan overload that takes a list of UUIDs to filter is NOT used because
         // it is broken with custom UUID values.
         if (!adapter.startLeScan(this)) {
-            scan.reject(null);
+            started.reject(null);
         }
-        return scan.promise();
+        return started.promise();
     }
 
     // Helpful overrides for no filter or a single filter.
@@ -113,33 +238,92 @@ public class AsyncBluetoothLeScan implements BluetoothAdapter.LeScanCallback {
         return start(new UUID[] { uuid });
     }
 
+    // Start scanning for beacons of the selected types (see the Beacon TYPE_ constants).  Beacon
+    // layouts are recognised at fixed offsets so other advertisements are dropped without the
+    // general UUID parsing.  The returned promise will notify of decoded beacons through its
+    // progress notification, using one Beacon holder which is reused for every notification.
+    public Promise<Void, Void, Beacon> startBeacons(int types) {
+        resolvePending();
+        DeferredObject<Void, Void, Beacon> started = new DeferredObject<Void, Void, Beacon>();
+        beaconTypes = types;
+        beaconScan = started;
+        if (!adapter.startLeScan(this)) {
+            started.reject(null);
+        }
+        return started.promise();
+    }
+
     // Stop the in progress scan.
     public void stop() {
         adapter.stopLeScan(this);
-        if (scan != null && scan.isPending()) {
-            scan.resolve(null);
+        if (batcher != null) {
+            batcher.flush();
+        }
+        resolvePending();
+    }
+
+    // Finish the promises of the previous scan.
+    private void resolvePending() {
+        resolve(scan);
+        resolve(beaconScan);
+    }
+
+    // Resolve a scan promise unless it already finished.  The check and the resolve happen under
+    // the promise's lock so they can't race with a result being notified.
+    private static void resolve(DeferredObject<Void, Void, ?> deferred) {
+        if (deferred == null) {
+            return;
+        }
+        synchronized (deferred) {
+            if (deferred.isPending()) {
+                deferred.resolve(null);
+            }
         }
     }
 
     @Override
     public void onLeScan(BluetoothDevice bluetoothDevice, int i, byte[] bytes) {
+        // Read the promises once, stop may replace or finish them on another thread.
+        DeferredObject<Void, Void, Beacon> beaconScan = this.beaconScan;
+        DeferredObject<Void, Void, ScanResult> scan = this.scan;
+        if (beaconScan != null && beaconScan.isPending()) {
+            if (capture != null) {
+                capture.append(System.currentTimeMillis(), bluetoothDevice == null ? null : bluetoothDevice.getAddress(), i, bytes);
+            }
+            // Notify beacon deferred if the advertisement is a selected beacon type.
+            if (BeaconDecoder.decode(bluetoothDevice, i, bytes, beaconTypes, beacon)) {
+                synchronized (beaconScan) {
+                    if (beaconScan.isPending()) {
+                        beaconScan.notify(beacon);
+                    }
+                }
+            }
+            return;
+        }
         // Notify deferred if scan is in progress.
         if (scan != null && scan.isPending()) {
-            ScanResult result = new ScanResult(bluetoothDevice, i, bytes);
-            if (filter == null) {
-                // No filtering, notify of the new result.
-                scan.notify(result);
+            if (capture != null) {
+                capture.append(System.currentTimeMillis(), bluetoothDevice == null ? null : bluetoothDevice.getAddress(), i, bytes);
+            }
+            // Manually filter service UUIDs if filtering is enabled (workaround for bug in 4.3/4.4)
+            if (filter != null && !matches(bytes, filter)) {
+                return;
+            }
+            // Drop repeated advertisements the aggregator has already reported.
+            if (aggregator != null && !aggregator.update(bluetoothDevice, i, bytes)) {
+                return;
+            }
+            if (batcher != null) {
+                // Batches hold the raw values, no need to allocate a result.
+                batcher.add(bluetoothDevice, i, bytes);
             }
             else {
-                // Manually filter service UUIDs if filtering is enabled (workaround for bug in 4.3/4.4)
-                List<UUID> serviceUUIDs = result.parseUUIDs();
-                for (UUID uuid : filter) {
-                    if (serviceUUIDs.contains(uuid)) {
-                        scan.notify(result);
-                        return;
+                synchronized (scan) {
+                    if (scan.isPending()) {
+                        scan.notify(new ScanResult(bluetoothDevice, i, bytes));
                     }
                 }
             }
         }
     }
-}
\ No newline at end of file
+}
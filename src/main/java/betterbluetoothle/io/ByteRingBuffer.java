@@ -0,0 +1,283 @@
+package betterbluetoothle.io;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+// Growable circular buffer of primitive bytes.  Data is copied in and out in bulk with
+// System.arraycopy (at most two copies per call for the wrapped around halves), and the buffer
+// grows by doubling until it reaches its maximum capacity.  What happens to data which doesn't fit
+// is decided by the overflow policy.  Not thread safe, callers synchronize access.
+public class ByteRingBuffer {
+
+    // What to do with written data which doesn't fit in the maximum capacity.
+    public enum OverflowPolicy {
+        // Discard the oldest buffered bytes to make room for the new bytes.
+        DROP_OLDEST,
+        // Keep the buffered bytes and discard the new bytes which don't fit.
+        DROP_NEWEST,
+        // Throw a BufferOverflowException and store nothing.
+        FAIL
+    }
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int UNLIMITED = Integer.MAX_VALUE - 8;
+
+    private byte[] buffer;
+    private int head;
+    private int size;
+    private int maxCapacity;
+    private OverflowPolicy policy;
+    private long dropped;
+
+    public ByteRingBuffer(int initialCapacity, int maxCapacity, OverflowPolicy policy) {
+        if (initialCapacity <= 0 || maxCapacity < initialCapacity) {
+            throw new IllegalArgumentException("Invalid buffer capacity.");
+        }
+        this.buffer = new byte[initialCapacity];
+        this.maxCapacity = maxCapacity;
+        this.policy = policy;
+    }
+
+    // Create an unlimited buffer.
+    public ByteRingBuffer() {
+        this(DEFAULT_CAPACITY, UNLIMITED, OverflowPolicy.FAIL);
+    }
+
+    // Change the maximum capacity and overflow policy.  If more data is buffered than the new
+    // maximum the excess is handled by the overflow policy (FAIL keeps it and throws).
+    public void setLimit(int maxCapacity, OverflowPolicy policy) {
+        if (maxCapacity <= 0) {
+            throw new IllegalArgumentException("Maximum capacity must be positive.");
+        }
+        if (size > maxCapacity) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    dropped += size - maxCapacity;
+                    skip(size - maxCapacity);
+                    break;
+                case DROP_NEWEST:
+                    dropped += size - maxCapacity;
+                    size = maxCapacity;
+                    break;
+                default:
+                    throw new BufferOverflowException();
+            }
+        }
+        this.maxCapacity = maxCapacity;
+        this.policy = policy;
+        if (buffer.length > maxCapacity) {
+            resize(Math.max(size, 1));
+        }
+    }
+
+    public int getMaxCapacity() {
+        return maxCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    // Number of bytes discarded by the overflow policy.
+    public long getDropped() {
+        return dropped;
+    }
+
+    // Number of buffered bytes.
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Currently allocated capacity.
+    public int capacity() {
+        return buffer.length;
+    }
+
+    // Append bytes and return the number of bytes stored, which is less than length only when
+    // the DROP_NEWEST policy discarded some of them.
+    public int write(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        if (size + length > maxCapacity) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    if (length >= maxCapacity) {
+                        // Only the newest maxCapacity bytes survive.
+                        dropped += size + length - maxCapacity;
+                        offset += length - maxCapacity;
+                        length = maxCapacity;
+                        head = 0;
+                        size = 0;
+                    }
+                    else {
+                        int excess = size + length - maxCapacity;
+                        dropped += excess;
+                        skip(excess);
+                    }
+                    break;
+                case DROP_NEWEST:
+                    dropped += size + length - maxCapacity;
+                    length = maxCapacity - size;
+                    break;
+                default:
+                    throw new BufferOverflowException();
+            }
+        }
+        ensureCapacity(size + length);
+        int tail = index(size);
+        int first = Math.min(length, buffer.length - tail);
+        System.arraycopy(data, offset, buffer, tail, first);
+        if (first < length) {
+            System.arraycopy(data, offset + first, buffer, 0, length - first);
+        }
+        size += length;
+        return length;
+    }
+
+    public int write(byte[] data) {
+        return write(data, 0, data.length);
+    }
+
+    // Append the remaining bytes of the buffer, with the same overflow handling as write(byte[]).
+    // Bytes the DROP_NEWEST policy discarded are left in the source buffer.
+    public int write(ByteBuffer src) {
+        if (src.hasArray()) {
+            int count = write(src.array(), src.arrayOffset() + src.position(), src.remaining());
+            src.position(src.position() + count);
+            return count;
+        }
+        int length = src.remaining();
+        if (size + length > maxCapacity) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    if (length > maxCapacity) {
+                        dropped += length - maxCapacity;
+                        src.position(src.position() + length - maxCapacity);
+                        length = maxCapacity;
+                    }
+                    dropped += size + length - maxCapacity;
+                    skip(size + length - maxCapacity);
+                    break;
+                case DROP_NEWEST:
+                    dropped += size + length - maxCapacity;
+                    length = maxCapacity - size;
+                    break;
+                default:
+                    throw new BufferOverflowException();
+            }
+        }
+        ensureCapacity(size + length);
+        int tail = index(size);
+        int first = Math.min(length, buffer.length - tail);
+        src.get(buffer, tail, first);
+        if (first < length) {
+            src.get(buffer, 0, length - first);
+        }
+        size += length;
+        return length;
+    }
+
+    // Remove up to the remaining space of the buffer and return the number of bytes read.
+    public int read(ByteBuffer dst) {
+        int count = Math.min(dst.remaining(), size);
+        if (count == 0) {
+            return 0;
+        }
+        int first = Math.min(count, buffer.length - head);
+        dst.put(buffer, head, first);
+        if (first < count) {
+            dst.put(buffer, 0, count - first);
+        }
+        skip(count);
+        return count;
+    }
+
+    // Remove up to length bytes into the array and return the number of bytes read.
+    public int read(byte[] data, int offset, int length) {
+        int count = peek(0, data, offset, length);
+        skip(count);
+        return count;
+    }
+
+    // Remove and return up to count bytes.
+    public byte[] read(int count) {
+        byte[] result = new byte[Math.max(0, Math.min(count, size))];
+        read(result, 0, result.length);
+        return result;
+    }
+
+    // Remove and return all buffered bytes.
+    public byte[] readAll() {
+        return read(size);
+    }
+
+    // Copy up to length bytes starting index bytes from the head without removing them, and
+    // return the number of bytes copied.
+    public int peek(int index, byte[] data, int offset, int length) {
+        int count = Math.max(0, Math.min(length, size - index));
+        if (count == 0) {
+            return 0;
+        }
+        int start = index(index);
+        int first = Math.min(count, buffer.length - start);
+        System.arraycopy(buffer, start, data, offset, first);
+        if (first < count) {
+            System.arraycopy(buffer, 0, data, offset + first, count - first);
+        }
+        return count;
+    }
+
+    // Get the byte index bytes from the head.
+    public byte get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " is out of range for buffer of size " + size + ".");
+        }
+        return buffer[index(index)];
+    }
+
+    // Discard up to count bytes from the head and return the number discarded.
+    public int skip(int count) {
+        count = Math.max(0, Math.min(count, size));
+        head = index(count);
+        size -= count;
+        if (size == 0) {
+            head = 0;
+        }
+        return count;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    // Position in the backing array of the byte index bytes from the head.
+    private int index(int index) {
+        int position = head + index;
+        return position >= buffer.length ? position - buffer.length : position;
+    }
+
+    private void ensureCapacity(int required) {
+        if (required <= buffer.length) {
+            return;
+        }
+        int capacity = buffer.length;
+        while (capacity < required) {
+            capacity = capacity > maxCapacity / 2 ? maxCapacity : capacity * 2;
+        }
+        resize(capacity);
+    }
+
+    // Move the buffered bytes to a new array of the specified capacity, unwrapping them.
+    private void resize(int capacity) {
+        byte[] resized = new byte[capacity];
+        peek(0, resized, 0, size);
+        buffer = resized;
+        head = 0;
+    }
+}
@@ -0,0 +1,104 @@
+package betterbluetoothle.io;
+
+// COBS (consistent overhead byte stuffing) frames ended by a 0 byte.  The encoded frame contains no
+// 0 bytes: it is a series of blocks, each a code byte n followed by n - 1 data bytes, where every
+// block but a 255 code block implies a 0 after its data (the final implied 0 isn't part of the
+// frame).  Consecutive 0 bytes between frames are ignored.
+public class CobsFramer extends Framer {
+
+    // Data bytes left in the current block, 0 when the next byte is a code byte.
+    private int blockRemaining;
+    // Whether the current block is followed by an implied 0.
+    private boolean zeroAfterBlock;
+    private boolean started;
+
+    public CobsFramer(int maxFrameLength) {
+        super(maxFrameLength);
+    }
+
+    public CobsFramer() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    @Override
+    public void feed(byte[] data, int offset, int length, Listener listener) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            byte b = data[i];
+            if (b == 0) {
+                i++;
+                if (blockRemaining > 0) {
+                    // Frame ended in the middle of a block.
+                    error();
+                }
+                else if (started) {
+                    emit(listener);
+                }
+                blockRemaining = 0;
+                started = false;
+                continue;
+            }
+            if (blockRemaining == 0) {
+                // Code byte, the implied 0 of the previous block goes before this block's data.
+                if (started && zeroAfterBlock) {
+                    append((byte)0);
+                }
+                int code = b & 0xFF;
+                blockRemaining = code - 1;
+                zeroAfterBlock = code != 0xFF;
+                started = true;
+                i++;
+                continue;
+            }
+            // Copy the run of data bytes of this block up to the next 0.
+            int run = i;
+            int limit = Math.min(end, i + blockRemaining);
+            while (run < limit && data[run] != 0) {
+                run++;
+            }
+            append(data, i, run - i);
+            blockRemaining -= run - i;
+            i = run;
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        blockRemaining = 0;
+        started = false;
+    }
+
+    @Override
+    public byte[] encode(byte[] data, int offset, int length) {
+        byte[] encoded = new byte[length + length / 254 + 2];
+        int code = 0;
+        int codeIndex = 0;
+        int j = 1;
+        for (int i = offset; i < offset + length; ++i) {
+            if (data[i] == 0) {
+                encoded[codeIndex] = (byte)(code + 1);
+                codeIndex = j++;
+                code = 0;
+            }
+            else {
+                encoded[j++] = data[i];
+                code++;
+                if (code == 254) {
+                    encoded[codeIndex] = (byte)0xFF;
+                    codeIndex = j++;
+                    code = 0;
+                }
+            }
+        }
+        encoded[codeIndex] = (byte)(code + 1);
+        encoded[j++] = 0;
+        if (j == encoded.length) {
+            return encoded;
+        }
+        byte[] result = new byte[j];
+        System.arraycopy(encoded, 0, result, 0, j);
+        return result;
+    }
+}
@@ -0,0 +1,51 @@
+package betterbluetoothle.io;
+
+// Frames ended by a delimiter byte, e.g. newline terminated text lines.  The delimiter isn't part
+// of the frame.
+public class DelimiterFramer extends Framer {
+
+    private final byte delimiter;
+    private final boolean stripCarriageReturn;
+
+    public DelimiterFramer(byte delimiter, int maxFrameLength) {
+        this(delimiter, false, maxFrameLength);
+    }
+
+    private DelimiterFramer(byte delimiter, boolean stripCarriageReturn, int maxFrameLength) {
+        super(maxFrameLength);
+        this.delimiter = delimiter;
+        this.stripCarriageReturn = stripCarriageReturn;
+    }
+
+    // Lines ended by \n or \r\n.
+    public static DelimiterFramer lines(int maxFrameLength) {
+        return new DelimiterFramer((byte)'\n', true, maxFrameLength);
+    }
+
+    public static DelimiterFramer lines() {
+        return lines(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    @Override
+    public void feed(byte[] data, int offset, int length, Listener listener) {
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; ++i) {
+            if (data[i] == delimiter) {
+                append(data, start, i - start);
+                boolean carriageReturn = stripCarriageReturn && length() > 0 && frameByte(length() - 1) == '\r';
+                emit(listener, carriageReturn ? 1 : 0);
+                start = i + 1;
+            }
+        }
+        append(data, start, end - start);
+    }
+
+    @Override
+    public byte[] encode(byte[] data, int offset, int length) {
+        byte[] encoded = new byte[length + 1];
+        System.arraycopy(data, offset, encoded, 0, length);
+        encoded[length] = delimiter;
+        return encoded;
+    }
+}
@@ -0,0 +1,141 @@
+package betterbluetoothle.io;
+
+// Incremental decoder which splits a byte stream into frames.  Bytes are fed as they arrive and
+// each byte is looked at once, with any partial frame kept in a reused buffer until the rest of it
+// arrives, so the cost is proportional to the new bytes no matter how much data came before.
+// Complete frames are passed to the listener as a slice of that buffer, which is only valid during
+// the call; copy it to keep it.  Frames longer than the maximum frame length and malformed frames
+// are dropped and counted as errors, and the framer resynchronizes on the next frame.
+// Not thread safe.
+public abstract class Framer {
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 4096;
+
+    // Receives complete frames.
+    public interface Listener {
+        public void onFrame(byte[] frame, int offset, int length);
+    }
+
+    private final int maxFrameLength;
+    private byte[] frame = new byte[64];
+    private int length;
+    private boolean overflow;
+    private long errors;
+    private long frames;
+
+    protected Framer(int maxFrameLength) {
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("Maximum frame length must be positive.");
+        }
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    // Decode bytes, calling the listener for every frame they complete.
+    public abstract void feed(byte[] data, int offset, int length, Listener listener);
+
+    public void feed(byte[] data, Listener listener) {
+        feed(data, 0, data.length, listener);
+    }
+
+    // Encode a frame for sending.
+    public abstract byte[] encode(byte[] data, int offset, int length);
+
+    public byte[] encode(byte[] data) {
+        return encode(data, 0, data.length);
+    }
+
+    // Drop any partial frame.
+    public void reset() {
+        length = 0;
+        overflow = false;
+    }
+
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    // Number of frames decoded.
+    public long getFrames() {
+        return frames;
+    }
+
+    // Number of frames dropped because they were too long or malformed.
+    public long getErrors() {
+        return errors;
+    }
+
+    // Number of bytes of the partial frame.
+    protected int length() {
+        return length;
+    }
+
+    // Get a byte of the partial frame.
+    protected byte frameByte(int index) {
+        return frame[index];
+    }
+
+    // Append a byte to the partial frame.  Returns false once the frame is too long, after which
+    // the frame is dropped when it ends.
+    protected boolean append(byte b) {
+        if (overflow) {
+            return false;
+        }
+        if (length == maxFrameLength) {
+            overflow = true;
+            return false;
+        }
+        if (length == frame.length) {
+            byte[] grown = new byte[Math.min(frame.length * 2, maxFrameLength)];
+            System.arraycopy(frame, 0, grown, 0, length);
+            frame = grown;
+        }
+        frame[length++] = b;
+        return true;
+    }
+
+    // Append a run of bytes to the partial frame.
+    protected boolean append(byte[] data, int offset, int count) {
+        if (overflow) {
+            return false;
+        }
+        if (length + count > maxFrameLength) {
+            overflow = true;
+            return false;
+        }
+        if (length + count > frame.length) {
+            int capacity = frame.length;
+            while (capacity < length + count) {
+                capacity *= 2;
+            }
+            byte[] grown = new byte[Math.min(capacity, maxFrameLength)];
+            System.arraycopy(frame, 0, grown, 0, length);
+            frame = grown;
+        }
+        System.arraycopy(data, offset, frame, length, count);
+        length += count;
+        return true;
+    }
+
+    // Pass the partial frame (minus trim bytes at its end) to the listener, or count an error if
+    // it overflowed, and start a new frame.
+    protected void emit(Listener listener, int trim) {
+        if (overflow) {
+            errors++;
+        }
+        else {
+            frames++;
+            listener.onFrame(frame, 0, Math.max(0, length - trim));
+        }
+        reset();
+    }
+
+    protected void emit(Listener listener) {
+        emit(listener, 0);
+    }
+
+    // Drop the partial frame as malformed.
+    protected void error() {
+        errors++;
+        reset();
+    }
+}
@@ -0,0 +1,111 @@
+package betterbluetoothle.io;
+
+import java.util.Arrays;
+
+// Streaming decompressor for the output of LZEncoder.  Tokens can be split anywhere between calls,
+// the decoder keeps its place and a history of the last window bytes.  The window must be at
+// least the encoder's.  Matches reaching back further than the data decoded so far are dropped
+// and counted as errors.  Not thread safe.
+public class LZDecoder {
+
+    private final byte[] history;
+    private int historyPosition;
+    private long decoded;
+    // Literal bytes left in the current run.
+    private int literals;
+    // Length of the match whose distance is being read, and the distance bytes read so far.
+    private int matchLength;
+    private int distanceBytes;
+    private int distance;
+    // Reused for the decompressed output.
+    private byte[] out = new byte[64];
+    private int outLength;
+    private long bytesIn;
+    private long errors;
+
+    public LZDecoder(int window) {
+        if (window <= 0 || window > LZEncoder.MAX_WINDOW) {
+            throw new IllegalArgumentException("Window must be between 1 and " + LZEncoder.MAX_WINDOW + " bytes.");
+        }
+        history = new byte[window];
+    }
+
+    public LZDecoder() {
+        this(LZEncoder.DEFAULT_WINDOW);
+    }
+
+    // Decompress bytes and return the data they complete.
+    public byte[] decompress(byte[] data, int offset, int length) {
+        outLength = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            int b = data[i] & 0xFF;
+            if (literals > 0) {
+                put((byte)b);
+                literals--;
+            }
+            else if (matchLength > 0) {
+                if (distanceBytes == 0) {
+                    distance = b << 8;
+                    distanceBytes = 1;
+                    continue;
+                }
+                copy((distance | b) + 1);
+                matchLength = 0;
+                distanceBytes = 0;
+            }
+            else if (b < 0x80) {
+                literals = b + 1;
+            }
+            else {
+                matchLength = (b & 0x7F) + LZEncoder.MIN_MATCH;
+            }
+        }
+        bytesIn += length;
+        return Arrays.copyOf(out, outLength);
+    }
+
+    public byte[] decompress(byte[] data) {
+        return decompress(data, 0, data.length);
+    }
+
+    // Number of compressed bytes decompressed.
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    // Number of decompressed bytes produced.
+    public long getBytesOut() {
+        return decoded;
+    }
+
+    // Decompressed bytes per compressed byte in.
+    public double getRatio() {
+        return bytesIn == 0 ? 1 : (double)decoded / bytesIn;
+    }
+
+    // Number of matches dropped because they pointed outside the history.
+    public long getErrors() {
+        return errors;
+    }
+
+    private void copy(int distance) {
+        if (distance > history.length || distance > decoded) {
+            errors++;
+            return;
+        }
+        for (int i = 0; i < matchLength; ++i) {
+            int from = historyPosition - distance;
+            put(history[from < 0 ? from + history.length : from]);
+        }
+    }
+
+    private void put(byte b) {
+        if (outLength == out.length) {
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        out[outLength++] = b;
+        history[historyPosition] = b;
+        historyPosition = historyPosition + 1 == history.length ? 0 : historyPosition + 1;
+        decoded++;
+    }
+}
@@ -0,0 +1,147 @@
+package betterbluetoothle.io;
+
+import java.util.Arrays;
+
+// Streaming LZ77 compressor with a small window, light enough to decode on a microcontroller.
+// Compressed data is a series of byte aligned tokens:
+//
+//   0x00-0x7F  literal run, followed by control + 1 literal bytes
+//   0x80-0xFF  match of (control & 0x7F) + 4 bytes, followed by the distance - 1 (2 bytes, big endian)
+//
+// A match copies bytes starting distance bytes back in the decompressed stream.  Matches can
+// reach back into data from earlier calls, so small writes of similar data like telemetry records
+// compress well, and since every call produces whole tokens the output can be split into packets
+// anywhere.  Not thread safe.
+public class LZEncoder {
+
+    public static final int MIN_MATCH = 4;
+    public static final int MAX_MATCH = MIN_MATCH + 0x7F;
+    public static final int MAX_LITERALS = 0x80;
+    public static final int DEFAULT_WINDOW = 1024;
+    public static final int MAX_WINDOW = 65536;
+
+    private static final int HASH_BITS = 12;
+
+    private final int window;
+    // Stream position of the last occurrence of each hash of 4 bytes.
+    private final long[] table = new long[1 << HASH_BITS];
+    // History of up to window bytes followed by the data being compressed.
+    private byte[] buffer;
+    private int historyLength;
+    // Stream position of buffer[0].
+    private long bufferStart;
+    // Reused for the compressed output.
+    private byte[] out = new byte[64];
+    private int outLength;
+    private long bytesIn;
+    private long bytesOut;
+
+    public LZEncoder(int window) {
+        if (window <= 0 || window > MAX_WINDOW) {
+            throw new IllegalArgumentException("Window must be between 1 and " + MAX_WINDOW + " bytes.");
+        }
+        this.window = window;
+        this.buffer = new byte[window * 2];
+        Arrays.fill(table, -1);
+    }
+
+    public LZEncoder() {
+        this(DEFAULT_WINDOW);
+    }
+
+    public int getWindow() {
+        return window;
+    }
+
+    // Compress bytes, which may refer back to earlier data.
+    public byte[] compress(byte[] data, int offset, int length) {
+        int end = historyLength + length;
+        if (end > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(end, buffer.length * 2));
+        }
+        System.arraycopy(data, offset, buffer, historyLength, length);
+        outLength = 0;
+        int literalStart = historyLength;
+        int i = historyLength;
+        while (i + MIN_MATCH <= end) {
+            int hash = hash(i);
+            long candidate = table[hash];
+            table[hash] = bufferStart + i;
+            int matchLength = 0;
+            int distance = (int)(bufferStart + i - candidate);
+            if (candidate >= bufferStart && distance <= window) {
+                int start = (int)(candidate - bufferStart);
+                int max = Math.min(MAX_MATCH, end - i);
+                while (matchLength < max && buffer[start + matchLength] == buffer[i + matchLength]) {
+                    matchLength++;
+                }
+            }
+            if (matchLength < MIN_MATCH) {
+                i++;
+                continue;
+            }
+            literals(literalStart, i);
+            ensureOut(3);
+            out[outLength++] = (byte)(0x80 | (matchLength - MIN_MATCH));
+            out[outLength++] = (byte)((distance - 1) >> 8);
+            out[outLength++] = (byte)(distance - 1);
+            // Remember the positions inside the match for later matches.
+            for (int j = i + 1; j < i + matchLength && j + MIN_MATCH <= end; ++j) {
+                table[hash(j)] = bufferStart + j;
+            }
+            i += matchLength;
+            literalStart = i;
+        }
+        literals(literalStart, end);
+        // Keep the end of the data as history for the next call.
+        int keep = Math.min(window, end);
+        System.arraycopy(buffer, end - keep, buffer, 0, keep);
+        bufferStart += end - keep;
+        historyLength = keep;
+        bytesIn += length;
+        bytesOut += outLength;
+        return Arrays.copyOf(out, outLength);
+    }
+
+    public byte[] compress(byte[] data) {
+        return compress(data, 0, data.length);
+    }
+
+    // Number of bytes compressed.
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    // Number of compressed bytes produced.
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    // Bytes in per compressed byte out, i.e. the speedup of the link.
+    public double getRatio() {
+        return bytesOut == 0 ? 1 : (double)bytesIn / bytesOut;
+    }
+
+    private int hash(int index) {
+        int value = (buffer[index] & 0xFF) | (buffer[index + 1] & 0xFF) << 8 | (buffer[index + 2] & 0xFF) << 16 | (buffer[index + 3] & 0xFF) << 24;
+        return (value * 0x9E3779B1) >>> (32 - HASH_BITS);
+    }
+
+    // Emit buffer[start, end) as literal runs.
+    private void literals(int start, int end) {
+        while (start < end) {
+            int count = Math.min(MAX_LITERALS, end - start);
+            ensureOut(count + 1);
+            out[outLength++] = (byte)(count - 1);
+            System.arraycopy(buffer, start, out, outLength, count);
+            outLength += count;
+            start += count;
+        }
+    }
+
+    private void ensureOut(int count) {
+        if (outLength + count > out.length) {
+            out = Arrays.copyOf(out, Math.max(outLength + count, out.length * 2));
+        }
+    }
+}
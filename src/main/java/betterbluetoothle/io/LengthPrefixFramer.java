@@ -0,0 +1,139 @@
+package betterbluetoothle.io;
+
+import java.nio.ByteOrder;
+
+// Frames preceded by their length, either as a fixed size 1, 2 or 4 byte unsigned integer or as
+// an unsigned LEB128 varint (7 bits per byte, least significant group first, high bit set on all
+// but the last byte).  The length prefix isn't part of the frame.  A frame longer than the maximum
+// is skipped over by its length.
+public class LengthPrefixFramer extends Framer {
+
+    private static final int VARINT = 0;
+
+    private final int headerSize;
+    private final boolean bigEndian;
+    // Header parsing state.
+    private int headerRead;
+    private long header;
+    // Bytes of the frame body still to come, or -1 while reading the header.
+    private long remaining = -1;
+
+    // Fixed size length prefix of headerSize (1, 2 or 4) bytes.
+    public LengthPrefixFramer(int headerSize, ByteOrder order, int maxFrameLength) {
+        super(maxFrameLength);
+        if (headerSize != 1 && headerSize != 2 && headerSize != 4) {
+            throw new IllegalArgumentException("Length prefix must be 1, 2 or 4 bytes.");
+        }
+        this.headerSize = headerSize;
+        this.bigEndian = order == ByteOrder.BIG_ENDIAN;
+    }
+
+    private LengthPrefixFramer(int maxFrameLength) {
+        super(maxFrameLength);
+        this.headerSize = VARINT;
+        this.bigEndian = false;
+    }
+
+    // Varint length prefix.
+    public static LengthPrefixFramer varint(int maxFrameLength) {
+        return new LengthPrefixFramer(maxFrameLength);
+    }
+
+    @Override
+    public void feed(byte[] data, int offset, int length, Listener listener) {
+        int end = offset + length;
+        int i = offset;
+        while (i < end) {
+            if (remaining < 0) {
+                if (!readHeader(data[i++])) {
+                    continue;
+                }
+                if (remaining == 0) {
+                    emit(listener);
+                    remaining = -1;
+                }
+                continue;
+            }
+            int count = (int)Math.min(remaining, end - i);
+            append(data, i, count);
+            i += count;
+            remaining -= count;
+            if (remaining == 0) {
+                emit(listener);
+                remaining = -1;
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        headerRead = 0;
+        header = 0;
+        remaining = -1;
+    }
+
+    @Override
+    public byte[] encode(byte[] data, int offset, int length) {
+        int size = headerSize == VARINT ? varintSize(length) : headerSize;
+        if (headerSize != VARINT && headerSize < 4 && length >= 1 << (8 * headerSize)) {
+            throw new IllegalArgumentException("Frame is too long for the length prefix.");
+        }
+        byte[] encoded = new byte[size + length];
+        if (headerSize == VARINT) {
+            int value = length;
+            for (int i = 0; i < size; ++i) {
+                encoded[i] = (byte)((value & 0x7F) | (i < size - 1 ? 0x80 : 0));
+                value >>>= 7;
+            }
+        }
+        else {
+            for (int i = 0; i < size; ++i) {
+                int shift = 8 * (bigEndian ? size - 1 - i : i);
+                encoded[i] = (byte)(length >>> shift);
+            }
+        }
+        System.arraycopy(data, offset, encoded, size, length);
+        return encoded;
+    }
+
+    // Add a header byte and return true once the header is complete, which sets remaining.
+    private boolean readHeader(byte b) {
+        if (headerSize == VARINT) {
+            if (headerRead == 5) {
+                // Longer than any valid 32 bit length, drop it and start over.
+                error();
+                return false;
+            }
+            header |= (long)(b & 0x7F) << (7 * headerRead);
+            headerRead++;
+            if ((b & 0x80) != 0) {
+                return false;
+            }
+        }
+        else {
+            if (bigEndian) {
+                header = (header << 8) | (b & 0xFF);
+            }
+            else {
+                header |= (long)(b & 0xFF) << (8 * headerRead);
+            }
+            headerRead++;
+            if (headerRead < headerSize) {
+                return false;
+            }
+        }
+        remaining = header;
+        headerRead = 0;
+        header = 0;
+        return true;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0) {
+            size++;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,94 @@
+package betterbluetoothle.io;
+
+// SLIP (RFC 1055) frames.  Frames end with END (0xC0), and END and ESC (0xDB) bytes inside a frame
+// are escaped as ESC ESC_END (0xDB 0xDC) and ESC ESC_ESC (0xDB 0xDD).  Empty frames, e.g. from the
+// END some senders put before every frame, are ignored.
+public class SlipFramer extends Framer {
+
+    public static final byte END = (byte)0xC0;
+    public static final byte ESC = (byte)0xDB;
+    public static final byte ESC_END = (byte)0xDC;
+    public static final byte ESC_ESC = (byte)0xDD;
+
+    private boolean escaped;
+    private boolean invalid;
+
+    public SlipFramer(int maxFrameLength) {
+        super(maxFrameLength);
+    }
+
+    public SlipFramer() {
+        this(DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    @Override
+    public void feed(byte[] data, int offset, int length, Listener listener) {
+        int end = offset + length;
+        for (int i = offset; i < end; ++i) {
+            byte b = data[i];
+            if (b == END) {
+                if (invalid || escaped) {
+                    error();
+                }
+                else if (length() > 0) {
+                    emit(listener);
+                }
+                escaped = false;
+                invalid = false;
+            }
+            else if (escaped) {
+                escaped = false;
+                if (b == ESC_END) {
+                    append(END);
+                }
+                else if (b == ESC_ESC) {
+                    append(ESC);
+                }
+                else {
+                    // Bad escape, drop the frame when it ends.
+                    invalid = true;
+                }
+            }
+            else if (b == ESC) {
+                escaped = true;
+            }
+            else {
+                append(b);
+            }
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        escaped = false;
+        invalid = false;
+    }
+
+    @Override
+    public byte[] encode(byte[] data, int offset, int length) {
+        int size = length + 1;
+        for (int i = offset; i < offset + length; ++i) {
+            if (data[i] == END || data[i] == ESC) {
+                size++;
+            }
+        }
+        byte[] encoded = new byte[size];
+        int j = 0;
+        for (int i = offset; i < offset + length; ++i) {
+            if (data[i] == END) {
+                encoded[j++] = ESC;
+                encoded[j++] = ESC_END;
+            }
+            else if (data[i] == ESC) {
+                encoded[j++] = ESC;
+                encoded[j++] = ESC_ESC;
+            }
+            else {
+                encoded[j++] = data[i];
+            }
+        }
+        encoded[j] = END;
+        return encoded;
+    }
+}
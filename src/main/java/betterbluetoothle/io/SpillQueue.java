@@ -0,0 +1,285 @@
+package betterbluetoothle.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+// First in first out byte queue stored in memory mapped file segments, for data which doesn't fit
+// in memory.  Bytes are appended to the last segment and read from the first, and a segment which
+// has been read completely is recycled for new data instead of creating another file.  Reading and
+// writing are plain memory copies, the OS pages the data to and from the file.  Not thread safe,
+// callers synchronize access.
+public class SpillQueue {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    // Empty segments kept for reuse, the files of others are deleted.
+    private static final int MAX_FREE_SEGMENTS = 2;
+
+    // File segment, length is the number of bytes written to it.
+    private static class Segment {
+        final File file;
+        final MappedByteBuffer buffer;
+        int length;
+
+        Segment(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+    // Segments holding data, oldest first.
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+    private final ArrayDeque<Segment> free = new ArrayDeque<Segment>();
+    // Read position in the first segment.
+    private int headPosition;
+    private long size;
+    private int created;
+
+    public SpillQueue(File directory, int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be positive.");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+    }
+
+    public SpillQueue(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    // Number of queued bytes.
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Number of segment files created so far.
+    public int getSegmentsCreated() {
+        return created;
+    }
+
+    // Append bytes, creating a segment file when the last one is full, and return the number of
+    // bytes written.  If a segment file can't be created after some bytes were written the count
+    // is short, the exception is only thrown when nothing could be written.
+    public int write(byte[] data, int offset, int length) throws IOException {
+        int written = 0;
+        while (written < length) {
+            Segment tail = segments.peekLast();
+            if (tail == null || tail.length == segmentSize) {
+                try {
+                    tail = newSegment();
+                }
+                catch (IOException e) {
+                    if (written == 0) {
+                        throw e;
+                    }
+                    return written;
+                }
+                segments.add(tail);
+            }
+            int count = Math.min(length - written, segmentSize - tail.length);
+            tail.buffer.position(tail.length);
+            tail.buffer.put(data, offset + written, count);
+            tail.length += count;
+            size += count;
+            written += count;
+        }
+        return written;
+    }
+
+    // Remove up to length bytes into the array and return the number of bytes read.
+    public int read(byte[] data, int offset, int length) {
+        int count = 0;
+        while (count < length && size > 0) {
+            Segment head = segments.peek();
+            int n = Math.min(length - count, head.length - headPosition);
+            head.buffer.position(headPosition);
+            head.buffer.get(data, offset + count, n);
+            count += n;
+            advance(n);
+        }
+        return count;
+    }
+
+    // Copy up to length bytes starting index bytes from the head without removing them, and
+    // return the number of bytes copied.
+    public int peek(long index, byte[] data, int offset, int length) {
+        int count = 0;
+        long position = headPosition + index;
+        for (Segment segment : segments) {
+            if (count == length) {
+                break;
+            }
+            if (position >= segment.length) {
+                position -= segment.length;
+                continue;
+            }
+            int n = (int)Math.min(length - count, segment.length - position);
+            segment.buffer.position((int)position);
+            segment.buffer.get(data, offset + count, n);
+            count += n;
+            position = 0;
+        }
+        return count;
+    }
+
+    // Get the byte index bytes from the head.
+    public byte get(long index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " is out of range for queue of size " + size + ".");
+        }
+        long position = headPosition + index;
+        for (Segment segment : segments) {
+            if (position < segment.length) {
+                return segment.buffer.get((int)position);
+            }
+            position -= segment.length;
+        }
+        throw new IllegalStateException("Queue segments are inconsistent.");
+    }
+
+    // Discard up to count bytes from the head and return the number discarded.
+    public long skip(long count) {
+        long skipped = 0;
+        while (skipped < count && size > 0) {
+            int n = (int)Math.min(count - skipped, segments.peek().length - headPosition);
+            skipped += n;
+            advance(n);
+        }
+        return skipped;
+    }
+
+    // Discard up to count bytes from the tail, the newest bytes, and return the number discarded.
+    public long truncate(long count) {
+        long truncated = 0;
+        while (truncated < count && size > 0) {
+            Segment tail = segments.peekLast();
+            int start = segments.size() == 1 ? headPosition : 0;
+            int n = (int)Math.min(count - truncated, tail.length - start);
+            tail.length -= n;
+            size -= n;
+            truncated += n;
+            if (tail.length > start) {
+                continue;
+            }
+            if (segments.size() == 1) {
+                headPosition = 0;
+                tail.length = 0;
+            }
+            else {
+                recycle(segments.pollLast());
+            }
+        }
+        return truncated;
+    }
+
+    // Discard every queued byte, keeping the segment files for reuse.
+    public void clear() {
+        while (!segments.isEmpty()) {
+            recycle(segments.poll());
+        }
+        headPosition = 0;
+        size = 0;
+    }
+
+    // Discard every queued byte, unmap the segments and delete their files.
+    public void close() {
+        clear();
+        while (!free.isEmpty()) {
+            delete(free.poll());
+        }
+    }
+
+    // Move the read position forward by count bytes within the first segment.
+    private void advance(int count) {
+        headPosition += count;
+        size -= count;
+        Segment head = segments.peek();
+        if (headPosition < head.length) {
+            return;
+        }
+        headPosition = 0;
+        if (segments.size() == 1 && head.length < segmentSize) {
+            // Only segment and not full, keep appending to it from the start.
+            head.length = 0;
+        }
+        else {
+            recycle(segments.poll());
+        }
+    }
+
+    private void recycle(Segment segment) {
+        segment.length = 0;
+        if (free.size() < MAX_FREE_SEGMENTS) {
+            free.add(segment);
+        }
+        else {
+            delete(segment);
+        }
+    }
+
+    private static void delete(Segment segment) {
+        unmap(segment.buffer);
+        segment.file.delete();
+    }
+
+    // Release a mapping now instead of whenever its buffer is garbage collected, which keeps the
+    // memory and, on some systems, the file in use.  There's no public API for it, so use the
+    // platform's hidden one: free on Android, the cleaner on the JVM.  The buffer must not be used
+    // afterwards.  If neither works the mapping is left to the garbage collector.
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method free = buffer.getClass().getMethod("free");
+            free.setAccessible(true);
+            free.invoke(buffer);
+            return;
+        }
+        catch (Exception e) {
+            // Not Android.
+        }
+        try {
+            Method cleaner = buffer.getClass().getMethod("cleaner");
+            cleaner.setAccessible(true);
+            Object instance = cleaner.invoke(buffer);
+            if (instance != null) {
+                Method clean = instance.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(instance);
+            }
+        }
+        catch (Exception e) {
+            // Left to the garbage collector.
+        }
+    }
+
+    private Segment newSegment() throws IOException {
+        if (!free.isEmpty()) {
+            return free.poll();
+        }
+        File file = File.createTempFile("spill", ".seg", directory);
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        try {
+            access.setLength(segmentSize);
+            MappedByteBuffer buffer = access.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            created++;
+            return new Segment(file, buffer);
+        }
+        catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        finally {
+            // The mapping stays valid after the file is closed.
+            access.close();
+        }
+    }
+}
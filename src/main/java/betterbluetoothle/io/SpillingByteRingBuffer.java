@@ -0,0 +1,270 @@
+package betterbluetoothle.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+// Ring buffer which keeps at most a memory limit of bytes in memory and spills the rest to a
+// SpillQueue on disk, so a stalled reader can't exhaust the heap.  Once anything is spilled new
+// bytes go to disk too, keeping them in order, and reads move spilled bytes back into memory as
+// it empties.  The size and every read, peek and get cover the spilled bytes as well.  The limit
+// caps the total of memory and disk, unlimited by default, and the overflow policy applies to it
+// as for any ring buffer.  Bytes which couldn't be written to disk are dropped and counted.  Not
+// thread safe, callers synchronize access.
+public class SpillingByteRingBuffer extends ByteRingBuffer {
+
+    private final int memoryLimit;
+    private final SpillQueue spill;
+    private byte[] scratch;
+    private long spilled;
+    // Bytes dropped by the total limit or lost to disk errors.
+    private long lost;
+    private long maxSize = Long.MAX_VALUE;
+    private OverflowPolicy policy = OverflowPolicy.FAIL;
+
+    public SpillingByteRingBuffer(int memoryLimit, SpillQueue spill) {
+        super(Math.min(DEFAULT_CAPACITY, memoryLimit), memoryLimit, OverflowPolicy.DROP_NEWEST);
+        this.memoryLimit = memoryLimit;
+        this.spill = spill;
+    }
+
+    public SpillingByteRingBuffer(int memoryLimit, File directory) {
+        this(memoryLimit, new SpillQueue(directory));
+    }
+
+    // Limit the total bytes in memory and on disk.  The memory limit still decides what is spilled.
+    @Override
+    public void setLimit(int maxCapacity, OverflowPolicy policy) {
+        if (maxCapacity <= 0) {
+            throw new IllegalArgumentException("Maximum capacity must be positive.");
+        }
+        long excess = totalSize() - maxCapacity;
+        if (excess > 0) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    lost += excess;
+                    skip((int)excess);
+                    break;
+                case DROP_NEWEST:
+                    truncate(excess);
+                    break;
+                default:
+                    throw new BufferOverflowException();
+            }
+        }
+        this.maxSize = maxCapacity;
+        this.policy = policy;
+    }
+
+    @Override
+    public int getMaxCapacity() {
+        return (int)Math.min(UNLIMITED, maxSize);
+    }
+
+    @Override
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    public int getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    // Number of bytes in memory.
+    public int getMemorySize() {
+        return super.size();
+    }
+
+    // Number of bytes on disk.
+    public long getSpillSize() {
+        return spill.size();
+    }
+
+    // Total number of bytes ever spilled to disk.
+    public long getSpilled() {
+        return spilled;
+    }
+
+    @Override
+    public long getDropped() {
+        return super.getDropped() + lost;
+    }
+
+    @Override
+    public int size() {
+        return (int)Math.min(UNLIMITED, totalSize());
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return super.isEmpty() && spill.isEmpty();
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        long total = totalSize();
+        if (total + length > maxSize) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    if (length >= maxSize) {
+                        // Only the newest maxSize bytes survive.
+                        lost += total + length - maxSize;
+                        offset += length - (int)maxSize;
+                        length = (int)maxSize;
+                        clear();
+                    }
+                    else {
+                        int excess = (int)(total + length - maxSize);
+                        lost += excess;
+                        skip(excess);
+                    }
+                    break;
+                case DROP_NEWEST:
+                    lost += total + length - maxSize;
+                    length = (int)Math.max(0, maxSize - total);
+                    if (length == 0) {
+                        return 0;
+                    }
+                    break;
+                default:
+                    throw new BufferOverflowException();
+            }
+        }
+        int count = 0;
+        if (spill.isEmpty()) {
+            count = Math.min(length, memoryLimit - super.size());
+            super.write(data, offset, count);
+        }
+        if (count < length) {
+            int written;
+            try {
+                written = spill.write(data, offset + count, length - count);
+            }
+            catch (IOException e) {
+                written = 0;
+            }
+            spilled += written;
+            // Only the bytes which didn't make it to disk are lost.
+            lost += length - count - written;
+            count += written;
+        }
+        return count;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        if (src.hasArray()) {
+            return super.write(src);
+        }
+        byte[] data = new byte[src.remaining()];
+        src.get(data);
+        return write(data, 0, data.length);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) {
+        int count = 0;
+        while (dst.hasRemaining() && !isEmpty()) {
+            refill();
+            count += super.read(dst);
+        }
+        refill();
+        return count;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length) {
+        int count = 0;
+        while (count < length && !isEmpty()) {
+            refill();
+            count += super.read(data, offset + count, length - count);
+        }
+        refill();
+        return count;
+    }
+
+    @Override
+    public byte[] read(int count) {
+        byte[] result = new byte[Math.max(0, Math.min(count, size()))];
+        read(result, 0, result.length);
+        return result;
+    }
+
+    @Override
+    public byte[] readAll() {
+        return read(size());
+    }
+
+    @Override
+    public int peek(int index, byte[] data, int offset, int length) {
+        int memory = super.size();
+        int count = index < memory ? super.peek(index, data, offset, length) : 0;
+        if (count < length) {
+            count += spill.peek(Math.max(0, index - memory), data, offset + count, length - count);
+        }
+        return count;
+    }
+
+    @Override
+    public byte get(int index) {
+        int memory = super.size();
+        return index < memory ? super.get(index) : spill.get(index - memory);
+    }
+
+    @Override
+    public int skip(int count) {
+        int skipped = super.skip(count);
+        if (skipped < count) {
+            skipped += (int)spill.skip(count - skipped);
+        }
+        refill();
+        return skipped;
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        spill.clear();
+    }
+
+    // Drop every byte, unmap the spill files and delete them.
+    public void close() {
+        super.clear();
+        spill.close();
+    }
+
+    private long totalSize() {
+        return super.size() + spill.size();
+    }
+
+    // Discard count of the newest bytes, from disk first.
+    private void truncate(long count) {
+        lost += count;
+        count -= spill.truncate(count);
+        if (count == 0) {
+            return;
+        }
+        // Keep the oldest bytes in memory.
+        byte[] keep = super.read(super.size() - (int)count);
+        super.clear();
+        super.write(keep, 0, keep.length);
+    }
+
+    // Move spilled bytes back into memory once it is empty.
+    private void refill() {
+        if (!super.isEmpty() || spill.isEmpty()) {
+            return;
+        }
+        if (scratch == null) {
+            scratch = new byte[Math.min(memoryLimit, 8192)];
+        }
+        while (super.size() < memoryLimit && !spill.isEmpty()) {
+            int count = spill.read(scratch, 0, Math.min(scratch.length, memoryLimit - super.size()));
+            super.write(scratch, 0, count);
+        }
+    }
+}
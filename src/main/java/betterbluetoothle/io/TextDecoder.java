@@ -0,0 +1,130 @@
+package betterbluetoothle.io;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+// Streaming text decoder for received bytes.  A reused CharsetDecoder decodes bytes into a pending
+// char buffer, and a multi-byte character split across packets or reads is carried over until its
+// remaining bytes arrive instead of being decoded as garbage.  Malformed input is replaced with
+// U+FFFD.  Pending text is taken as strings or line by line, and the search for a line end picks
+// up where the last one stopped.  Not thread safe, callers synchronize access.
+public class TextDecoder {
+
+    public static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final CharsetDecoder decoder;
+    // Input bytes in write mode, holding any incomplete character between calls.
+    private final ByteBuffer bytes;
+    // Decoded chars not taken yet, in write mode.
+    private CharBuffer chars;
+    // Number of pending chars already searched for a line end.
+    private int scanned;
+
+    public TextDecoder(Charset charset, int bufferSize) {
+        if (bufferSize < 16) {
+            throw new IllegalArgumentException("Buffer size must be at least 16 bytes.");
+        }
+        decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        bytes = ByteBuffer.allocate(bufferSize);
+        chars = CharBuffer.allocate(bufferSize);
+    }
+
+    // Create a UTF-8 decoder.
+    public TextDecoder() {
+        this(UTF_8, 256);
+    }
+
+    // Decode up to count bytes from the head of the ring buffer, removing them from it.
+    public void decode(ByteRingBuffer source, int count) {
+        while (count > 0 && !source.isEmpty()) {
+            int limit = bytes.limit();
+            bytes.limit(bytes.position() + Math.min(count, bytes.remaining()));
+            count -= source.read(bytes);
+            bytes.limit(limit);
+            decodeBytes();
+        }
+    }
+
+    // Decode bytes from the array.
+    public void decode(byte[] data, int offset, int length) {
+        while (length > 0) {
+            int count = Math.min(length, bytes.remaining());
+            bytes.put(data, offset, count);
+            offset += count;
+            length -= count;
+            decodeBytes();
+        }
+    }
+
+    // Number of decoded chars waiting to be taken.
+    public int available() {
+        return chars.position();
+    }
+
+    // Number of bytes of an incomplete character waiting for the rest of its bytes.
+    public int getIncomplete() {
+        return bytes.position();
+    }
+
+    // Take all decoded chars.
+    public String take() {
+        return take(chars.position());
+    }
+
+    // Take the next line, without its \n or \r\n ending, or return null if no complete line has
+    // been decoded yet.
+    public String readLine() {
+        char[] array = chars.array();
+        int count = chars.position();
+        for (int i = scanned; i < count; ++i) {
+            if (array[i] == '\n') {
+                int end = i > 0 && array[i - 1] == '\r' ? i - 1 : i;
+                String line = new String(array, 0, end);
+                remove(i + 1);
+                return line;
+            }
+        }
+        scanned = count;
+        return null;
+    }
+
+    // Drop pending chars and any incomplete character.
+    public void reset() {
+        decoder.reset();
+        bytes.clear();
+        chars.clear();
+        scanned = 0;
+    }
+
+    private String take(int count) {
+        String result = new String(chars.array(), 0, count);
+        remove(count);
+        return result;
+    }
+
+    // Remove count chars from the start of the pending chars.
+    private void remove(int count) {
+        chars.flip();
+        chars.position(count);
+        chars.compact();
+        scanned = 0;
+    }
+
+    // Decode the input bytes, keeping a trailing incomplete character for the next call.
+    private void decodeBytes() {
+        bytes.flip();
+        while (decoder.decode(bytes, chars, false) == CoderResult.OVERFLOW) {
+            CharBuffer grown = CharBuffer.allocate(chars.capacity() * 2);
+            chars.flip();
+            grown.put(chars);
+            chars = grown;
+        }
+        bytes.compact();
+    }
+}
@@ -0,0 +1,89 @@
+package betterbluetoothle.io;
+
+// Measures a byte rate over a sliding window.  The window is split into fixed time buckets kept in
+// a ring, so recording is O(1) and doesn't allocate, and the rate covers the most recent window.
+// Thread safe.
+public class ThroughputMeter {
+
+    public static final int DEFAULT_BUCKETS = 10;
+    public static final long DEFAULT_BUCKET_MILLIS = 200;
+
+    private final long[] buckets;
+    private final long bucketMillis;
+    // Bucket number (time / bucket length) of the newest bucket.
+    private long current;
+    private long total;
+    private long start = -1;
+
+    public ThroughputMeter(int buckets, long bucketMillis) {
+        if (buckets <= 0 || bucketMillis <= 0) {
+            throw new IllegalArgumentException("Bucket count and length must be positive.");
+        }
+        this.buckets = new long[buckets];
+        this.bucketMillis = bucketMillis;
+    }
+
+    // Create a meter with a 2 second window.
+    public ThroughputMeter() {
+        this(DEFAULT_BUCKETS, DEFAULT_BUCKET_MILLIS);
+    }
+
+    // Record bytes transferred now.
+    public synchronized void record(long bytes) {
+        long time = now();
+        advance(time);
+        if (start < 0) {
+            start = time;
+        }
+        buckets[(int)(current % buckets.length)] += bytes;
+        total += bytes;
+    }
+
+    // Total bytes recorded.
+    public synchronized long getTotal() {
+        return total;
+    }
+
+    // Bytes per second over the window, or since the first record if that is more recent.
+    public synchronized double getBytesPerSecond() {
+        if (start < 0) {
+            return 0;
+        }
+        long time = now();
+        advance(time);
+        long sum = 0;
+        for (long bucket : buckets) {
+            sum += bucket;
+        }
+        // The newest bucket is only partly elapsed.
+        long window = (buckets.length - 1) * bucketMillis + time % bucketMillis;
+        window = Math.max(1, Math.min(window, time - start));
+        return sum * 1000.0 / window;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < buckets.length; ++i) {
+            buckets[i] = 0;
+        }
+        total = 0;
+        start = -1;
+    }
+
+    // Current time in milliseconds, overridden by tests.
+    protected long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // Clear the buckets which expired since the newest bucket.
+    private void advance(long time) {
+        long bucket = time / bucketMillis;
+        if (bucket <= current) {
+            return;
+        }
+        long expired = Math.min(bucket - current, buckets.length);
+        for (long i = 1; i <= expired; ++i) {
+            buckets[(int)((current + i) % buckets.length)] = 0;
+        }
+        current = bucket;
+    }
+}
@@ -0,0 +1,115 @@
+package betterbluetoothle.scan;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.UUID;
+
+// Decoded beacon advertisement.  Fields are primitives and preallocated arrays so one holder can
+// be reused for every advertisement; copy out anything which needs to be kept beyond the callback.
+// Which fields are valid depends on the type:
+//  - iBeacon and AltBeacon: UUID (AltBeacon ID 1), major and minor (AltBeacon IDs 2 and 3)
+//  - Eddystone-UID: namespace and instance
+//  - Eddystone-URL: URL
+// All types have a calibrated TX power (measured power at 1 m for iBeacon and AltBeacon, at 0 m
+// for Eddystone).
+public class Beacon {
+
+    // Beacon types, combine them with | to select several types when decoding.
+    public static final int TYPE_IBEACON = 0x01;
+    public static final int TYPE_ALTBEACON = 0x02;
+    public static final int TYPE_EDDYSTONE_UID = 0x04;
+    public static final int TYPE_EDDYSTONE_URL = 0x08;
+    public static final int TYPE_ALL = TYPE_IBEACON | TYPE_ALTBEACON | TYPE_EDDYSTONE_UID | TYPE_EDDYSTONE_URL;
+
+    // Eddystone-URL scheme prefixes and expansion codes.
+    private static final String[] URL_SCHEMES = { "http://www.", "https://www.", "http://", "https://" };
+    private static final String[] URL_EXPANSIONS = {
+            ".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+            ".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"
+    };
+
+    int type;
+    BluetoothDevice device;
+    int rssi;
+    int txPower;
+    long uuidMostSignificant;
+    long uuidLeastSignificant;
+    int major;
+    int minor;
+    int manufacturer;
+    final byte[] namespace = new byte[10];
+    final byte[] instance = new byte[6];
+    int urlScheme;
+    final byte[] url = new byte[17];
+    int urlLength;
+
+    public int getType() {
+        return type;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+
+    public int getTxPower() {
+        return txPower;
+    }
+
+    public long getUuidMostSignificantBits() {
+        return uuidMostSignificant;
+    }
+
+    public long getUuidLeastSignificantBits() {
+        return uuidLeastSignificant;
+    }
+
+    // Proximity UUID (iBeacon) or ID 1 (AltBeacon).  Allocates, compare the bits to avoid that.
+    public UUID getUuid() {
+        return new UUID(uuidMostSignificant, uuidLeastSignificant);
+    }
+
+    public int getMajor() {
+        return major;
+    }
+
+    public int getMinor() {
+        return minor;
+    }
+
+    // AltBeacon manufacturer ID.
+    public int getManufacturer() {
+        return manufacturer;
+    }
+
+    // Eddystone-UID 10 byte namespace, reused for every beacon.
+    public byte[] getNamespace() {
+        return namespace;
+    }
+
+    // Eddystone-UID 6 byte instance, reused for every beacon.
+    public byte[] getInstance() {
+        return instance;
+    }
+
+    // Expand the Eddystone-URL frame into a URL string.  Allocates, so only call it when needed.
+    public String getUrl() {
+        StringBuilder builder = new StringBuilder();
+        if (urlScheme >= 0 && urlScheme < URL_SCHEMES.length) {
+            builder.append(URL_SCHEMES[urlScheme]);
+        }
+        for (int i = 0; i < urlLength; ++i) {
+            int code = url[i] & 0xFF;
+            if (code < URL_EXPANSIONS.length) {
+                builder.append(URL_EXPANSIONS[code]);
+            }
+            else if (code > 0x20 && code < 0x7F) {
+                builder.append((char)code);
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,111 @@
+package betterbluetoothle.scan;
+
+import android.bluetooth.BluetoothDevice;
+
+// Fast path decoders for common beacon layouts.  Beacons put their frame right at the start of the
+// advertisement, optionally after a flags structure, so each layout is recognised by comparing a
+// few bytes at fixed offsets instead of walking every AD structure.
+public class BeaconDecoder {
+
+    private BeaconDecoder() {
+    }
+
+    // Decode an advertisement into the beacon holder if it matches one of the selected types.
+    // Returns false and leaves the holder unchanged if it is not a selected beacon type.
+    public static boolean decode(BluetoothDevice device, int rssi, byte[] bytes, int types, Beacon beacon) {
+        if (bytes == null || bytes.length < 3) {
+            return false;
+        }
+        // Skip the 3 byte flags structure (02 01 xx) if it is present.
+        int offset = (bytes[0] == 0x02 && bytes[1] == 0x01) ? 3 : 0;
+        boolean decoded = ((types & Beacon.TYPE_IBEACON) != 0 && decodeIBeacon(bytes, offset, beacon)) ||
+                          ((types & Beacon.TYPE_ALTBEACON) != 0 && decodeAltBeacon(bytes, offset, beacon)) ||
+                          ((types & (Beacon.TYPE_EDDYSTONE_UID | Beacon.TYPE_EDDYSTONE_URL)) != 0 && decodeEddystone(bytes, offset, types, beacon));
+        if (decoded) {
+            beacon.device = device;
+            beacon.rssi = rssi;
+        }
+        return decoded;
+    }
+
+    // iBeacon: 1A FF 4C 00 02 15 <UUID 16> <major 2> <minor 2> <tx power 1>
+    private static boolean decodeIBeacon(byte[] bytes, int offset, Beacon beacon) {
+        if (bytes.length < offset + 27 ||
+            bytes[offset] != 0x1A || bytes[offset + 1] != (byte)0xFF ||
+            bytes[offset + 2] != 0x4C || bytes[offset + 3] != 0x00 ||
+            bytes[offset + 4] != 0x02 || bytes[offset + 5] != 0x15) {
+            return false;
+        }
+        beacon.type = Beacon.TYPE_IBEACON;
+        beacon.uuidMostSignificant = getLong(bytes, offset + 6);
+        beacon.uuidLeastSignificant = getLong(bytes, offset + 14);
+        beacon.major = getUnsignedShort(bytes, offset + 22);
+        beacon.minor = getUnsignedShort(bytes, offset + 24);
+        beacon.txPower = bytes[offset + 26];
+        beacon.manufacturer = 0x004C;
+        return true;
+    }
+
+    // AltBeacon: 1B FF <manufacturer 2> BE AC <ID 1 16> <ID 2 2> <ID 3 2> <reference RSSI 1> <reserved 1>
+    private static boolean decodeAltBeacon(byte[] bytes, int offset, Beacon beacon) {
+        if (bytes.length < offset + 28 ||
+            bytes[offset] != 0x1B || bytes[offset + 1] != (byte)0xFF ||
+            bytes[offset + 4] != (byte)0xBE || bytes[offset + 5] != (byte)0xAC) {
+            return false;
+        }
+        beacon.type = Beacon.TYPE_ALTBEACON;
+        beacon.manufacturer = (bytes[offset + 2] & 0xFF) | ((bytes[offset + 3] & 0xFF) << 8);
+        beacon.uuidMostSignificant = getLong(bytes, offset + 6);
+        beacon.uuidLeastSignificant = getLong(bytes, offset + 14);
+        beacon.major = getUnsignedShort(bytes, offset + 22);
+        beacon.minor = getUnsignedShort(bytes, offset + 24);
+        beacon.txPower = bytes[offset + 26];
+        return true;
+    }
+
+    // Eddystone: 03 03 AA FE <length> 16 AA FE <frame type> <tx power> <frame data>
+    private static boolean decodeEddystone(byte[] bytes, int offset, int types, Beacon beacon) {
+        if (bytes.length < offset + 10 ||
+            bytes[offset] != 0x03 || bytes[offset + 1] != 0x03 ||
+            bytes[offset + 2] != (byte)0xAA || bytes[offset + 3] != (byte)0xFE ||
+            bytes[offset + 5] != 0x16 ||
+            bytes[offset + 6] != (byte)0xAA || bytes[offset + 7] != (byte)0xFE) {
+            return false;
+        }
+        int end = offset + 5 + (bytes[offset + 4] & 0xFF);
+        if (end > bytes.length) {
+            return false;
+        }
+        int frame = offset + 8;
+        int frameType = bytes[frame] & 0xFF;
+        if (frameType == 0x00 && (types & Beacon.TYPE_EDDYSTONE_UID) != 0 && end >= frame + 18) {
+            beacon.type = Beacon.TYPE_EDDYSTONE_UID;
+            beacon.txPower = bytes[frame + 1];
+            System.arraycopy(bytes, frame + 2, beacon.namespace, 0, 10);
+            System.arraycopy(bytes, frame + 12, beacon.instance, 0, 6);
+            return true;
+        }
+        if (frameType == 0x10 && (types & Beacon.TYPE_EDDYSTONE_URL) != 0 && end >= frame + 3) {
+            int length = Math.min(end - (frame + 3), beacon.url.length);
+            beacon.type = Beacon.TYPE_EDDYSTONE_URL;
+            beacon.txPower = bytes[frame + 1];
+            beacon.urlScheme = bytes[frame + 2] & 0xFF;
+            System.arraycopy(bytes, frame + 3, beacon.url, 0, length);
+            beacon.urlLength = length;
+            return true;
+        }
+        return false;
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; ++i) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int getUnsignedShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+}
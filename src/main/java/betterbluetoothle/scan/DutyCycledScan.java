@@ -0,0 +1,215 @@
+package betterbluetoothle.scan;
+
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+import org.jdeferred.impl.DeferredObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.async.AsyncBluetoothLeScan.ScanResult;
+
+// Scan in windows separated by idle intervals instead of scanning continuously.  The idle interval
+// is stretched when a window finds no new devices and shrunk when new devices appear, between the
+// configured minimum and maximum.  Results from every window are notified through one promise that
+// stays pending until stop is called.
+public class DutyCycledScan {
+
+    // Number of device addresses remembered to decide if a device is new.
+    private static final int MAX_SEEN = 1024;
+
+    private final AsyncBluetoothLeScan scanner;
+    private final ScheduledExecutorService executor;
+    private final long window;
+    private long minInterval;
+    private long maxInterval;
+    private long interval;
+    private UUID[] filter;
+    private DeferredObject<Void, Void, ScanResult> scan;
+    private ScheduledFuture<?> next;
+    private boolean scanning;
+    // Incremented by every window so late callbacks of an earlier window are ignored.
+    private int windows;
+    private int newDevices;
+    private final LinkedHashMap<String, Boolean> seen;
+
+    // Create a scheduler which scans for window milliseconds then idles for interval milliseconds.
+    // Scan windows are started and stopped on the specified executor.
+    public DutyCycledScan(AsyncBluetoothLeScan scanner, ScheduledExecutorService executor, long window, long interval) {
+        if (window <= 0 || interval < 0) {
+            throw new IllegalArgumentException("Scan window must be positive and interval must not be negative.");
+        }
+        this.scanner = scanner;
+        this.executor = executor;
+        this.window = window;
+        this.interval = interval;
+        this.minInterval = interval;
+        this.maxInterval = interval;
+        this.seen = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_SEEN;
+            }
+        };
+    }
+
+    // Let the idle interval adapt to discovery activity.  The interval doubles (up to maxInterval)
+    // after a window with no new devices and halves (down to minInterval) after a window with new
+    // devices.
+    public synchronized void setAdaptive(long minInterval, long maxInterval) {
+        if (minInterval < 0 || maxInterval < minInterval) {
+            throw new IllegalArgumentException("Invalid adaptive interval range.");
+        }
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        interval = Math.max(minInterval, Math.min(maxInterval, interval));
+    }
+
+    // Current idle interval between scan windows in milliseconds.
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    // Start duty cycled scanning for the specified UUIDs (or null for no filtering).  The returned
+    // promise will notify of discovered devices through its progress notification.
+    public Promise<Void, Void, ScanResult> start(UUID[] uuid) {
+        stop();
+        DeferredObject<Void, Void, ScanResult> started = new DeferredObject<Void, Void, ScanResult>();
+        synchronized (this) {
+            scan = started;
+            filter = uuid;
+        }
+        startWindow();
+        return started.promise();
+    }
+
+    // Helpful overrides for no filter or a single filter.
+
+    public Promise<Void, Void, ScanResult> start() {
+        return start((UUID[])null);
+    }
+
+    public Promise<Void, Void, ScanResult> start(UUID uuid) {
+        return start(new UUID[] { uuid });
+    }
+
+    // Stop scanning and resolve the scan promise.
+    public void stop() {
+        boolean wasScanning;
+        DeferredObject<Void, Void, ScanResult> finished;
+        synchronized (this) {
+            if (next != null) {
+                next.cancel(false);
+                next = null;
+            }
+            wasScanning = scanning;
+            scanning = false;
+            finished = scan;
+            scan = null;
+        }
+        // The scanner and the promises take their own locks, which scan results already hold when
+        // they reach found, so they are only called without holding this one.
+        if (wasScanning) {
+            scanner.stop();
+        }
+        if (finished != null) {
+            synchronized (finished) {
+                if (finished.isPending()) {
+                    finished.resolve(null);
+                }
+            }
+        }
+    }
+
+    // Begin a scan window and schedule its end.
+    private void startWindow() {
+        final int current;
+        UUID[] uuids;
+        synchronized (this) {
+            if (scan == null) {
+                return;
+            }
+            newDevices = 0;
+            scanning = true;
+            current = ++windows;
+            uuids = filter;
+        }
+        // A window which fails to start counts as a window with no new devices, so a busy or
+        // disabled adapter is retried at an increasingly relaxed rate.
+        scanner.start(uuids).progress(new ProgressCallback<ScanResult>() {
+            @Override
+            public void onProgress(ScanResult progress) {
+                found(progress);
+            }
+        });
+        boolean stopped;
+        synchronized (this) {
+            stopped = !scanning;
+            if (!stopped && windows == current) {
+                next = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        endWindow(current);
+                    }
+                }, window, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (stopped) {
+            // Stopped while the window was starting.
+            scanner.stop();
+        }
+    }
+
+    // End the current scan window, adapt the interval, and schedule the next window.
+    private void endWindow(int current) {
+        synchronized (this) {
+            if (!scanning || windows != current) {
+                return;
+            }
+            scanning = false;
+            if (newDevices == 0) {
+                interval = Math.min(maxInterval, Math.max(1, interval) * 2);
+            }
+            else {
+                interval = Math.max(minInterval, interval / 2);
+            }
+        }
+        scanner.stop();
+        synchronized (this) {
+            // Unless stopped or restarted meanwhile.
+            if (scan != null && !scanning && windows == current) {
+                next = executor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        startWindow();
+                    }
+                }, interval, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    // Forward a result from the current window and count it if the device is new.
+    private void found(ScanResult result) {
+        DeferredObject<Void, Void, ScanResult> current;
+        synchronized (this) {
+            if (!scanning || scan == null) {
+                return;
+            }
+            String address = result.device == null ? null : result.device.getAddress();
+            if (seen.put(address, Boolean.TRUE) == null) {
+                newDevices++;
+            }
+            current = scan;
+        }
+        synchronized (current) {
+            if (current.isPending()) {
+                current.notify(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package betterbluetoothle.scan;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.TreeSet;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan.ScanResult;
+
+// Continuously maintained ranking of devices by smoothed RSSI, strongest (nearest) first.  Each
+// advertisement updates the device's exponentially weighted moving average and its position in an
+// ordered set in O(log n), so the nearest devices can be queried at any time without sorting.
+// Optionally reports devices whose smoothed RSSI crosses a threshold.
+public class NearestDevices {
+
+    // Interface for receiving threshold crossings.  Callbacks are made from the scan thread
+    // without holding the ranking's lock.  A device above the threshold which is dropped, as stale
+    // or to make room, exits.
+    public interface Callback {
+        // Smoothed RSSI rose to or above the threshold.
+        public void entered(Entry entry);
+        // Smoothed RSSI fell below the threshold.
+        public void exited(Entry entry);
+    }
+
+    // Snapshot of a ranked device.
+    public static class Entry {
+        public final BluetoothDevice device;
+        public final String address;
+        public final double rssi;
+        public final long lastSeen;
+
+        private Entry(Node node) {
+            this.device = node.device;
+            this.address = node.address;
+            this.rssi = node.rssi;
+            this.lastSeen = node.lastSeen;
+        }
+    }
+
+    // Live state of a ranked device.  The rssi must not change while the node is in the ranking.
+    private static class Node {
+        private final String address;
+        private BluetoothDevice device;
+        private double rssi;
+        private long lastSeen;
+
+        private Node(String address) {
+            this.address = address;
+        }
+    }
+
+    // Order by smoothed RSSI descending, then address so distinct devices never compare equal.
+    private static final Comparator<Node> ORDER = new Comparator<Node>() {
+        @Override
+        public int compare(Node a, Node b) {
+            int result = Double.compare(b.rssi, a.rssi);
+            if (result != 0) {
+                return result;
+            }
+            if (a.address == null) {
+                return b.address == null ? 0 : -1;
+            }
+            return b.address == null ? 1 : a.address.compareTo(b.address);
+        }
+    };
+
+    private final double alpha;
+    private final int maxDevices;
+    private final TreeSet<Node> ranking;
+    // In access order, so the device seen longest ago comes first.
+    private final LinkedHashMap<String, Node> nodes;
+    private long maxAge;
+    private int threshold;
+    private Callback callback;
+
+    // Create a ranking which smooths RSSI with the specified weight for new samples (0 < alpha <= 1,
+    // where 1 disables smoothing) and keeps at most maxDevices devices.  When full, stale devices
+    // are dropped first, then a new device only replaces the weakest device if it is stronger.
+    public NearestDevices(double alpha, int maxDevices) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Smoothing weight must be greater than 0 and at most 1.");
+        }
+        if (maxDevices <= 0) {
+            throw new IllegalArgumentException("Maximum number of devices must be positive.");
+        }
+        this.alpha = alpha;
+        this.maxDevices = maxDevices;
+        this.ranking = new TreeSet<Node>(ORDER);
+        this.nodes = new LinkedHashMap<String, Node>(16, 0.75f, true);
+    }
+
+    // Ignore (and drop) devices which haven't been seen for maxAge milliseconds when querying or
+    // making room for a new device (0 or less to keep devices until they're removed).
+    public synchronized void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    // Report devices whose smoothed RSSI crosses the threshold (or a null callback to stop).
+    public synchronized void setThreshold(int threshold, Callback callback) {
+        this.threshold = threshold;
+        this.callback = callback;
+    }
+
+    // Feed the results of a scan promise into the ranking.
+    public void track(Promise<Void, Void, ScanResult> scan) {
+        scan.progress(new ProgressCallback<ScanResult>() {
+            @Override
+            public void onProgress(ScanResult progress) {
+                update(progress.device, progress.rssi);
+            }
+        });
+    }
+
+    // Add an RSSI sample for a device.
+    public void update(BluetoothDevice device, int rssi) {
+        if (device == null) {
+            return;
+        }
+        Callback notify;
+        List<Entry> exits = null;
+        Entry entered = null;
+        synchronized (this) {
+            notify = callback;
+            long now = now();
+            String address = device.getAddress();
+            // Moves the device to the end of the access order, as it is seen now.
+            Node node = nodes.get(address);
+            boolean wasAbove = false;
+            if (node == null) {
+                if (nodes.size() >= maxDevices && maxAge > 0) {
+                    exits = removeStale(now, exits);
+                }
+                if (nodes.size() < maxDevices || ranking.last().rssi < rssi) {
+                    if (nodes.size() >= maxDevices) {
+                        Node weakest = ranking.last();
+                        remove(weakest);
+                        exits = dropped(weakest, exits);
+                    }
+                    node = new Node(address);
+                    node.rssi = rssi;
+                    nodes.put(address, node);
+                }
+            }
+            else {
+                ranking.remove(node);
+                wasAbove = node.rssi >= threshold;
+                node.rssi = alpha * rssi + (1 - alpha) * node.rssi;
+            }
+            // No node when the new device is weaker than every device in the full ranking.
+            if (node != null) {
+                node.device = device;
+                node.lastSeen = now;
+                ranking.add(node);
+                boolean isAbove = node.rssi >= threshold;
+                if (notify != null && wasAbove != isAbove) {
+                    if (isAbove) {
+                        entered = new Entry(node);
+                    }
+                    else {
+                        exits = add(exits, new Entry(node));
+                    }
+                }
+            }
+        }
+        if (notify != null) {
+            exited(notify, exits);
+            if (entered != null) {
+                notify.entered(entered);
+            }
+        }
+    }
+
+    // Return up to n of the nearest devices, nearest first.
+    public List<Entry> top(int n) {
+        Callback notify;
+        List<Entry> exits = null;
+        List<Entry> result;
+        synchronized (this) {
+            notify = callback;
+            result = new ArrayList<Entry>(Math.min(n, ranking.size()));
+            long now = now();
+            Iterator<Node> iterator = ranking.iterator();
+            while (iterator.hasNext() && result.size() < n) {
+                Node node = iterator.next();
+                if (maxAge > 0 && now - node.lastSeen > maxAge) {
+                    // Stale device, drop it so it isn't visited again.
+                    iterator.remove();
+                    nodes.remove(node.address);
+                    exits = dropped(node, exits);
+                    continue;
+                }
+                result.add(new Entry(node));
+            }
+        }
+        if (notify != null) {
+            exited(notify, exits);
+        }
+        return result;
+    }
+
+    // Return the nearest device, or null if no devices are ranked.
+    public Entry nearest() {
+        List<Entry> result = top(1);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    // Stop ranking the device with the specified address.
+    public synchronized void remove(String address) {
+        Node node = nodes.get(address);
+        if (node != null) {
+            remove(node);
+        }
+    }
+
+    public synchronized int size() {
+        return nodes.size();
+    }
+
+    public synchronized void clear() {
+        ranking.clear();
+        nodes.clear();
+    }
+
+    private void remove(Node node) {
+        ranking.remove(node);
+        nodes.remove(node.address);
+    }
+
+    // Drop the devices which haven't been seen for the maximum age.  They are the first in access
+    // order, so this stops at the first device seen recently enough.  Must hold the lock.
+    private List<Entry> removeStale(long now, List<Entry> exits) {
+        Iterator<Node> iterator = nodes.values().iterator();
+        while (iterator.hasNext()) {
+            Node node = iterator.next();
+            if (now - node.lastSeen <= maxAge) {
+                break;
+            }
+            iterator.remove();
+            ranking.remove(node);
+            exits = dropped(node, exits);
+        }
+        return exits;
+    }
+
+    // Add an exit for a dropped device if it was above the threshold.  Must hold the lock.
+    private List<Entry> dropped(Node node, List<Entry> exits) {
+        if (callback == null || node.rssi < threshold) {
+            return exits;
+        }
+        return add(exits, new Entry(node));
+    }
+
+    private static List<Entry> add(List<Entry> entries, Entry entry) {
+        if (entries == null) {
+            entries = new ArrayList<Entry>(1);
+        }
+        entries.add(entry);
+        return entries;
+    }
+
+    private static void exited(Callback notify, List<Entry> exits) {
+        if (exits == null) {
+            return;
+        }
+        for (Entry entry : exits) {
+            notify.exited(entry);
+        }
+    }
+
+    // Monotonic time in milliseconds used for the maximum age.
+    protected long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,240 @@
+package betterbluetoothle.scan;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan.ScanResult;
+
+// Track which devices are in range and report when a device is found and when it is lost because
+// it hasn't been seen for its timeout.  Expiry uses a hashed timer wheel: a sighting only updates
+// the device's last seen time, and each tick only looks at the devices whose deadline falls in the
+// current slot, so the cost doesn't grow with a periodic scan of every tracked device.
+public class PresenceTracker {
+
+    // Interface for receiving presence events.  Callbacks are made without holding the tracker's
+    // lock, found from the scan thread and lost from the thread calling tick.
+    public interface Callback {
+        public void found(BluetoothDevice device);
+        public void lost(BluetoothDevice device);
+    }
+
+    // Tracked device, linked into the wheel slot of its (possibly stale) deadline.
+    private static class Entry {
+        private final String address;
+        private BluetoothDevice device;
+        private long lastSeen;
+        private long timeout;
+        private int slot = -1;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(String address) {
+            this.address = address;
+        }
+    }
+
+    private final long timeout;
+    private final long tickMillis;
+    private final Entry[] wheel;
+    private final HashMap<String, Entry> entries;
+    private final HashMap<String, Long> timeouts;
+    private final Callback callback;
+    private long tick;
+    private ScheduledFuture<?> timer;
+
+    // Create a tracker which reports a device lost when it hasn't been seen for timeout
+    // milliseconds.  Expiry is checked with tickMillis resolution, so a device is reported lost
+    // between timeout and timeout + tickMillis after it was last seen.
+    public PresenceTracker(long timeout, long tickMillis, Callback callback) {
+        if (timeout <= 0 || tickMillis <= 0) {
+            throw new IllegalArgumentException("Timeout and tick must be positive.");
+        }
+        this.timeout = timeout;
+        this.tickMillis = tickMillis;
+        this.callback = callback;
+        // Size the wheel to cover the default timeout in one rotation.  Longer per-device timeouts
+        // just stay in their slot for more rotations.
+        this.wheel = new Entry[(int)Math.min(4096, timeout / tickMillis + 2)];
+        this.entries = new HashMap<String, Entry>();
+        this.timeouts = new HashMap<String, Long>();
+        this.tick = now() / tickMillis;
+    }
+
+    // Feed the results of a scan promise into the tracker.
+    public void track(Promise<Void, Void, ScanResult> scan) {
+        scan.progress(new ProgressCallback<ScanResult>() {
+            @Override
+            public void onProgress(ScanResult progress) {
+                seen(progress.device);
+            }
+        });
+    }
+
+    // Check for lost devices every tick on the specified executor until stop is called.
+    public synchronized void start(ScheduledExecutorService executor) {
+        stop();
+        timer = executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+    }
+
+    // Use a different timeout for the device with the specified address (or 0 or less to go back
+    // to the default timeout).
+    public synchronized void setTimeout(String address, long timeout) {
+        if (timeout > 0) {
+            timeouts.put(address, timeout);
+        }
+        else {
+            timeouts.remove(address);
+        }
+        Entry entry = entries.get(address);
+        if (entry != null) {
+            entry.timeout = timeout > 0 ? timeout : this.timeout;
+            unlink(entry);
+            schedule(entry);
+        }
+    }
+
+    // Record a sighting of the device.
+    public void seen(BluetoothDevice device) {
+        if (device == null) {
+            return;
+        }
+        boolean found = false;
+        synchronized (this) {
+            String address = device.getAddress();
+            Entry entry = entries.get(address);
+            if (entry == null) {
+                entry = new Entry(address);
+                Long custom = timeouts.get(address);
+                entry.timeout = custom != null ? custom : timeout;
+                entries.put(address, entry);
+                found = true;
+            }
+            entry.device = device;
+            entry.lastSeen = now();
+            if (entry.slot < 0) {
+                schedule(entry);
+            }
+        }
+        if (found && callback != null) {
+            callback.found(device);
+        }
+    }
+
+    // Return true if the device with the specified address is currently present.
+    public synchronized boolean isPresent(String address) {
+        return entries.containsKey(address);
+    }
+
+    // Number of devices currently present.
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    // Stop tracking the device with the specified address without reporting it lost.
+    public synchronized void forget(String address) {
+        Entry entry = entries.remove(address);
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    // Advance the wheel to the current time and report devices which have timed out.
+    public void tick() {
+        List<BluetoothDevice> lost = new ArrayList<BluetoothDevice>();
+        synchronized (this) {
+            long now = now();
+            long target = now / tickMillis;
+            // After a long pause every slot is due, no need to visit any slot twice.
+            long start = Math.max(tick + 1, target - wheel.length + 1);
+            for (long t = start; t <= target; ++t) {
+                tick = t;
+                expire((int)(t % wheel.length), now, lost);
+            }
+        }
+        if (callback != null) {
+            for (BluetoothDevice device : lost) {
+                callback.lost(device);
+            }
+        }
+    }
+
+    // Check every entry in a slot, dropping expired devices and moving the others to the slot of
+    // their current deadline.
+    private void expire(int slot, long now, List<BluetoothDevice> lost) {
+        Entry entry = wheel[slot];
+        wheel[slot] = null;
+        while (entry != null) {
+            Entry next = entry.next;
+            entry.prev = null;
+            entry.next = null;
+            entry.slot = -1;
+            if (entry.lastSeen + entry.timeout <= now) {
+                entries.remove(entry.address);
+                lost.add(entry.device);
+            }
+            else {
+                schedule(entry);
+            }
+            entry = next;
+        }
+    }
+
+    // Link an entry into the slot of its deadline.
+    private void schedule(Entry entry) {
+        long deadline = (entry.lastSeen + entry.timeout) / tickMillis;
+        // Deadlines in the past (or the current tick) are checked on the next tick.
+        long due = Math.max(deadline, tick + 1);
+        int slot = (int)(due % wheel.length);
+        entry.slot = slot;
+        entry.prev = null;
+        entry.next = wheel[slot];
+        if (wheel[slot] != null) {
+            wheel[slot].prev = entry;
+        }
+        wheel[slot] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.slot < 0) {
+            return;
+        }
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        }
+        else {
+            wheel[entry.slot] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev = null;
+        entry.next = null;
+        entry.slot = -1;
+    }
+
+    // Monotonic time in milliseconds used for seen times and expiry.
+    protected long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
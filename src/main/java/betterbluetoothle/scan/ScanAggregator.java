@@ -0,0 +1,182 @@
+package betterbluetoothle.scan;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Bounded table of recently seen devices keyed by address.  Repeated advertisements from the same
+// device update the device's entry in place and are only reported again when the advertisement
+// payload changes or the emit interval has passed.  When the table is full the least recently seen
+// device is evicted.
+public class ScanAggregator {
+
+    // Aggregated state of a single device.  Entries are owned and updated by the aggregator, so
+    // read them from the scan callback or while holding the aggregator's lock.
+    public static class Entry {
+        private final String address;
+        private BluetoothDevice device;
+        private byte[] bytes;
+        private int lastRssi;
+        private int minRssi;
+        private int maxRssi;
+        private long rssiSum;
+        private int count;
+        private long firstSeen;
+        private long lastSeen;
+        private long lastEmitted;
+
+        private Entry(String address, BluetoothDevice device, int rssi, byte[] bytes, long now) {
+            this.address = address;
+            this.device = device;
+            this.bytes = bytes == null ? new byte[0] : bytes.clone();
+            this.lastRssi = rssi;
+            this.minRssi = rssi;
+            this.maxRssi = rssi;
+            this.rssiSum = rssi;
+            this.count = 1;
+            this.firstSeen = now;
+            this.lastSeen = now;
+            this.lastEmitted = now;
+        }
+
+        // Update the RSSI statistics and payload, returning true if the payload changed.
+        private boolean update(BluetoothDevice device, int rssi, byte[] bytes, long now) {
+            this.device = device;
+            lastRssi = rssi;
+            minRssi = Math.min(minRssi, rssi);
+            maxRssi = Math.max(maxRssi, rssi);
+            rssiSum += rssi;
+            count++;
+            lastSeen = now;
+            if (bytes == null || Arrays.equals(this.bytes, bytes)) {
+                return false;
+            }
+            // Reuse the existing payload array when the length matches (the common case for a
+            // device that changes a counter or sensor value in its advertisement).
+            if (this.bytes.length == bytes.length) {
+                System.arraycopy(bytes, 0, this.bytes, 0, bytes.length);
+            }
+            else {
+                this.bytes = bytes.clone();
+            }
+            return true;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public BluetoothDevice getDevice() {
+            return device;
+        }
+
+        // Latest advertisement payload.  The array is updated in place, copy it to keep it.
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        public int getLastRssi() {
+            return lastRssi;
+        }
+
+        public int getMinRssi() {
+            return minRssi;
+        }
+
+        public int getMaxRssi() {
+            return maxRssi;
+        }
+
+        public double getMeanRssi() {
+            return (double)rssiSum / count;
+        }
+
+        // Number of advertisements received from the device.
+        public int getCount() {
+            return count;
+        }
+
+        public long getFirstSeen() {
+            return firstSeen;
+        }
+
+        public long getLastSeen() {
+            return lastSeen;
+        }
+    }
+
+    private final int maxDevices;
+    private final long emitInterval;
+    private final LinkedHashMap<String, Entry> entries;
+
+    // Create an aggregator that tracks up to maxDevices devices and re-emits an unchanged device at
+    // most once every emitInterval milliseconds (0 or less to only emit on first sighting and
+    // payload changes).
+    public ScanAggregator(final int maxDevices, long emitInterval) {
+        if (maxDevices <= 0) {
+            throw new IllegalArgumentException("Maximum number of devices must be positive.");
+        }
+        this.maxDevices = maxDevices;
+        this.emitInterval = emitInterval;
+        // Entries are moved to the end of the map when seen, so the eldest entry is always the least
+        // recently seen device.
+        this.entries = new LinkedHashMap<String, Entry>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ScanAggregator.Entry> eldest) {
+                return size() > maxDevices;
+            }
+        };
+    }
+
+    // Record an advertisement and return true if it should be passed on to listeners.
+    public synchronized boolean update(BluetoothDevice device, int rssi, byte[] bytes) {
+        long now = now();
+        String address = device == null ? null : device.getAddress();
+        Entry entry = entries.remove(address);
+        if (entry == null) {
+            // First sighting of the device.
+            entries.put(address, new Entry(address, device, rssi, bytes, now));
+            return true;
+        }
+        entries.put(address, entry);
+        boolean changed = entry.update(device, rssi, bytes, now);
+        if (changed || (emitInterval > 0 && now - entry.lastEmitted >= emitInterval)) {
+            entry.lastEmitted = now;
+            return true;
+        }
+        return false;
+    }
+
+    // Get the aggregated state of the device with the specified address, or null if not tracked.
+    // Looking up a device does not change its eviction order.
+    public synchronized Entry get(String address) {
+        return entries.get(address);
+    }
+
+    // Return a snapshot of all tracked devices, least recently seen first.
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<Entry>(entries.values());
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxDevices() {
+        return maxDevices;
+    }
+
+    // Forget all tracked devices.
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    // Monotonic time in milliseconds used for the emit interval and seen times.
+    protected long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
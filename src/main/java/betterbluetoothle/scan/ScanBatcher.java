@@ -0,0 +1,165 @@
+package betterbluetoothle.scan;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// Collect scan results into batches and deliver each batch on an executor once it holds maxCount
+// results or window milliseconds have passed since its first result.  Batches are stored as
+// parallel arrays and recycled after delivery, so no per-result objects are allocated.
+public class ScanBatcher {
+
+    // Interface for receiving delivered batches.
+    public interface Callback {
+        // Called on the executor with a full or timed out batch.  The batch is recycled when this
+        // returns, so copy out anything which needs to be kept.
+        public void onBatch(Batch batch);
+    }
+
+    // Batch of scan results.
+    public static class Batch {
+        private final BluetoothDevice[] devices;
+        private final int[] rssis;
+        private final byte[][] bytes;
+        private final long[] timestamps;
+        private int size;
+
+        private Batch(int capacity) {
+            devices = new BluetoothDevice[capacity];
+            rssis = new int[capacity];
+            bytes = new byte[capacity][];
+            timestamps = new long[capacity];
+        }
+
+        private void add(BluetoothDevice device, int rssi, byte[] data, long timestamp) {
+            devices[size] = device;
+            rssis[size] = rssi;
+            bytes[size] = data;
+            timestamps[size] = timestamp;
+            size++;
+        }
+
+        private void clear() {
+            // Drop references so devices and packets can be collected while the batch is pooled.
+            for (int i = 0; i < size; ++i) {
+                devices[i] = null;
+                bytes[i] = null;
+            }
+            size = 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public BluetoothDevice getDevice(int index) {
+            checkIndex(index);
+            return devices[index];
+        }
+
+        public int getRssi(int index) {
+            checkIndex(index);
+            return rssis[index];
+        }
+
+        public byte[] getBytes(int index) {
+            checkIndex(index);
+            return bytes[index];
+        }
+
+        // Time the result was received in milliseconds since the epoch.
+        public long getTimestamp(int index) {
+            checkIndex(index);
+            return timestamps[index];
+        }
+
+        private void checkIndex(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Index " + index + " is out of range for batch of size " + size + ".");
+            }
+        }
+    }
+
+    private final int maxCount;
+    private final long window;
+    private final ScheduledExecutorService executor;
+    private final Callback callback;
+    private final ArrayDeque<Batch> pool;
+    private Batch current;
+    private ScheduledFuture<?> timer;
+    // Incremented every time a batch is handed off so a late timer can't flush a newer batch.
+    private int generation;
+
+    // Create a batcher which delivers batches of up to maxCount results, or whatever has been
+    // collected window milliseconds after the first result of a batch (0 or less to only deliver
+    // full batches and explicit flushes).
+    public ScanBatcher(int maxCount, long window, ScheduledExecutorService executor, Callback callback) {
+        if (maxCount <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        this.maxCount = maxCount;
+        this.window = window;
+        this.executor = executor;
+        this.callback = callback;
+        this.pool = new ArrayDeque<Batch>();
+    }
+
+    // Add a scan result to the current batch.
+    public synchronized void add(BluetoothDevice device, int rssi, byte[] bytes) {
+        if (current == null) {
+            current = pool.isEmpty() ? new Batch(maxCount) : pool.pop();
+        }
+        current.add(device, rssi, bytes, System.currentTimeMillis());
+        if (current.size() >= maxCount) {
+            flush();
+        }
+        else if (current.size() == 1 && window > 0) {
+            final int expected = generation;
+            timer = executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flushGeneration(expected);
+                }
+            }, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Deliver the current batch now, if it holds any results.
+    public synchronized void flush() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (current == null || current.size() == 0) {
+            return;
+        }
+        final Batch batch = current;
+        current = null;
+        generation++;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    callback.onBatch(batch);
+                }
+                finally {
+                    recycle(batch);
+                }
+            }
+        });
+    }
+
+    private synchronized void flushGeneration(int expected) {
+        if (generation == expected) {
+            flush();
+        }
+    }
+
+    private synchronized void recycle(Batch batch) {
+        batch.clear();
+        pool.push(batch);
+    }
+}
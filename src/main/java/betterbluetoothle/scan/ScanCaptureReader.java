@@ -0,0 +1,239 @@
+package betterbluetoothle.scan;
+
+import android.bluetooth.BluetoothAdapter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+
+// Read a capture file written by ScanCaptureWriter.  The file is memory mapped and records are
+// decoded into a reused Record holder, so reading doesn't allocate per record.  Captures can be
+// replayed through a scanner or the UUID filter, or analyzed in parallel by splitting the file at
+// its sync records.
+public class ScanCaptureReader implements Closeable {
+
+    // Decoded advertisement.  The holder and its payload array are reused for every record, so
+    // copy out anything which needs to be kept.
+    public static class Record {
+        private long timestamp;
+        private long address;
+        private int rssi;
+        private byte[] payload = new byte[64];
+        private int length;
+
+        // Time the advertisement was received in milliseconds since the epoch.
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        // Device address as a 48-bit value.
+        public long getAddressValue() {
+            return address;
+        }
+
+        // Device address in the colon separated form used by BluetoothDevice.
+        public String getAddress() {
+            StringBuilder builder = new StringBuilder(17);
+            for (int i = 5; i >= 0; --i) {
+                int value = (int)(address >>> (i * 8)) & 0xFF;
+                builder.append(Character.toUpperCase(Character.forDigit(value >> 4, 16)));
+                builder.append(Character.toUpperCase(Character.forDigit(value & 0xF, 16)));
+                if (i > 0) {
+                    builder.append(':');
+                }
+            }
+            return builder.toString();
+        }
+
+        public int getRssi() {
+            return rssi;
+        }
+
+        // Reused payload buffer, only the first getPayloadLength bytes are valid.
+        public byte[] getPayload() {
+            return payload;
+        }
+
+        public int getPayloadLength() {
+            return length;
+        }
+
+        // Copy of the payload with exactly the advertised length.
+        public byte[] copyPayload() {
+            byte[] copy = new byte[length];
+            System.arraycopy(payload, 0, copy, 0, length);
+            return copy;
+        }
+    }
+
+    // Interface for receiving records.
+    public interface Visitor {
+        public void visit(Record record);
+    }
+
+    // Parallel analysis over a capture.  Each partition of the file gets its own accumulator,
+    // and the accumulators are combined once every partition is done.
+    public interface Analysis<A> {
+        public A create();
+        public void accept(A accumulator, Record record);
+        public A combine(A first, A second);
+    }
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+
+    public ScanCaptureReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Capture files larger than 2 GB are not supported.");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.limit() < ScanCaptureWriter.HEADER_LENGTH ||
+                buffer.getInt(0) != ScanCaptureWriter.MAGIC ||
+                buffer.get(4) != ScanCaptureWriter.VERSION) {
+                throw new IOException("Not a scan capture file.");
+            }
+        }
+        catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    // Visit every advertisement in the capture in order.
+    public void read(Visitor visitor) {
+        scan(buffer.duplicate(), ScanCaptureWriter.HEADER_LENGTH, buffer.limit(), new Record(), visitor);
+    }
+
+    // Replay every advertisement which matches the UUID filter (or null for no filtering) through
+    // the same parsing used by AsyncBluetoothLeScan.  This needs no radio or BluetoothDevice.
+    public void replay(final UUID[] filter, final Visitor visitor) {
+        read(new Visitor() {
+            @Override
+            public void visit(Record record) {
+                if (filter == null || AsyncBluetoothLeScan.matches(record.payload, 0, record.length, filter)) {
+                    visitor.visit(record);
+                }
+            }
+        });
+    }
+
+    // Replay every advertisement into a scanner as if it had been received from the adapter.
+    // Devices are looked up by address with the adapter.
+    public void replay(final AsyncBluetoothLeScan scanner, final BluetoothAdapter adapter) {
+        read(new Visitor() {
+            @Override
+            public void visit(Record record) {
+                scanner.onLeScan(adapter.getRemoteDevice(record.getAddress()), record.getRssi(), record.copyPayload());
+            }
+        });
+    }
+
+    // Run an analysis over the capture split into the specified number of partitions, each
+    // processed as a task on the executor.
+    public <A> A analyze(final Analysis<A> analysis, ExecutorService executor, int partitions) throws InterruptedException, ExecutionException {
+        int start = ScanCaptureWriter.HEADER_LENGTH;
+        int size = buffer.limit() - start;
+        partitions = Math.max(1, Math.min(partitions, size / 4096 + 1));
+        // Partition boundaries are the first sync record at or after an even split of the file,
+        // so every record belongs to exactly one partition.
+        int[] bounds = new int[partitions + 1];
+        bounds[0] = start;
+        bounds[partitions] = buffer.limit();
+        for (int i = 1; i < partitions; ++i) {
+            bounds[i] = Math.max(bounds[i - 1], findSync(buffer, start + (int)((long)size * i / partitions), buffer.limit()));
+        }
+        List<Future<A>> futures = new ArrayList<Future<A>>();
+        for (int i = 0; i < partitions; ++i) {
+            final int from = bounds[i];
+            final int to = bounds[i + 1];
+            futures.add(executor.submit(new Callable<A>() {
+                @Override
+                public A call() throws Exception {
+                    final A accumulator = analysis.create();
+                    scan(buffer.duplicate(), from, to, new Record(), new Visitor() {
+                        @Override
+                        public void visit(Record record) {
+                            analysis.accept(accumulator, record);
+                        }
+                    });
+                    return accumulator;
+                }
+            }));
+        }
+        A result = futures.get(0).get();
+        for (int i = 1; i < futures.size(); ++i) {
+            result = analysis.combine(result, futures.get(i).get());
+        }
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    // Decode records starting in [from, to).  A damaged record skips ahead to the next sync record.
+    private static void scan(ByteBuffer buffer, int from, int to, Record record, Visitor visitor) {
+        int limit = buffer.limit();
+        int offset = from;
+        while (offset < to && offset + 3 <= limit) {
+            int length = buffer.getShort(offset) & 0xFFFF;
+            int type = buffer.get(offset + 2);
+            int end = offset + 2 + length;
+            if (end > limit) {
+                // Truncated final record (the writer was interrupted).
+                return;
+            }
+            if (type == ScanCaptureWriter.TYPE_ADVERTISEMENT && length >= ScanCaptureWriter.ADVERTISEMENT_OVERHEAD) {
+                int position = offset + 3;
+                record.timestamp = buffer.getLong(position);
+                record.address = ((long)(buffer.getShort(position + 8) & 0xFFFF) << 32) | (buffer.getInt(position + 10) & 0xFFFFFFFFL);
+                record.rssi = buffer.get(position + 14);
+                record.length = length - ScanCaptureWriter.ADVERTISEMENT_OVERHEAD;
+                if (record.payload.length < record.length) {
+                    record.payload = new byte[record.length];
+                }
+                buffer.position(position + 15);
+                buffer.get(record.payload, 0, record.length);
+                visitor.visit(record);
+            }
+            else if (type == ScanCaptureWriter.TYPE_SYNC && length == ScanCaptureWriter.SYNC_LENGTH &&
+                     buffer.getLong(offset + 3) == ScanCaptureWriter.SYNC_MAGIC) {
+                // Nothing to do, sync records only mark safe starting points.
+            }
+            else {
+                // Unknown or damaged record, resynchronize.
+                end = findSync(buffer, offset + 1, limit);
+            }
+            offset = end;
+        }
+    }
+
+    // Find the offset of the first sync record at or after from, or limit if there is none.
+    private static int findSync(ByteBuffer buffer, int from, int limit) {
+        for (int offset = from; offset + 2 + ScanCaptureWriter.SYNC_LENGTH <= limit; ++offset) {
+            if (buffer.get(offset + 2) == ScanCaptureWriter.TYPE_SYNC &&
+                (buffer.getShort(offset) & 0xFFFF) == ScanCaptureWriter.SYNC_LENGTH &&
+                buffer.getLong(offset + 3) == ScanCaptureWriter.SYNC_MAGIC) {
+                return offset;
+            }
+        }
+        return limit;
+    }
+}
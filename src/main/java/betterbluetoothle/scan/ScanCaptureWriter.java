@@ -0,0 +1,159 @@
+package betterbluetoothle.scan;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Append raw advertisements to a binary capture file which can be read back with
+// ScanCaptureReader.  The format is:
+//
+//   Header:  magic "BLEC" (4 bytes), version (1 byte), reserved (3 bytes)
+//   Records: length (2 bytes, bytes after the length field), type (1 byte), body
+//
+//   Advertisement body (type 0): timestamp in ms since the epoch (8 bytes), address (6 bytes),
+//                                RSSI (1 byte), payload (remaining bytes)
+//   Sync body (type 1):          sync magic (8 bytes), index of the next advertisement (8 bytes)
+//
+// All values are big endian.  A sync record is written at the start of every file segment and
+// after every syncInterval advertisements, so a reader can split a capture for parallel processing
+// and recover from a damaged record.
+public class ScanCaptureWriter implements Closeable {
+
+    public static final int MAGIC = 0x424C4543; // "BLEC"
+    public static final byte VERSION = 1;
+    public static final int HEADER_LENGTH = 8;
+    public static final long SYNC_MAGIC = 0x424C4553594E4321L; // "BLESYNC!"
+    public static final byte TYPE_ADVERTISEMENT = 0;
+    public static final byte TYPE_SYNC = 1;
+    // Length of the fixed part of records after the length field.
+    public static final int ADVERTISEMENT_OVERHEAD = 1 + 8 + 6 + 1;
+    public static final int SYNC_LENGTH = 1 + 8 + 8;
+    public static final int MAX_PAYLOAD = 0xFFFF - ADVERTISEMENT_OVERHEAD;
+
+    private final FileOutputStream output;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int syncInterval;
+    private long count;
+    private long sinceSync;
+    private IOException error;
+
+    // Open a capture file for appending, writing a new header if the file is empty.  A sync record
+    // is written after every syncInterval advertisements.
+    public ScanCaptureWriter(File file, int syncInterval) throws IOException {
+        if (syncInterval <= 0) {
+            throw new IllegalArgumentException("Sync interval must be positive.");
+        }
+        this.syncInterval = syncInterval;
+        this.output = new FileOutputStream(file, true);
+        this.channel = output.getChannel();
+        // Room for the largest record, whose length field counts up to 0xFFFF bytes.
+        this.buffer = ByteBuffer.allocate(2 + 0xFFFF);
+        if (channel.size() == 0) {
+            buffer.putInt(MAGIC);
+            buffer.put(VERSION);
+            buffer.put(new byte[3]);
+        }
+        // The sync record also marks where this writer's records start when appending.
+        putSync();
+    }
+
+    public ScanCaptureWriter(File file) throws IOException {
+        this(file, 4096);
+    }
+
+    // Append an advertisement.  Write errors don't throw (this is called from the scan callback),
+    // check them with checkError.
+    public synchronized void append(long timestamp, String address, int rssi, byte[] payload) {
+        if (error != null) {
+            return;
+        }
+        int length = payload == null ? 0 : Math.min(payload.length, MAX_PAYLOAD);
+        try {
+            ensure(2 + ADVERTISEMENT_OVERHEAD + length);
+            buffer.putShort((short)(ADVERTISEMENT_OVERHEAD + length));
+            buffer.put(TYPE_ADVERTISEMENT);
+            buffer.putLong(timestamp);
+            putAddress(address);
+            buffer.put((byte)rssi);
+            if (length > 0) {
+                buffer.put(payload, 0, length);
+            }
+            count++;
+            if (++sinceSync >= syncInterval) {
+                ensure(2 + SYNC_LENGTH);
+                putSync();
+            }
+        }
+        catch (IOException e) {
+            error = e;
+        }
+    }
+
+    // Number of advertisements appended by this writer.
+    public synchronized long getCount() {
+        return count;
+    }
+
+    // Throw the first write error, if any happened.
+    public synchronized void checkError() throws IOException {
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    // Write buffered records to the file.
+    public synchronized void flush() throws IOException {
+        checkError();
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private void ensure(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void putSync() {
+        buffer.putShort((short)SYNC_LENGTH);
+        buffer.put(TYPE_SYNC);
+        buffer.putLong(SYNC_MAGIC);
+        buffer.putLong(count);
+        sinceSync = 0;
+    }
+
+    // Write a colon separated hex address as 6 bytes (zeros if it can't be parsed).
+    private void putAddress(String address) {
+        long value = 0;
+        if (address != null && address.length() == 17) {
+            for (int i = 0; i < 6; ++i) {
+                int high = Character.digit(address.charAt(i * 3), 16);
+                int low = Character.digit(address.charAt(i * 3 + 1), 16);
+                if (high < 0 || low < 0) {
+                    value = 0;
+                    break;
+                }
+                value = (value << 8) | (high << 4) | low;
+            }
+        }
+        buffer.putShort((short)(value >>> 32));
+        buffer.putInt((int)value);
+    }
+}
@@ -0,0 +1,168 @@
+package betterbluetoothle.scan;
+
+import android.bluetooth.BluetoothAdapter;
+
+import org.jdeferred.FailCallback;
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+import org.jdeferred.impl.DeferredObject;
+
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.async.AsyncBluetoothLeScan.ScanResult;
+
+// Share one adapter scan between any number of subscribers with their own UUID filters.  The
+// adapter scan is started by the first subscription and stopped when the last one is cancelled.
+// Each advertisement is parsed at most once and passed to every subscriber whose filter matches.
+public class ScanHub {
+
+    // A subscriber's registration with the hub.
+    public class Subscription {
+        private final UUID[] filter;
+        private final DeferredObject<Void, Void, ScanResult> deferred;
+
+        private Subscription(UUID[] filter) {
+            this.filter = filter;
+            this.deferred = new DeferredObject<Void, Void, ScanResult>();
+        }
+
+        // Promise which notifies matching devices through its progress notification.  It is
+        // resolved when the subscription is cancelled and rejected if the adapter scan fails.
+        public Promise<Void, Void, ScanResult> promise() {
+            return deferred.promise();
+        }
+
+        // Stop receiving results and release this subscription's hold on the adapter scan.
+        public void cancel() {
+            unsubscribe(this);
+        }
+    }
+
+    // Hubs are weakly referenced too, as a hub references its adapter through its scanner and would
+    // keep its own key alive.  A hub is kept alive by its subscriptions and the running scan.
+    private static final WeakHashMap<BluetoothAdapter, WeakReference<ScanHub>> hubs = new WeakHashMap<BluetoothAdapter, WeakReference<ScanHub>>();
+
+    private final AsyncBluetoothLeScan scanner;
+    private final CopyOnWriteArrayList<Subscription> subscriptions;
+
+    // Get the hub shared by everything scanning with the specified adapter.
+    public static ScanHub forAdapter(BluetoothAdapter adapter) {
+        synchronized (hubs) {
+            WeakReference<ScanHub> reference = hubs.get(adapter);
+            ScanHub hub = reference == null ? null : reference.get();
+            if (hub == null) {
+                hub = new ScanHub(new AsyncBluetoothLeScan(adapter));
+                hubs.put(adapter, new WeakReference<ScanHub>(hub));
+            }
+            return hub;
+        }
+    }
+
+    // Create a hub which owns the specified scanner.  Aggregation and batching on the scanner
+    // apply to all subscribers.
+    public ScanHub(AsyncBluetoothLeScan scanner) {
+        this.scanner = scanner;
+        this.subscriptions = new CopyOnWriteArrayList<Subscription>();
+    }
+
+    // Subscribe to devices advertising any of the specified UUIDs (or null for no filtering).
+    public synchronized Subscription subscribe(UUID[] uuid) {
+        Subscription subscription = new Subscription(uuid);
+        subscriptions.add(subscription);
+        if (subscriptions.size() == 1) {
+            // First subscriber, start the adapter scan.
+            scanner.start().progress(new ProgressCallback<ScanResult>() {
+                @Override
+                public void onProgress(ScanResult progress) {
+                    dispatch(progress);
+                }
+            }).fail(new FailCallback<Void>() {
+                @Override
+                public void onFail(Void result) {
+                    failed();
+                }
+            });
+        }
+        return subscription;
+    }
+
+    // Helpful overrides for no filter or a single filter.
+
+    public Subscription subscribe() {
+        return subscribe((UUID[])null);
+    }
+
+    public Subscription subscribe(UUID uuid) {
+        return subscribe(new UUID[] { uuid });
+    }
+
+    // Number of active subscriptions.
+    public int getSubscriberCount() {
+        return subscriptions.size();
+    }
+
+    private synchronized void unsubscribe(Subscription subscription) {
+        if (!subscriptions.remove(subscription)) {
+            return;
+        }
+        if (subscriptions.isEmpty()) {
+            // Last subscriber is gone, stop the adapter scan.
+            scanner.stop();
+        }
+        synchronized (subscription.deferred) {
+            if (subscription.deferred.isPending()) {
+                subscription.deferred.resolve(null);
+            }
+        }
+    }
+
+    // Reject and drop every subscription when the adapter scan couldn't be started.
+    private synchronized void failed() {
+        for (Subscription subscription : subscriptions) {
+            synchronized (subscription.deferred) {
+                if (subscription.deferred.isPending()) {
+                    subscription.deferred.reject(null);
+                }
+            }
+        }
+        subscriptions.clear();
+    }
+
+    // Pass a result to every matching subscriber, parsing its UUIDs only if a filter needs them.
+    private void dispatch(ScanResult result) {
+        List<UUID> serviceUUIDs = null;
+        for (Subscription subscription : subscriptions) {
+            if (!subscription.deferred.isPending()) {
+                continue;
+            }
+            if (subscription.filter == null) {
+                notify(subscription, result);
+                continue;
+            }
+            if (serviceUUIDs == null) {
+                serviceUUIDs = result.parseUUIDs();
+            }
+            for (UUID uuid : subscription.filter) {
+                if (serviceUUIDs.contains(uuid)) {
+                    notify(subscription, result);
+                    break;
+                }
+            }
+        }
+    }
+
+    // Notify a subscriber unless it was cancelled since the check in dispatch.  The check is
+    // repeated under the promise's lock, which cancelling also takes to resolve it.
+    private static void notify(Subscription subscription, ScanResult result) {
+        synchronized (subscription.deferred) {
+            if (subscription.deferred.isPending()) {
+                subscription.deferred.notify(result);
+            }
+        }
+    }
+}
@@ -6,24 +6,44 @@ import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.content.Context;
 
-import com.google.common.base.Function;
-import com.google.common.primitives.Bytes;
-
+import org.jdeferred.AlwaysCallback;
 import org.jdeferred.DoneCallback;
 import org.jdeferred.DonePipe;
+import org.jdeferred.FailCallback;
 import org.jdeferred.ProgressCallback;
 import org.jdeferred.Promise;
 import org.jdeferred.impl.DeferredObject;
 
-import java.nio.charset.Charset;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
 
 import betterbluetoothle.async.AsyncBluetoothGatt;
 import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.io.ByteRingBuffer;
+import betterbluetoothle.io.Framer;
+import betterbluetoothle.io.LZDecoder;
+import betterbluetoothle.io.LZEncoder;
+import betterbluetoothle.io.SpillingByteRingBuffer;
+import betterbluetoothle.io.TextDecoder;
+import betterbluetoothle.io.ThroughputMeter;
+import betterbluetoothle.scan.ScanHub;
 
-public class UART {
+// Nordic style UART service.  Besides the byte array read/write methods a UART is also a
+// ByteChannel, where reads are non-blocking and writes block until every packet is acknowledged.
+public class UART implements ByteChannel {
 
     //
     // PUBLIC METHODS AND STATE
@@ -34,57 +54,163 @@ public class UART {
     public static UUID TX_UUID = UUID.fromString("6E400002-B5A3-F393-E0A9-E50E24DCCA9E");
     public static UUID RX_UUID = UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E");
 
+    // Largest write which fits in a single packet with the default ATT MTU of 23 bytes.
+    public static final int DEFAULT_PACKET_SIZE = 20;
+
+    // Version of the compression sent when negotiating it.
+    public static final byte COMPRESSION_VERSION = 1;
+
     // Constructor
     public UART(BluetoothDevice device, Context context, boolean autoConnect) {
+        this.device = device;
         gatt = new AsyncBluetoothGatt(device, context, autoConnect);
-        received = new ArrayDeque<Byte>();
+        received = new ByteRingBuffer();
+        transmitter = new UARTTransmitter(gatt);
+        coalescer = new UARTCoalescer(transmitter);
     }
 
     // Static method to find the first nearby UART device.
     // When this promise is resolved the first available UART device has been found.
     public static Promise<UART, Void, Void> findFirst(BluetoothAdapter adapter, final Context context, final boolean autoConnect) {
-        scanner = new AsyncBluetoothLeScan(adapter);
-        found = new DeferredObject<UART, Void, Void>();
-        // Scan for devices with the UART service.
-        scanner.start(UART_UUID).progress(new ProgressCallback<AsyncBluetoothLeScan.ScanResult>() {
+        final DeferredObject<UART, Void, Void> found = new DeferredObject<UART, Void, Void>();
+        final Discovery discovery = discover(ScanHub.forAdapter(adapter), context, autoConnect, false);
+        discovery.promise().progress(new ProgressCallback<UART>() {
+            @Override
+            public void onProgress(UART progress) {
+                // Found a device, stop the scan and resolve the found promise with the UART.
+                discovery.cancel();
+                if (found.isPending()) {
+                    found.resolve(progress);
+                }
+            }
+        }).fail(new FailCallback<Void>() {
             @Override
-            public void onProgress(AsyncBluetoothLeScan.ScanResult progress) {
-                // Found a device.
-                // Stop the scan.
-                scanner.stop();
-                scanner = null;
-                // Resolve the found promise with the UART.
-                found.resolve(new UART(progress.device, context, autoConnect));
+            public void onFail(Void result) {
+                if (found.isPending()) {
+                    found.reject(null);
+                }
             }
         });
         return found.promise();
     }
 
+    // Scan for every nearby UART device.  Each device is reported once, and if connect is true it
+    // starts connecting as soon as it is found while the scan goes on.  Every call has its own
+    // state, and calls share the adapter's scan through its scan hub.
+    public static Discovery discover(BluetoothAdapter adapter, Context context, boolean autoConnect, boolean connect) {
+        return discover(ScanHub.forAdapter(adapter), context, autoConnect, connect);
+    }
+
+    public static Discovery discover(ScanHub scanHub, Context context, boolean autoConnect, boolean connect) {
+        Discovery discovery = new Discovery(context, autoConnect, connect);
+        discovery.start(scanHub);
+        return discovery;
+    }
+
+    // Running scan for UART devices started by discover.
+    public static class Discovery {
+        private final Context context;
+        private final boolean autoConnect;
+        private final boolean connect;
+        private final DeferredObject<Void, Void, UART> deferred = new DeferredObject<Void, Void, UART>();
+        private final HashSet<BluetoothDevice> found = new HashSet<BluetoothDevice>();
+        private ScanHub.Subscription subscription;
+
+        private Discovery(Context context, boolean autoConnect, boolean connect) {
+            this.context = context;
+            this.autoConnect = autoConnect;
+            this.connect = connect;
+        }
+
+        // Promise which notifies a new UART for each device found.  It is resolved when the
+        // discovery is cancelled and rejected if the scan fails.
+        public Promise<Void, Void, UART> promise() {
+            return deferred.promise();
+        }
+
+        // Stop scanning.
+        public void cancel() {
+            subscription.cancel();
+        }
+
+        // Number of devices found so far.
+        public synchronized int getFound() {
+            return found.size();
+        }
+
+        private void start(ScanHub scanHub) {
+            subscription = scanHub.subscribe(UART_UUID);
+            subscription.promise().progress(new ProgressCallback<AsyncBluetoothLeScan.ScanResult>() {
+                @Override
+                public void onProgress(AsyncBluetoothLeScan.ScanResult progress) {
+                    found(progress.device);
+                }
+            }).then(new DoneCallback<Void>() {
+                @Override
+                public void onDone(Void result) {
+                    deferred.resolve(null);
+                }
+            }, new FailCallback<Void>() {
+                @Override
+                public void onFail(Void result) {
+                    deferred.reject(null);
+                }
+            });
+        }
+
+        private void found(BluetoothDevice device) {
+            synchronized (this) {
+                if (!found.add(device)) {
+                    return;
+                }
+            }
+            UART uart = new UART(device, context, autoConnect);
+            if (connect) {
+                uart.connect();
+            }
+            if (deferred.isPending()) {
+                deferred.notify(uart);
+            }
+        }
+    }
+
     // Connect to the device's UART service and setup code to fire connected, available, and
-    // disconnected promises.
-    public void connect() {
+    // disconnected promises.  The returned promise resolves along with the connected callback, or
+    // is rejected with the GATT status (null if unknown) if connecting or service discovery fails.
+    public Promise<Void, Integer, Void> connect() {
+        synchronized (this) {
+            disconnected = false;
+        }
+        final DeferredObject<Void, Integer, Void> setup = new DeferredObject<Void, Integer, Void>();
         // Connect to the device.
-        gatt.connect().then(new DonePipe<Void, Void, Integer, Void>() {
+        Promise<Void, Integer, Void> discovered = gatt.connect().then(new DonePipe<Void, Void, Integer, Void>() {
             @Override
             public Promise<Void, Integer, Void> pipeDone(Void result) {
                 // Connected, start service discovery.
                 return gatt.discoverServices();
             }
+        });
+        discovered.fail(new FailCallback<Integer>() {
+            @Override
+            public void onFail(Integer status) {
+                if (setup.isPending()) {
+                    setup.reject(status);
+                }
+            }
+        });
         // Switch to promise for service discovery completion.
-        }).then(new DonePipe<Void, BluetoothGattDescriptor, Integer, Void>() {
+        discovered.then(new DonePipe<Void, BluetoothGattDescriptor, Integer, Void>() {
             @Override
             public Promise<BluetoothGattDescriptor, Integer, Void> pipeDone(Void result) {
                 // Service discovery complete, grab reference to TX and RX services.
                 rx = gatt.getService(UART_UUID).getCharacteristic(RX_UUID);
                 tx = gatt.getService(UART_UUID).getCharacteristic(TX_UUID);
+                transmitter.setCharacteristic(tx);
                 // Notify that device is connected.
-                enumerateCallbacks(new Function<Callback, Void>() {
-                    @Override
-                    public Void apply(Callback input) {
-                        input.connected();
-                        return null;
-                    }
-                });
+                dispatch(CONNECTED);
+                if (setup.isPending()) {
+                    setup.resolve(null);
+                }
                 // Now setup notifications for RX characteristic changes.
                 // First change the client descriptor to enable notifications and write it to the device.
                 BluetoothGattDescriptor client = rx.getDescriptor(CLIENT_UUID);
@@ -104,16 +230,12 @@ public class UART {
             public void onProgress(BluetoothGattCharacteristic progress) {
                 // RX characteristic has changed.
                 // Update buffer of received bytes.
-                updateReceived(progress);
+                if (!updateReceived(progress)) {
+                    // Nothing was buffered, the data went to the data callbacks or framer.
+                    return;
+                }
                 // Notify data is available for reading.
-                enumerateCallbacks(new Function<Callback, Void>() {
-                    @Override
-                    public Void apply(Callback input) {
-                        input.available();
-                        return null;
-                    }
-                });
-
+                dispatch(AVAILABLE);
             }
         });
         // Catch when the device is disconnected and notify all the registered callbacks.
@@ -121,16 +243,45 @@ public class UART {
                 @Override
                 public void onDone(Void result) {
                     // Notify disconnected
-                    enumerateCallbacks(new Function<Callback, Void>() {
-                        @Override
-                        public Void apply(Callback input) {
-                            input.disconnected();
-                            return null;
-                        }
-                    });
+                    dispatch(DISCONNECTED);
                 }
             }
         );
+        // Wake up any blocked stream reads or writes so they see the end of the stream.
+        gatt.disconnected().always(new AlwaysCallback<Void, Integer>() {
+            @Override
+            public void onAlways(Promise.State state, Void resolved, Integer rejected) {
+                coalescer.cancel();
+                transmitter.cancel();
+                // The device's compression history is gone, so compression has to be negotiated
+                // again after reconnecting.
+                synchronized (framerLock) {
+                    decompressor = null;
+                    // A partial frame cut off by the disconnect would corrupt the first frame
+                    // after reconnecting.
+                    if (framer != null) {
+                        framer.reset();
+                    }
+                }
+                synchronized (compressionLock) {
+                    compressor = null;
+                }
+                List<AsyncRead> failed;
+                if (setup.isPending()) {
+                    setup.reject(rejected);
+                }
+                synchronized (UART.this) {
+                    disconnected = true;
+                    failed = new ArrayList<AsyncRead>(asyncReads);
+                    asyncReads.clear();
+                    UART.this.notifyAll();
+                }
+                for (AsyncRead read : failed) {
+                    read.deferred.reject(null);
+                }
+            }
+        });
+        return setup.promise();
     }
 
     // Interface to define the UART event handler functions for connected, disconnected, and data
@@ -141,18 +292,48 @@ public class UART {
         public void available();
     }
 
+    // Interface to handle received data inline as it arrives, instead of reading it from the
+    // receive buffer.
+    public interface DataCallback {
+        // Called on the Bluetooth callback thread with a read-only view of the received bytes,
+        // which is only valid during the call.
+        public void received(UART uart, ByteBuffer data);
+    }
+
     // Register a class to receive callbacks of UART events.
-    public synchronized void register(Callback callback) {
-        // Add the callback if it isn't already in the list of registered callbacks.
-        if (!callbacks.contains(callback)) {
-            callbacks.add(callback);
+    public void register(Callback callback) {
+        if (callback == null) {
+            return;
+        }
+        synchronized (callbackLock) {
+            // Add the callback if it isn't already in the list of registered callbacks.
+            callbacks = added(callbacks, callback);
         }
     }
 
     // Unregister a class to stop receiving callbacks of UART events.
-    public synchronized void unregister(Callback callback) {
-        // Remove the callback.
-        callbacks.remove(callback);
+    public void unregister(Callback callback) {
+        synchronized (callbackLock) {
+            callbacks = removed(callbacks, callback);
+        }
+    }
+
+    // Register a class to receive the data of every notification.  While any data callback is
+    // registered received data goes to the data callbacks only, it isn't buffered or framed and
+    // available isn't called.
+    public void register(DataCallback callback) {
+        if (callback == null) {
+            return;
+        }
+        synchronized (callbackLock) {
+            dataCallbacks = added(dataCallbacks, callback);
+        }
+    }
+
+    public void unregister(DataCallback callback) {
+        synchronized (callbackLock) {
+            dataCallbacks = removed(dataCallbacks, callback);
+        }
     }
 
     // Return amount of bytes available in received buffer.
@@ -160,50 +341,425 @@ public class UART {
         return received.size();
     }
 
+    // Limit how much received data is buffered.  When the limit is reached received data is
+    // dropped or an exception is thrown based on the overflow policy.  By default the buffer is
+    // unlimited.  While spilling the limit covers the bytes in memory and on disk.
+    public synchronized void setReceiveBufferLimit(int maxCapacity, ByteRingBuffer.OverflowPolicy policy) {
+        received.setLimit(maxCapacity, policy);
+    }
+
+    // Number of received bytes dropped because the receive buffer was full.
+    public synchronized long getReceiveDropped() {
+        return received.getDropped();
+    }
+
+    // Keep at most memoryLimit received bytes in memory and spill the rest to memory mapped files
+    // in the directory, e.g. the context cache directory, so a stalled reader can't run the app out
+    // of memory.  Spilled data is read back in order by every read and the files are reused once
+    // read.  Buffered data and the receive buffer limit are kept.  Set a null directory to go back
+    // to an in memory buffer, which deletes the spill files.  If the buffered data can't be moved,
+    // e.g. the directory can't be written, an exception is thrown and the current buffer is kept.
+    public synchronized void setReceiveSpill(File directory, int memoryLimit) {
+        if (directory != null && memoryLimit <= 0) {
+            throw new IllegalArgumentException("Memory limit must be positive.");
+        }
+        ByteRingBuffer buffer = directory != null ? new SpillingByteRingBuffer(memoryLimit, directory) : new ByteRingBuffer();
+        try {
+            if (received.getMaxCapacity() < ByteRingBuffer.UNLIMITED) {
+                buffer.setLimit(received.getMaxCapacity(), received.getOverflowPolicy());
+            }
+            // Copy rather than move the data, so nothing is lost if the new buffer fails.
+            byte[] chunk = new byte[4096];
+            int size = received.size();
+            int index = 0;
+            while (index < size) {
+                int count = received.peek(index, chunk, 0, Math.min(chunk.length, size - index));
+                if (buffer.write(chunk, 0, count) < count) {
+                    throw new IllegalStateException("Buffered data couldn't be spilled to " + directory + ".");
+                }
+                index += count;
+            }
+        }
+        catch (RuntimeException e) {
+            if (buffer instanceof SpillingByteRingBuffer) {
+                ((SpillingByteRingBuffer)buffer).close();
+            }
+            throw e;
+        }
+        if (received instanceof SpillingByteRingBuffer) {
+            ((SpillingByteRingBuffer)received).close();
+        }
+        received = buffer;
+    }
+
+    // Number of received bytes currently spilled to disk.
+    public synchronized long getReceiveSpilled() {
+        return received instanceof SpillingByteRingBuffer ? ((SpillingByteRingBuffer)received).getSpillSize() : 0;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
     // Disconnect from the UART.
     public void disconnect() {
         gatt.disconnect();
     }
 
-    // Write bytes to the UART.
-    public void write(byte[] data) {
-        if (tx == null) {
-            return;
+    // Disconnect from the UART and release its GATT client, which Android only has a few of.  Does
+    // nothing if the UART never got a GATT.  Connecting again opens a new one.
+    public void closeGatt() {
+        gatt.close();
+    }
+
+    // Queue bytes to write to the UART and return a promise for their completion.  Data is sent in
+    // packets of the packet size, one at a time as the device acknowledges the previous packet.
+    // The promise progress is the number of bytes of this write sent so far, and it is rejected
+    // with the GATT status if a packet fails (null if the UART isn't connected).  Don't modify the
+    // array until the promise completes.
+    public Promise<Void, Integer, Integer> write(byte[] data) {
+        Promise<Void, Integer, Integer> result = null;
+        synchronized (compressionLock) {
+            if (compressor != null) {
+                // Compressed data must be queued in the order it was compressed.
+                data = compressor.compress(data);
+                result = coalescer.queue(data, 0, data.length);
+            }
         }
-        tx.setValue(data);
-        gatt.writeCharacteristic(tx);
+        if (result == null) {
+            return coalescer.write(data, 0, data.length);
+        }
+        coalescer.send();
+        return result;
+    }
+
+    // Write bytes right away, bypassing write coalescing.  Any pending coalesced bytes are sent
+    // first.
+    public Promise<Void, Integer, Integer> writeImmediately(byte[] data) {
+        return writeImmediately(ByteBuffer.wrap(data));
+    }
+
+    // Merge small writes into full packets.  Written bytes are held for up to delay milliseconds
+    // (timed with the scheduler) or until a packet fills, then sent together, so many tiny writes
+    // cost a few packets instead of one each.  Written arrays can be reused straight away since
+    // their bytes are copied.  A delay of 0 (the default) turns coalescing off.
+    public void setWriteCoalescing(long delay, ScheduledExecutorService scheduler) {
+        coalescer.setDelay(delay, scheduler);
+    }
+
+    public long getWriteCoalescingDelay() {
+        return coalescer.getDelay();
+    }
+
+    // Send any coalesced bytes now.
+    public void flush() {
+        coalescer.flush();
     }
 
     // Write a string to the UART.  String will be encoded in UTF-8 before sending to UART.
-    public void write(String data) {
-        write(data.getBytes(Charset.forName("UTF-8")));
+    public Promise<Void, Integer, Integer> write(String data) {
+        return write(data.getBytes(TextDecoder.UTF_8));
+    }
+
+    // Set the largest number of bytes sent in one packet.  The default fits the minimum ATT MTU of
+    // 23 bytes, if the device supports a larger MTU set this to the MTU minus 3.
+    public void setPacketSize(int packetSize) {
+        transmitter.setPacketSize(packetSize);
+    }
+
+    public int getPacketSize() {
+        return transmitter.getPacketSize();
+    }
+
+    // Number of bytes queued for sending and not yet acknowledged.
+    public int getWritePending() {
+        return coalescer.getPending() + transmitter.getPending();
+    }
+
+    // Total bytes and packets acknowledged by the device.
+    public long getBytesSent() {
+        return transmitter.getBytesSent();
+    }
+
+    public long getPacketsSent() {
+        return transmitter.getPacketsSent();
+    }
+
+    // Stream writes with write without response, keeping up to maxCredits packets in flight.  The
+    // number of packets in flight adapts to how fast the stack accepts them.  Only use it with
+    // devices whose TX characteristic supports write without response and which can keep up, as
+    // nothing tells the sender if the device drops data.
+    public void setWriteWithoutResponse(boolean enabled, int maxCredits) {
+        transmitter.setWriteWithoutResponse(enabled, maxCredits);
+    }
+
+    public void setWriteWithoutResponse(boolean enabled) {
+        setWriteWithoutResponse(enabled, UARTTransmitter.DEFAULT_MAX_CREDITS);
+    }
+
+    public boolean isWriteWithoutResponse() {
+        return transmitter.isWriteWithoutResponse();
+    }
+
+    // Number of packets currently allowed in flight.
+    public int getCredits() {
+        return transmitter.getCredits();
+    }
+
+    // Rate of acknowledged (or, without response, sent) TX data.
+    public ThroughputMeter getTransmitMeter() {
+        return transmitter.getMeter();
+    }
+
+    // Rate of received data.
+    public ThroughputMeter getReceiveMeter() {
+        return receiveMeter;
     }
 
     // Read up to count bytes of data from the UART received data.  Less data than requested might be returned!
     public synchronized byte[] read(int count) {
-        int size = count < received.size() ? count : received.size();
-        byte[] result = new byte[size];
-        for (int i = 0; i < size; ++i) {
-            result[i] = received.remove();
-        }
-        return result;
+        return received.read(count);
     }
 
     // Read all bytes of data from the UART.
     public synchronized byte[] readAll() {
-        byte[] result = Bytes.toArray(received);
-        received.clear();
-        return result;
+        return received.readAll();
+    }
+
+    // Return a blocking input stream of the received data.  Reads wait until data is received,
+    // the read timeout expires, or the UART is disconnected (end of stream once the buffered data
+    // is consumed).
+    public synchronized InputStream getInputStream() {
+        if (inputStream == null) {
+            inputStream = new UARTInputStream();
+        }
+        return inputStream;
+    }
+
+    // Return a blocking output stream to the UART.  Writes wait until the device acknowledges all
+    // the written data, so don't write to the stream from a Bluetooth callback.
+    public synchronized OutputStream getOutputStream() {
+        if (outputStream == null) {
+            outputStream = new UARTOutputStream();
+        }
+        return outputStream;
+    }
+
+    // Set how long in milliseconds a blocking stream read waits for data before throwing an
+    // InterruptedIOException.  Zero (the default) waits forever.
+    public synchronized void setReadTimeout(int timeout) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Read timeout can't be negative.");
+        }
+        readTimeout = timeout;
+    }
+
+    public synchronized int getReadTimeout() {
+        return readTimeout;
+    }
+
+    // Split received data into frames with the framer and pass them to the listener instead of
+    // buffering it.  Frames are decoded on the Bluetooth callback thread as data arrives.  Data
+    // already buffered is fed to the framer first.  Set a null framer to go back to buffering.
+    public void setFramer(Framer framer, Framer.Listener listener) {
+        if (framer != null && listener == null) {
+            throw new IllegalArgumentException("A framer needs a listener.");
+        }
+        synchronized (framerLock) {
+            byte[] buffered;
+            synchronized (this) {
+                this.framer = framer;
+                this.frameListener = listener;
+                buffered = framer != null ? received.readAll() : null;
+            }
+            if (buffered != null && buffered.length > 0) {
+                framer.feed(buffered, listener);
+            }
+        }
+    }
+
+    public Framer getFramer() {
+        synchronized (framerLock) {
+            return framer;
+        }
+    }
+
+    // Encode data as a frame with the framer and write it.
+    public Promise<Void, Integer, Integer> writeFrame(byte[] data) {
+        Framer current = getFramer();
+        if (current == null) {
+            throw new IllegalStateException("No framer is set.");
+        }
+        return write(current.encode(data));
+    }
+
+    // Read exactly count bytes without blocking.  The promise resolves with the bytes once enough
+    // have been received, or is rejected if the UART disconnects first.  Async reads complete in
+    // the order they are made, and are checked as data arrives so no thread waits for them.  They
+    // don't complete while a framer is set.
+    public Promise<byte[], Void, Void> readAsync(int count) {
+        if (count < 0) {
+            throw new IllegalArgumentException("Read count can't be negative.");
+        }
+        return queueRead(new AsyncRead(count, (byte)0));
+    }
+
+    // Read up to and including the next delimiter byte without blocking, e.g. a newline ended
+    // response.  Only bytes received since the last check are searched for the delimiter.
+    public Promise<byte[], Void, Void> readUntilAsync(byte delimiter) {
+        return queueRead(new AsyncRead(-1, delimiter));
+    }
+
+    // Compress sent data and decompress received data with a streaming LZ compressor using a window
+    // of windowSize bytes.  The device must use the same compression from now on in both
+    // directions, it applies to data received after the call while data already buffered stays as
+    // it is.  Compression is turned off when the UART disconnects, since the device starts over
+    // with empty history.  With compression on, write promises count compressed bytes.
+    public void setCompression(boolean enabled, int windowSize) {
+        setCompression(enabled, windowSize, false);
+    }
+
+    // Turn compression on or off, and if decompressBuffered is set decompress the data already
+    // buffered, which negotiation uses for compressed data that came in with the reply.
+    private void setCompression(boolean enabled, int windowSize, boolean decompressBuffered) {
+        synchronized (framerLock) {
+            synchronized (this) {
+                decompressor = enabled ? new LZDecoder(windowSize) : null;
+                if (enabled && decompressBuffered && !received.isEmpty()) {
+                    byte[] raw = received.readAll();
+                    byte[] decompressed = decompressor.decompress(raw);
+                    received.write(decompressed);
+                    receivedEnd += decompressed.length - raw.length;
+                }
+            }
+        }
+        synchronized (compressionLock) {
+            compressor = enabled ? new LZEncoder(windowSize) : null;
+        }
+    }
+
+    // Negotiate compression with the device.  The request is the bytes 0 'L' 'Z', the version and
+    // log2 of the window size, and a device which supports compression answers 'L' 'Z', the version
+    // and the log2 of the window size it accepts, then compresses everything it sends after that.
+    // Any other 4 byte answer leaves compression off.  The promise resolves with whether
+    // compression was turned on.  Don't write until it completes.  The reply is read from the
+    // receive buffer, so negotiate before setting a framer or registering data callbacks, and
+    // again after every connect since disconnecting turns compression off.
+    public Promise<Boolean, Void, Void> negotiateCompression(final int windowSize) {
+        if (windowSize < 256 || windowSize > LZEncoder.MAX_WINDOW || Integer.bitCount(windowSize) != 1) {
+            throw new IllegalArgumentException("Window size must be a power of 2 from 256 to " + LZEncoder.MAX_WINDOW + " bytes.");
+        }
+        if (getFramer() != null || dataCallbacks.length > 0) {
+            throw new IllegalStateException("Can't negotiate compression while a framer or data callback is set.");
+        }
+        final byte windowLog = (byte)Integer.numberOfTrailingZeros(windowSize);
+        final DeferredObject<Boolean, Void, Void> result = new DeferredObject<Boolean, Void, Void>();
+        readAsync(4).then(new DoneCallback<byte[]>() {
+            @Override
+            public void onDone(byte[] reply) {
+                boolean accepted = reply[0] == 'L' && reply[1] == 'Z' && reply[2] == COMPRESSION_VERSION && reply[3] == windowLog;
+                if (accepted) {
+                    // Anything buffered after the reply is already compressed.
+                    setCompression(true, windowSize, true);
+                }
+                result.resolve(accepted);
+            }
+        }, new FailCallback<Void>() {
+            @Override
+            public void onFail(Void ignored) {
+                result.reject(null);
+            }
+        });
+        synchronized (compressionLock) {
+            coalescer.queueImmediately(ByteBuffer.wrap(new byte[]{ 0, 'L', 'Z', COMPRESSION_VERSION, windowLog }));
+        }
+        coalescer.send();
+        return result.promise();
+    }
+
+    public boolean isCompressed() {
+        synchronized (compressionLock) {
+            return compressor != null;
+        }
+    }
+
+    // Compressor of sent data, for its byte counts and ratio, or null when compression is off.
+    public LZEncoder getCompressor() {
+        synchronized (compressionLock) {
+            return compressor;
+        }
+    }
+
+    // Decompressor of received data, or null when compression is off.
+    public LZDecoder getDecompressor() {
+        synchronized (framerLock) {
+            return decompressor;
+        }
     }
 
     // Read bytes as a UTF-8 string up to length bytes long.  Less data than requested might be returned!
+    // A character split at the end is held back until the rest of its bytes are read, and text
+    // decoded by readLine but not returned yet comes first.
     public synchronized String readString(int length) {
-        return new String(read(length), Charset.forName("UTF-8"));
+        textDecoder.decode(received, length);
+        return textDecoder.take();
     }
 
     // Read all bytes as a UTF-8 string.
     public synchronized String readAllString() {
-        return new String(readAll(), Charset.forName("UTF-8"));
+        textDecoder.decode(received, received.size());
+        return textDecoder.take();
+    }
+
+    // Read the next line of UTF-8 text, without its \n or \r\n ending, or return null if a complete
+    // line hasn't been received yet.  Received bytes are decoded into pending text, so they aren't
+    // returned by byte reads afterwards.
+    public synchronized String readLine() {
+        textDecoder.decode(received, received.size());
+        return textDecoder.readLine();
+    }
+
+    // Read received data directly into the buffer without blocking.  Returns the number of bytes
+    // read, which is 0 if nothing is buffered, or -1 once the UART is disconnected and all
+    // received data has been read.
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (channelClosed) {
+            throw new ClosedChannelException();
+        }
+        if (received.isEmpty() && disconnected) {
+            return -1;
+        }
+        return received.read(dst);
+    }
+
+    // Write the remaining bytes of the buffer to the UART, blocking until the device acknowledges
+    // all of them.  Don't call it from a Bluetooth callback.
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (channelClosed) {
+            throw new ClosedChannelException();
+        }
+        return writeBlocking(src);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !channelClosed;
+    }
+
+    // Close the channel and disconnect from the UART.
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (channelClosed) {
+                return;
+            }
+            channelClosed = true;
+        }
+        if (gatt.getGatt() != null) {
+            disconnect();
+        }
     }
 
     //
@@ -213,26 +769,372 @@ public class UART {
     // UUID for the BTLE client characteristic which is necessary for notifications.
     private static UUID CLIENT_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
-    private static AsyncBluetoothLeScan scanner;
-    private static DeferredObject<UART, Void, Void> found;
+    private final BluetoothDevice device;
     private AsyncBluetoothGatt gatt;
     private BluetoothGattCharacteristic rx;
     private BluetoothGattCharacteristic tx;
-    // TODO: This deque of bytes is not efficient for storing the buffer of received data.
-    private ArrayDeque<Byte> received;
-    private ArrayList<Callback> callbacks;
+    private ByteRingBuffer received;
+    // Decoded text not yet returned by the string reads.
+    private final TextDecoder textDecoder = new TextDecoder();
+    // Registered callbacks, replaced with a new array on every change so events are dispatched
+    // without locking or allocating.
+    private volatile Callback[] callbacks = new Callback[0];
+    private volatile DataCallback[] dataCallbacks = new DataCallback[0];
+    // Buffer and view passed to data callbacks, grown to the largest packet.
+    private byte[] dataScratch;
+    private ByteBuffer dataView;
+    private final Object callbackLock = new Object();
+    private boolean disconnected;
+    private int readTimeout;
+    private UARTInputStream inputStream;
+    private UARTOutputStream outputStream;
+    private volatile boolean channelClosed;
+    private UARTTransmitter transmitter;
+    private UARTCoalescer coalescer;
+    private final ThroughputMeter receiveMeter = new ThroughputMeter();
+    // Held while handling received data, taken before the UART lock.
+    private final Object framerLock = new Object();
+    // Compression of sent and received data, null when off.  The compressor is guarded by the
+    // compression lock and the decompressor by the framer lock.
+    private final Object compressionLock = new Object();
+    private LZEncoder compressor;
+    private LZDecoder decompressor;
+    private Framer framer;
+    private Framer.Listener frameListener;
+    // Async reads waiting for data, oldest first.
+    private final ArrayDeque<AsyncRead> asyncReads = new ArrayDeque<AsyncRead>();
+    // Stream offset of the end of the received buffer, used to find where a delimiter search
+    // stopped even after other reads consumed bytes.
+    private long receivedEnd;
+
+    // Pending readAsync or readUntilAsync call.
+    private static class AsyncRead {
+        // Number of bytes to read, or -1 to read up to the delimiter.
+        final int count;
+        final byte delimiter;
+        final DeferredObject<byte[], Void, Void> deferred = new DeferredObject<byte[], Void, Void>();
+        // Stream offset up to which the received bytes were searched for the delimiter.
+        long scanned;
+        byte[] result;
+
+        AsyncRead(int count, byte delimiter) {
+            this.count = count;
+            this.delimiter = delimiter;
+        }
+
+        // Number of bytes from the head of the buffer which complete the read, or -1 if more are
+        // needed.  head is the stream offset of the first buffered byte.
+        int match(ByteRingBuffer buffer, long head) {
+            int size = buffer.size();
+            if (count >= 0) {
+                return size >= count ? count : -1;
+            }
+            for (int i = (int)Math.max(0, scanned - head); i < size; ++i) {
+                if (buffer.get(i) == delimiter) {
+                    return i + 1;
+                }
+            }
+            scanned = head + size;
+            return -1;
+        }
+    }
+
+    // Events passed to the callbacks.
+    private static final int CONNECTED = 0;
+    private static final int DISCONNECTED = 1;
+    private static final int AVAILABLE = 2;
+
+    // Call every registered callback for the event.
+    private void dispatch(int event) {
+        Callback[] current = callbacks;
+        for (int i = 0; i < current.length; ++i) {
+            switch (event) {
+                case CONNECTED:
+                    current[i].connected();
+                    break;
+                case DISCONNECTED:
+                    current[i].disconnected();
+                    break;
+                default:
+                    current[i].available();
+                    break;
+            }
+        }
+    }
+
+    // Copy of the array with the item added, or the array itself if it has the item.
+    private static <T> T[] added(T[] array, T item) {
+        for (T existing : array) {
+            if (existing.equals(item)) {
+                return array;
+            }
+        }
+        T[] result = Arrays.copyOf(array, array.length + 1);
+        result[array.length] = item;
+        return result;
+    }
+
+    // Copy of the array without the item, or the array itself if it doesn't have the item.
+    private static <T> T[] removed(T[] array, T item) {
+        for (int i = 0; i < array.length; ++i) {
+            if (array[i].equals(item)) {
+                T[] result = Arrays.copyOf(array, array.length - 1);
+                System.arraycopy(array, i + 1, result, i, array.length - i - 1);
+                return result;
+            }
+        }
+        return array;
+    }
+
+    // Decompress data if compression is on, then pass it to the data callbacks, or add it to
+    // received buffer, or feed it to the framer if one is set.  Returns true if data was buffered.
+    private boolean updateReceived(BluetoothGattCharacteristic rx) {
+        byte[] value = rx.getValue();
+        if (value == null) {
+            return false;
+        }
+        receiveMeter.record(value.length);
+        List<AsyncRead> completed;
+        DataCallback[] data;
+        synchronized (framerLock) {
+            if (decompressor != null) {
+                value = decompressor.decompress(value);
+                if (value.length == 0) {
+                    return false;
+                }
+            }
+            data = dataCallbacks;
+            if (data.length > 0) {
+                completed = null;
+            }
+            else if (framer != null) {
+                framer.feed(value, 0, value.length, frameListener);
+                return false;
+            }
+            else {
+                synchronized (this) {
+                    int stored = received.write(value, 0, value.length);
+                    // Dropping the oldest bytes still moves the end of the stream by the whole value.
+                    receivedEnd += received.getOverflowPolicy() == ByteRingBuffer.OverflowPolicy.DROP_NEWEST ? stored : value.length;
+                    completed = completeReads();
+                    // Wake up blocked stream reads.
+                    notifyAll();
+                }
+            }
+        }
+        if (data.length > 0) {
+            dispatchData(data, value);
+            return false;
+        }
+        resolveReads(completed);
+        return true;
+    }
+
+    // Pass received bytes to the data callbacks, outside of any lock.  The bytes are copied into
+    // one read-only view reused for every packet, only touched on the Bluetooth callback thread.
+    private void dispatchData(DataCallback[] data, byte[] value) {
+        if (dataScratch == null || dataScratch.length < value.length) {
+            dataScratch = new byte[Math.max(value.length, 20)];
+            dataView = ByteBuffer.wrap(dataScratch).asReadOnlyBuffer();
+        }
+        System.arraycopy(value, 0, dataScratch, 0, value.length);
+        for (int i = 0; i < data.length; ++i) {
+            dataView.clear();
+            dataView.limit(value.length);
+            data[i].received(this, dataView);
+        }
+    }
+
+    private Promise<byte[], Void, Void> queueRead(AsyncRead read) {
+        List<AsyncRead> completed;
+        boolean failed;
+        synchronized (this) {
+            asyncReads.add(read);
+            completed = completeReads();
+            failed = disconnected && asyncReads.remove(read);
+        }
+        resolveReads(completed);
+        if (failed) {
+            read.deferred.reject(null);
+        }
+        return read.deferred.promise();
+    }
+
+    // Take the bytes of the async reads which can complete, oldest first.  Must hold the UART lock.
+    private List<AsyncRead> completeReads() {
+        List<AsyncRead> completed = null;
+        while (!asyncReads.isEmpty()) {
+            AsyncRead read = asyncReads.peek();
+            int length = read.match(received, receivedEnd - received.size());
+            if (length < 0) {
+                break;
+            }
+            read.result = received.read(length);
+            asyncReads.poll();
+            if (completed == null) {
+                completed = new ArrayList<AsyncRead>();
+            }
+            completed.add(read);
+        }
+        return completed;
+    }
+
+    private static void resolveReads(List<AsyncRead> reads) {
+        if (reads == null) {
+            return;
+        }
+        for (AsyncRead read : reads) {
+            read.deferred.resolve(read.result);
+        }
+    }
+
+    // Wait until received data is available.  Returns false at the end of the stream, i.e. the
+    // UART is disconnected and all received data has been read.  Must hold the UART lock.
+    private boolean awaitReceived(UARTInputStream stream) throws IOException {
+        long deadline = readTimeout > 0 ? now() + readTimeout : 0;
+        while (received.isEmpty()) {
+            if (stream.closed) {
+                throw new IOException("Stream closed.");
+            }
+            if (disconnected) {
+                return false;
+            }
+            long wait = 0;
+            if (deadline != 0) {
+                wait = deadline - now();
+                if (wait <= 0) {
+                    throw new InterruptedIOException("Read timed out.");
+                }
+            }
+            try {
+                wait(wait);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Read interrupted.");
+            }
+        }
+        return true;
+    }
 
-    // Convenience method for enumerating all valid callbacks.
-    private synchronized void enumerateCallbacks(Function<Callback, Void> function) {
-        for (Callback callback : callbacks) {
-            if (callback != null) {
-                function.apply(callback);
+    // Compress the remaining bytes of the buffer when compression is on and write them right away.
+    // Only queueing happens under the compression lock, so compressed data keeps its order without
+    // holding the lock while the transmitter starts GATT writes.
+    private Promise<Void, Integer, Integer> writeImmediately(ByteBuffer src) {
+        Promise<Void, Integer, Integer> result = null;
+        synchronized (compressionLock) {
+            if (compressor != null) {
+                byte[] data = new byte[src.remaining()];
+                src.get(data);
+                result = coalescer.queueImmediately(ByteBuffer.wrap(compressor.compress(data)));
             }
         }
+        if (result == null) {
+            return coalescer.writeImmediately(src);
+        }
+        coalescer.send();
+        return result;
+    }
+
+    // Queue the remaining bytes of the buffer and wait until they are all acknowledged.
+    private int writeBlocking(ByteBuffer src) throws IOException {
+        int count = src.remaining();
+        Promise<Void, Integer, Integer> write = writeImmediately(src);
+        try {
+            write.waitSafely();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Write interrupted.");
+        }
+        if (!write.isResolved()) {
+            throw new IOException("Write failed.");
+        }
+        return count;
     }
 
-    // Add data to received buffer.
-    private synchronized void updateReceived(BluetoothGattCharacteristic rx) {
-        received.addAll(Bytes.asList(rx.getValue()));
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // Input stream which reads from the received data buffer.
+    private class UARTInputStream extends InputStream {
+        private volatile boolean closed;
+
+        @Override
+        public int read() throws IOException {
+            synchronized (UART.this) {
+                if (closed) {
+                    throw new IOException("Stream closed.");
+                }
+                return awaitReceived(this) ? received.read(1)[0] & 0xFF : -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            synchronized (UART.this) {
+                if (closed) {
+                    throw new IOException("Stream closed.");
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                return awaitReceived(this) ? received.read(b, off, len) : -1;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return UART.this.available();
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            synchronized (UART.this) {
+                return received.skip((int)Math.min(n, Integer.MAX_VALUE));
+            }
+        }
+
+        // Closing the stream only stops reads from it, the UART stays connected.
+        @Override
+        public void close() {
+            synchronized (UART.this) {
+                closed = true;
+                UART.this.notifyAll();
+            }
+        }
+    }
+
+    // Output stream which writes to the UART and waits for the data to be acknowledged, so flush
+    // has nothing to do.
+    private class UARTOutputStream extends OutputStream {
+        private final byte[] single = new byte[1];
+        private boolean closed;
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            single[0] = (byte)b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (closed) {
+                throw new IOException("Stream closed.");
+            }
+            writeBlocking(ByteBuffer.wrap(b, off, len));
+        }
+
+        // Closing the stream only stops writes to it, the UART stays connected.
+        @Override
+        public synchronized void close() {
+            closed = true;
+        }
     }
 }
@@ -0,0 +1,362 @@
+package betterbluetoothle.services;
+
+import org.jdeferred.DoneCallback;
+import org.jdeferred.FailCallback;
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+import org.jdeferred.impl.DeferredObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import betterbluetoothle.io.ByteRingBuffer;
+
+// Nagle style coalescing of small UART writes.  While a delay is set, written bytes are copied into
+// a pending buffer and handed to the transmitter in one batch once a packet fills up, the delay
+// since the first pending byte expires, or flush is called.  Each write keeps its own promise,
+// which is completed from the progress of the batches that carry its bytes.  With no delay writes
+// go straight to the transmitter.  Batches are queued under the lock and handed to the
+// transmitter, in order, by one thread at a time after releasing it, because the transmitter takes
+// the locks of GATT writes whose completion on the binder thread comes back here.
+class UARTCoalescer {
+
+    // Coalesced write, start and end are offsets in the stream of coalesced bytes.
+    private static class Entry {
+        final long start;
+        final long end;
+        final DeferredObject<Void, Integer, Integer> deferred = new DeferredObject<Void, Integer, Integer>();
+
+        Entry(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Bytes to hand to the transmitter, start and end are offsets in the stream of coalesced
+    // bytes.  A write which bypasses coalescing has no offsets and completes its own deferred.
+    private static class Batch {
+        final ByteBuffer data;
+        final long start;
+        final long end;
+        final DeferredObject<Void, Integer, Integer> deferred;
+
+        Batch(ByteBuffer data, long start, long end) {
+            this.data = data;
+            this.start = start;
+            this.end = end;
+            this.deferred = null;
+        }
+
+        Batch(ByteBuffer data) {
+            this.data = data;
+            this.start = -1;
+            this.end = -1;
+            this.deferred = new DeferredObject<Void, Integer, Integer>();
+        }
+    }
+
+    private final UARTTransmitter transmitter;
+    private final ByteRingBuffer pending = new ByteRingBuffer();
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    // Batches not yet handed to the transmitter, and whether a thread is handing them over.
+    private final ArrayDeque<Batch> unsent = new ArrayDeque<Batch>();
+    private boolean sending;
+    private ScheduledExecutorService scheduler;
+    private long delay;
+    private ScheduledFuture<?> timer;
+    private boolean timerPending;
+    // Offsets of the end of the coalesced bytes accepted, handed to the transmitter, and
+    // acknowledged.
+    private long queued;
+    private long flushed;
+    private long acknowledged;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (UARTCoalescer.this) {
+                timer = null;
+                timerPending = false;
+            }
+            flush();
+        }
+    };
+
+    UARTCoalescer(UARTTransmitter transmitter) {
+        this.transmitter = transmitter;
+    }
+
+    // Coalesce writes for up to delay milliseconds using the scheduler for the delay timer.  A
+    // delay of 0 turns coalescing off and flushes any pending bytes.
+    void setDelay(long delay, ScheduledExecutorService scheduler) {
+        if (delay < 0) {
+            throw new IllegalArgumentException("Coalescing delay can't be negative.");
+        }
+        if (delay > 0 && scheduler == null) {
+            throw new IllegalArgumentException("Coalescing needs a scheduler.");
+        }
+        synchronized (this) {
+            this.delay = delay;
+            this.scheduler = scheduler;
+        }
+        if (delay == 0) {
+            flush();
+        }
+    }
+
+    synchronized long getDelay() {
+        return delay;
+    }
+
+    // Number of bytes waiting to be coalesced.
+    synchronized int getPending() {
+        return pending.size();
+    }
+
+    // Write bytes, coalescing them with other small writes if a delay is set.
+    Promise<Void, Integer, Integer> write(byte[] data, int offset, int length) {
+        boolean direct;
+        synchronized (this) {
+            // Nothing can be pending without a delay, so order is kept by writing directly once
+            // earlier batches are handed over.
+            direct = (delay == 0 || length == 0) && unsent.isEmpty() && !sending;
+        }
+        if (direct) {
+            return transmitter.write(ByteBuffer.wrap(data, offset, length));
+        }
+        Promise<Void, Integer, Integer> result = queue(data, offset, length);
+        send();
+        return result;
+    }
+
+    // Queue bytes like write but don't hand anything to the transmitter, call send once any locks
+    // are released.  Lets a caller fix the order of writes under its own lock.
+    Promise<Void, Integer, Integer> queue(byte[] data, int offset, int length) {
+        synchronized (this) {
+            if (delay == 0 || length == 0) {
+                Batch batch = new Batch(ByteBuffer.wrap(data, offset, length));
+                unsent.add(batch);
+                return batch.deferred.promise();
+            }
+            Entry entry = new Entry(queued, queued + length);
+            pending.write(data, offset, length);
+            queued += length;
+            entries.add(entry);
+            int packetSize = transmitter.getPacketSize();
+            int full = pending.size() - pending.size() % packetSize;
+            if (full > 0) {
+                flushLocked(full);
+            }
+            if (pending.isEmpty()) {
+                cancelTimer();
+            }
+            else if (!timerPending) {
+                timerPending = true;
+                timer = scheduler.schedule(flushTask, delay, TimeUnit.MILLISECONDS);
+            }
+            return entry.deferred.promise();
+        }
+    }
+
+    // Send pending bytes then the buffer immediately, bypassing the coalescing delay.
+    Promise<Void, Integer, Integer> writeImmediately(ByteBuffer data) {
+        boolean direct;
+        synchronized (this) {
+            direct = pending.isEmpty() && unsent.isEmpty() && !sending;
+        }
+        if (direct) {
+            return transmitter.write(data);
+        }
+        Promise<Void, Integer, Integer> result = queueImmediately(data);
+        send();
+        return result;
+    }
+
+    // Queue pending bytes then the buffer like writeImmediately, call send to send them.
+    Promise<Void, Integer, Integer> queueImmediately(ByteBuffer data) {
+        synchronized (this) {
+            flushLocked(pending.size());
+            Batch batch = new Batch(data);
+            unsent.add(batch);
+            return batch.deferred.promise();
+        }
+    }
+
+    // Send all pending bytes now.
+    void flush() {
+        synchronized (this) {
+            flushLocked(pending.size());
+        }
+        send();
+    }
+
+    // Hand queued batches to the transmitter in order.  The thread which finds no other thread
+    // sending sends every batch, including ones queued meanwhile, and the others leave theirs to
+    // it.  Must not hold the lock.
+    void send() {
+        synchronized (this) {
+            if (sending) {
+                return;
+            }
+            sending = true;
+        }
+        try {
+            while (true) {
+                Batch batch;
+                synchronized (this) {
+                    batch = unsent.poll();
+                    if (batch == null) {
+                        sending = false;
+                        return;
+                    }
+                }
+                listen(batch, transmitter.write(batch.data));
+            }
+        }
+        catch (RuntimeException e) {
+            synchronized (this) {
+                sending = false;
+            }
+            throw e;
+        }
+    }
+
+    // Drop pending bytes and fail their writes, called when the UART disconnects.  Writes already
+    // handed to the transmitter are failed by the transmitter.
+    void cancel() {
+        List<Entry> cancelled = new ArrayList<Entry>();
+        synchronized (this) {
+            cancelTimer();
+            pending.clear();
+            Iterator<Entry> i = entries.iterator();
+            while (i.hasNext()) {
+                Entry entry = i.next();
+                if (entry.end > flushed) {
+                    cancelled.add(entry);
+                    i.remove();
+                }
+            }
+            queued = flushed;
+        }
+        for (Entry entry : cancelled) {
+            entry.deferred.reject(null);
+        }
+    }
+
+    // Must hold the lock.
+    private void flushLocked(int count) {
+        if (count == 0) {
+            return;
+        }
+        if (count == pending.size()) {
+            cancelTimer();
+        }
+        byte[] batch = pending.read(count);
+        long start = flushed;
+        flushed += count;
+        unsent.add(new Batch(ByteBuffer.wrap(batch), start, flushed));
+    }
+
+    // Must hold the lock.
+    private void cancelTimer() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        timerPending = false;
+    }
+
+    // Complete the writes in the batch as it is acknowledged.  Progress notifications sent before
+    // this is called are missed, so completion of the whole batch is handled too.
+    private void listen(final Batch batch, Promise<Void, Integer, Integer> promise) {
+        if (batch.deferred != null) {
+            promise.progress(new ProgressCallback<Integer>() {
+                @Override
+                public void onProgress(Integer progress) {
+                    batch.deferred.notify(progress);
+                }
+            }).done(new DoneCallback<Void>() {
+                @Override
+                public void onDone(Void result) {
+                    batch.deferred.resolve(null);
+                }
+            }).fail(new FailCallback<Integer>() {
+                @Override
+                public void onFail(Integer status) {
+                    batch.deferred.reject(status);
+                }
+            });
+            return;
+        }
+        promise.progress(new ProgressCallback<Integer>() {
+            @Override
+            public void onProgress(Integer progress) {
+                acknowledge(batch.start + progress);
+            }
+        }).done(new DoneCallback<Void>() {
+            @Override
+            public void onDone(Void result) {
+                acknowledge(batch.end);
+            }
+        }).fail(new FailCallback<Integer>() {
+            @Override
+            public void onFail(Integer status) {
+                failed(batch, status);
+            }
+        });
+    }
+
+    // Coalesced bytes up to offset were acknowledged.
+    private void acknowledge(long offset) {
+        List<Entry> completed = null;
+        Entry partial = null;
+        synchronized (this) {
+            if (offset <= acknowledged) {
+                return;
+            }
+            acknowledged = offset;
+            while (!entries.isEmpty() && entries.peek().end <= acknowledged) {
+                if (completed == null) {
+                    completed = new ArrayList<Entry>();
+                }
+                completed.add(entries.poll());
+            }
+            if (!entries.isEmpty() && entries.peek().start < acknowledged) {
+                partial = entries.peek();
+            }
+        }
+        if (completed != null) {
+            for (Entry entry : completed) {
+                entry.deferred.notify((int)(entry.end - entry.start));
+                entry.deferred.resolve(null);
+            }
+        }
+        if (partial != null) {
+            partial.deferred.notify((int)(offset - partial.start));
+        }
+    }
+
+    // Fail the writes with bytes in the failed batch.
+    private void failed(Batch batch, Integer status) {
+        List<Entry> failed = new ArrayList<Entry>();
+        synchronized (this) {
+            Iterator<Entry> i = entries.iterator();
+            while (i.hasNext()) {
+                Entry entry = i.next();
+                if (entry.start < batch.end && entry.end > batch.start) {
+                    failed.add(entry);
+                    i.remove();
+                }
+            }
+        }
+        for (Entry entry : failed) {
+            entry.deferred.reject(status);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package betterbluetoothle.services;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.Context;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.jdeferred.AlwaysCallback;
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.scan.ScanHub;
+
+// Connects to and manages many UART devices, e.g. for a gateway talking to a fleet of devices.
+// Connection setup is limited to a few devices at a time, since Android stacks handle concurrent
+// connection attempts poorly, and the rest wait in order.  Events and received data from every
+// device are merged into one stream to a single listener, tagged with the UART they came from and
+// delivered on one shared executor instead of a thread per device.  The write coalescing
+// scheduler is shared by all devices too.
+public class UARTHub {
+
+    public static final int DEFAULT_MAX_CONNECTING = 2;
+
+    // Receives events and data from every UART in the hub.  Calls are made on the hub's executor.
+    public interface Listener {
+        public void connected(UART uart);
+        public void disconnected(UART uart);
+        // Data received from the UART, the array belongs to the listener.
+        public void received(UART uart, byte[] data);
+    }
+
+    // Hub's state for one device.
+    private class Link implements UART.Callback {
+        final UART uart;
+        boolean connecting;
+        // Whether connect was called, a link which never started has nothing to disconnect.
+        boolean started;
+        boolean removed;
+
+        Link(UART uart) {
+            this.uart = uart;
+        }
+
+        @Override
+        public void connected() {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.connected(uart);
+                }
+            });
+        }
+
+        @Override
+        public void disconnected() {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.disconnected(uart);
+                }
+            });
+        }
+
+        @Override
+        public void available() {
+            final byte[] data = uart.readAll();
+            if (data.length == 0) {
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listener.received(uart, data);
+                }
+            });
+        }
+    }
+
+    private final Context context;
+    private final Listener listener;
+    private final Executor executor;
+    private final int maxConnecting;
+    // Links by device address, in the order they were added.
+    private final LinkedHashMap<String, Link> links = new LinkedHashMap<String, Link>();
+    private final ArrayDeque<Link> waiting = new ArrayDeque<Link>();
+    private final ArrayList<ScanHub.Subscription> discoveries = new ArrayList<ScanHub.Subscription>();
+    private int connecting;
+    private long coalescingDelay;
+    private ScheduledExecutorService scheduler;
+
+    // Create a hub which delivers events to the listener with the executor.  Use a single thread
+    // executor to keep the data of each device in order.  At most maxConnecting devices are set up
+    // at once.
+    public UARTHub(Context context, Listener listener, Executor executor, int maxConnecting) {
+        if (maxConnecting <= 0) {
+            throw new IllegalArgumentException("At least one connection must be allowed.");
+        }
+        this.context = context;
+        this.listener = listener;
+        this.executor = executor;
+        this.maxConnecting = maxConnecting;
+    }
+
+    // Create a hub which calls the listener on the Bluetooth callback threads.
+    public UARTHub(Context context, Listener listener) {
+        this(context, listener, MoreExecutors.sameThreadExecutor(), DEFAULT_MAX_CONNECTING);
+    }
+
+    // Add a device and queue it to be connected.  Returns the device's UART, which is the existing
+    // one if the device was already added.  Devices stay in the hub when they disconnect, until
+    // removed.
+    public UART add(BluetoothDevice device) {
+        Link link;
+        synchronized (this) {
+            link = links.get(device.getAddress());
+            if (link != null) {
+                return link.uart;
+            }
+            link = new Link(new UART(device, context, false));
+            if (scheduler != null) {
+                link.uart.setWriteCoalescing(coalescingDelay, scheduler);
+            }
+            link.uart.register(link);
+            links.put(device.getAddress(), link);
+            waiting.add(link);
+        }
+        connectWaiting();
+        return link.uart;
+    }
+
+    // Scan for UART devices with the adapter's shared scan and add each one found.  Cancel the
+    // returned subscription to stop discovering.
+    public ScanHub.Subscription discover(BluetoothAdapter adapter) {
+        return discover(ScanHub.forAdapter(adapter));
+    }
+
+    public ScanHub.Subscription discover(ScanHub scanHub) {
+        ScanHub.Subscription subscription = scanHub.subscribe(UART.UART_UUID);
+        synchronized (this) {
+            discoveries.add(subscription);
+        }
+        subscription.promise().progress(new ProgressCallback<AsyncBluetoothLeScan.ScanResult>() {
+            @Override
+            public void onProgress(AsyncBluetoothLeScan.ScanResult progress) {
+                add(progress.device);
+            }
+        });
+        return subscription;
+    }
+
+    // Disconnect a device, release its GATT client and remove it from the hub.  A device still
+    // waiting to be set up is just dropped.
+    public void remove(UART uart) {
+        Link link;
+        boolean started;
+        synchronized (this) {
+            link = links.get(uart.getDevice().getAddress());
+            if (link == null || link.uart != uart) {
+                return;
+            }
+            links.remove(uart.getDevice().getAddress());
+            waiting.remove(link);
+            link.removed = true;
+            started = link.started;
+        }
+        uart.unregister(link);
+        if (started) {
+            uart.closeGatt();
+        }
+    }
+
+    // Stop discovering, disconnect every device and release their GATT clients.
+    public void close() {
+        List<ScanHub.Subscription> subscriptions;
+        List<UART> uarts;
+        synchronized (this) {
+            subscriptions = new ArrayList<ScanHub.Subscription>(discoveries);
+            discoveries.clear();
+            uarts = getUARTs();
+            // Don't start waiting devices as the connecting ones are removed.
+            waiting.clear();
+        }
+        for (ScanHub.Subscription subscription : subscriptions) {
+            subscription.cancel();
+        }
+        for (UART uart : uarts) {
+            remove(uart);
+        }
+    }
+
+    // Coalesce writes on every device, current and future, sharing the scheduler.
+    public void setWriteCoalescing(long delay, ScheduledExecutorService scheduler) {
+        List<UART> uarts;
+        synchronized (this) {
+            coalescingDelay = delay;
+            this.scheduler = delay > 0 ? scheduler : null;
+            uarts = getUARTs();
+        }
+        for (UART uart : uarts) {
+            uart.setWriteCoalescing(delay, scheduler);
+        }
+    }
+
+    // Get the UART of the device with the address, or null if it isn't in the hub.
+    public synchronized UART getUART(String address) {
+        Link link = links.get(address);
+        return link == null ? null : link.uart;
+    }
+
+    public synchronized List<UART> getUARTs() {
+        List<UART> uarts = new ArrayList<UART>(links.size());
+        for (Link link : links.values()) {
+            uarts.add(link.uart);
+        }
+        return uarts;
+    }
+
+    public synchronized int size() {
+        return links.size();
+    }
+
+    // Number of devices being set up now.
+    public synchronized int getConnecting() {
+        return connecting;
+    }
+
+    // Number of devices waiting to be set up.
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    // Received bytes per second summed over every device.  Each UART's own meters give the rate
+    // of one device.
+    public double getReceiveBytesPerSecond() {
+        double total = 0;
+        for (UART uart : getUARTs()) {
+            total += uart.getReceiveMeter().getBytesPerSecond();
+        }
+        return total;
+    }
+
+    // Acknowledged sent bytes per second summed over every device.
+    public double getTransmitBytesPerSecond() {
+        double total = 0;
+        for (UART uart : getUARTs()) {
+            total += uart.getTransmitMeter().getBytesPerSecond();
+        }
+        return total;
+    }
+
+    // Start setting up waiting devices while there are free connection slots.
+    private void connectWaiting() {
+        List<Link> starting = new ArrayList<Link>();
+        synchronized (this) {
+            while (connecting < maxConnecting && !waiting.isEmpty()) {
+                Link link = waiting.poll();
+                link.connecting = true;
+                connecting++;
+                starting.add(link);
+            }
+        }
+        for (final Link link : starting) {
+            Promise<Void, Integer, Void> setup = link.uart.connect();
+            boolean removed;
+            synchronized (this) {
+                link.started = true;
+                removed = link.removed;
+            }
+            if (removed) {
+                // Removed between leaving the waiting queue and connecting.
+                link.uart.closeGatt();
+            }
+            setup.always(new AlwaysCallback<Void, Integer>() {
+                @Override
+                public void onAlways(Promise.State state, Void resolved, Integer rejected) {
+                    setupDone(link, state == Promise.State.RESOLVED);
+                }
+            });
+        }
+    }
+
+    // A device finished connecting or failed to, free its slot for the next device.  A device
+    // which failed is dropped so discovery can add it again, and its GATT client is closed.
+    private void setupDone(Link link, boolean connected) {
+        synchronized (this) {
+            if (!link.connecting) {
+                return;
+            }
+            link.connecting = false;
+            connecting--;
+            if (!connected && links.get(link.uart.getDevice().getAddress()) == link) {
+                links.remove(link.uart.getDevice().getAddress());
+            }
+        }
+        if (!connected) {
+            link.uart.unregister(link);
+            link.uart.closeGatt();
+        }
+        connectWaiting();
+    }
+}
@@ -0,0 +1,622 @@
+package betterbluetoothle.services;
+
+import org.jdeferred.DoneCallback;
+import org.jdeferred.FailCallback;
+import org.jdeferred.Promise;
+import org.jdeferred.impl.DeferredObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import betterbluetoothle.io.ByteRingBuffer;
+import betterbluetoothle.io.CobsFramer;
+import betterbluetoothle.io.Framer;
+
+// Multiplexes independent byte streams, e.g. control, telemetry and logs, over one UART.  Each
+// channel's data is cut into small fragments sent as COBS frames of the channel id (1 byte)
+// followed by the data, and received frames are sorted into per channel buffers.
+//
+// Only a few fragments are handed to the UART at a time, and the next one is picked when one is
+// acknowledged.  Channels with a higher priority always go first, and channels with the same
+// priority share the link in proportion to their weights with weighted fair queueing.  A
+// control channel with a higher priority than the logs only waits for the fragments already in
+// flight, however much log data is queued.
+//
+// Writes fail while the UART is disconnected, and the channels carry on once it connects again.
+public class UARTMux implements Framer.Listener {
+
+    // Data bytes per frame, a frame with its channel id and COBS overhead fits a 20 byte packet.
+    public static final int DEFAULT_FRAGMENT_SIZE = 17;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 1;
+    public static final int MAX_CHANNELS = 256;
+
+    // Queued channel write, start and end are offsets in the channel's stream of sent bytes.
+    private static class Entry {
+        final long start;
+        final long end;
+        final DeferredObject<Void, Void, Void> deferred = new DeferredObject<Void, Void, Void>();
+
+        Entry(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Channels sharing a priority, with the virtual time of their fair queueing.
+    private static class Group {
+        final int priority;
+        final List<Channel> channels = new ArrayList<Channel>();
+        double virtualTime;
+
+        Group(int priority) {
+            this.priority = priority;
+        }
+    }
+
+    // Fragment handed to the UART.
+    private static class Fragment {
+        final Channel channel;
+        final byte[] frame;
+        final long end;
+
+        Fragment(Channel channel, byte[] frame, long end) {
+            this.channel = channel;
+            this.frame = frame;
+            this.end = end;
+        }
+    }
+
+    // Logical stream with its own send queue and receive buffer.
+    public class Channel {
+        private final int id;
+        private final Group group;
+        private final double weight;
+        private final ByteRingBuffer outgoing = new ByteRingBuffer();
+        private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+        private final ByteRingBuffer received = new ByteRingBuffer();
+        // Offsets of the end of the bytes queued and handed to the UART.
+        private long queued;
+        private long sent;
+        // Virtual start time of the channel's next fragment, the finish time of its last one
+        // unless it was idle.
+        private double start;
+        private long bytesSent;
+        private long bytesReceived;
+        private ChannelInputStream inputStream;
+        private ChannelOutputStream outputStream;
+
+        private Channel(int id, Group group, double weight) {
+            this.id = id;
+            this.group = group;
+            this.weight = weight;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public int getPriority() {
+            return group.priority;
+        }
+
+        public double getWeight() {
+            return weight;
+        }
+
+        // Queue data to send on the channel.  The promise resolves once all of it was written to
+        // the UART, and is rejected if a write fails or the UART disconnects first.
+        public Promise<Void, Void, Void> write(byte[] data) {
+            return write(data, 0, data.length);
+        }
+
+        public Promise<Void, Void, Void> write(byte[] data, int offset, int length) {
+            Entry entry;
+            synchronized (UARTMux.this) {
+                entry = new Entry(queued, queued + length);
+                if (disconnected) {
+                    entry.deferred.reject(null);
+                    return entry.deferred.promise();
+                }
+                if (length == 0 && entries.isEmpty()) {
+                    entry.deferred.resolve(null);
+                    return entry.deferred.promise();
+                }
+                if (outgoing.isEmpty()) {
+                    // Idle channels start at the current virtual time, so they don't save up credit.
+                    start = Math.max(start, group.virtualTime);
+                }
+                outgoing.write(data, offset, length);
+                queued += length;
+                entries.add(entry);
+            }
+            pump();
+            return entry.deferred.promise();
+        }
+
+        // Number of bytes queued but not yet handed to the UART.
+        public int getQueued() {
+            synchronized (UARTMux.this) {
+                return outgoing.size();
+            }
+        }
+
+        // Number of bytes received on the channel and not yet read.
+        public int available() {
+            synchronized (UARTMux.this) {
+                return received.size();
+            }
+        }
+
+        // Read up to count received bytes without blocking.
+        public byte[] read(int count) {
+            synchronized (UARTMux.this) {
+                return received.read(count);
+            }
+        }
+
+        public byte[] readAll() {
+            synchronized (UARTMux.this) {
+                return received.readAll();
+            }
+        }
+
+        // Limit how much received data is buffered for the channel, see UART.setReceiveBufferLimit.
+        public void setReceiveBufferLimit(int maxCapacity, ByteRingBuffer.OverflowPolicy policy) {
+            synchronized (UARTMux.this) {
+                received.setLimit(maxCapacity, policy);
+            }
+        }
+
+        public long getReceiveDropped() {
+            synchronized (UARTMux.this) {
+                return received.getDropped();
+            }
+        }
+
+        // Number of data bytes handed to the UART and received on the channel.
+        public long getBytesSent() {
+            synchronized (UARTMux.this) {
+                return bytesSent;
+            }
+        }
+
+        public long getBytesReceived() {
+            synchronized (UARTMux.this) {
+                return bytesReceived;
+            }
+        }
+
+        // Return a blocking input stream of the channel's received data, which ends when the UART
+        // disconnects and the data has been read.
+        public InputStream getInputStream() {
+            synchronized (UARTMux.this) {
+                if (inputStream == null) {
+                    inputStream = new ChannelInputStream(this);
+                }
+                return inputStream;
+            }
+        }
+
+        // Return an output stream whose writes wait until the data was written to the UART.
+        public OutputStream getOutputStream() {
+            synchronized (UARTMux.this) {
+                if (outputStream == null) {
+                    outputStream = new ChannelOutputStream(this);
+                }
+                return outputStream;
+            }
+        }
+    }
+
+    private final UART uart;
+    // Decodes received frames on the UART and encodes sent ones, encoding keeps no state.
+    private final CobsFramer framer = new CobsFramer();
+    private final UART.Callback callback = new UART.Callback() {
+        @Override
+        public void connected() {
+            UARTMux.this.connected();
+        }
+
+        @Override
+        public void disconnected() {
+            UARTMux.this.disconnected();
+        }
+
+        @Override
+        public void available() {
+        }
+    };
+    private final Channel[] channels = new Channel[MAX_CHANNELS];
+    // Groups by descending priority.
+    private final List<Group> groups = new ArrayList<Group>();
+    private int fragmentSize = DEFAULT_FRAGMENT_SIZE;
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int inFlight;
+    private boolean pumping;
+    private boolean pumpAgain;
+    private boolean disconnected;
+    private boolean closed;
+    private long framesSent;
+    private long framesReceived;
+    private long unknownFrames;
+
+    // Multiplex channels over the UART.  Data received by the UART is demultiplexed from then on,
+    // until the mux is closed.
+    public UARTMux(UART uart) {
+        this.uart = uart;
+        uart.setFramer(framer, this);
+        uart.register(callback);
+    }
+
+    public UART getUART() {
+        return uart;
+    }
+
+    // Stop multiplexing, the UART buffers received data again and stays connected.  Queued writes
+    // fail and the input streams end once their data has been read.
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        uart.unregister(callback);
+        if (uart.getFramer() == framer) {
+            uart.setFramer(null, null);
+        }
+        disconnected();
+    }
+
+    // Open a channel.  Channels with a higher priority are always sent first, and channels with
+    // the same priority get a share of the link proportional to their weight.
+    public synchronized Channel open(int id, int priority, double weight) {
+        if (id < 0 || id >= MAX_CHANNELS) {
+            throw new IllegalArgumentException("Channel id must be between 0 and " + (MAX_CHANNELS - 1) + ".");
+        }
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive.");
+        }
+        if (channels[id] != null) {
+            throw new IllegalStateException("Channel " + id + " is already open.");
+        }
+        int index = 0;
+        while (index < groups.size() && groups.get(index).priority > priority) {
+            index++;
+        }
+        if (index == groups.size() || groups.get(index).priority != priority) {
+            groups.add(index, new Group(priority));
+        }
+        Group group = groups.get(index);
+        Channel channel = new Channel(id, group, weight);
+        group.channels.add(channel);
+        channels[id] = channel;
+        return channel;
+    }
+
+    public Channel open(int id, int priority) {
+        return open(id, priority, 1);
+    }
+
+    // Get an open channel, or null.
+    public synchronized Channel getChannel(int id) {
+        return id >= 0 && id < MAX_CHANNELS ? channels[id] : null;
+    }
+
+    // Set the number of data bytes per frame.  Smaller fragments let a higher priority channel in
+    // sooner at the cost of more framing overhead.
+    public synchronized void setFragmentSize(int fragmentSize) {
+        if (fragmentSize <= 0) {
+            throw new IllegalArgumentException("Fragment size must be positive.");
+        }
+        this.fragmentSize = fragmentSize;
+    }
+
+    public synchronized int getFragmentSize() {
+        return fragmentSize;
+    }
+
+    // Set how many fragments can be waiting in the UART's transmit queue.  More keep the link
+    // busier but add to the wait of a higher priority channel.
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("At least one fragment must be in flight.");
+        }
+        synchronized (this) {
+            this.maxInFlight = maxInFlight;
+        }
+        pump();
+    }
+
+    public synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public synchronized long getFramesSent() {
+        return framesSent;
+    }
+
+    public synchronized long getFramesReceived() {
+        return framesReceived;
+    }
+
+    // Number of received frames which were empty or for a channel that isn't open.
+    public synchronized long getUnknownFrames() {
+        return unknownFrames;
+    }
+
+    // Sort a received frame into its channel's buffer.
+    @Override
+    public void onFrame(byte[] frame, int offset, int length) {
+        synchronized (this) {
+            Channel channel = length > 0 ? channels[frame[offset] & 0xFF] : null;
+            if (channel == null) {
+                unknownFrames++;
+                return;
+            }
+            framesReceived++;
+            channel.bytesReceived += length - 1;
+            channel.received.write(frame, offset + 1, length - 1);
+            notifyAll();
+        }
+    }
+
+    // Hand fragments to the UART while there is room in flight.  Write promises can complete
+    // inside the UART write, so a nested call just makes the running one loop again.
+    private void pump() {
+        synchronized (this) {
+            if (pumping) {
+                pumpAgain = true;
+                return;
+            }
+            pumping = true;
+        }
+        while (true) {
+            List<Fragment> fragments = new ArrayList<Fragment>();
+            synchronized (this) {
+                while (inFlight < maxInFlight) {
+                    Fragment fragment = next();
+                    if (fragment == null) {
+                        break;
+                    }
+                    fragments.add(fragment);
+                    inFlight++;
+                }
+                if (fragments.isEmpty() && !pumpAgain) {
+                    pumping = false;
+                    return;
+                }
+                pumpAgain = false;
+            }
+            for (Fragment fragment : fragments) {
+                send(fragment);
+            }
+        }
+    }
+
+    // Cut the next fragment from the highest priority group with queued data, choosing the
+    // channel whose fragment would finish first in virtual time.  Must hold the lock.
+    private Fragment next() {
+        if (disconnected) {
+            return null;
+        }
+        for (Group group : groups) {
+            Channel best = null;
+            double bestFinish = 0;
+            for (Channel channel : group.channels) {
+                int length = Math.min(fragmentSize, channel.outgoing.size());
+                if (length == 0) {
+                    continue;
+                }
+                double finish = channel.start + length / channel.weight;
+                if (best == null || finish < bestFinish) {
+                    best = channel;
+                    bestFinish = finish;
+                }
+            }
+            if (best == null) {
+                continue;
+            }
+            int length = Math.min(fragmentSize, best.outgoing.size());
+            group.virtualTime = best.start;
+            best.start = bestFinish;
+            byte[] data = new byte[1 + length];
+            data[0] = (byte)best.id;
+            best.outgoing.read(data, 1, length);
+            best.sent += length;
+            best.bytesSent += length;
+            framesSent++;
+            return new Fragment(best, framer.encode(data), best.sent);
+        }
+        return null;
+    }
+
+    private void send(final Fragment fragment) {
+        uart.write(fragment.frame).then(new DoneCallback<Void>() {
+            @Override
+            public void onDone(Void result) {
+                completed(fragment, true);
+            }
+        }, new FailCallback<Integer>() {
+            @Override
+            public void onFail(Integer status) {
+                completed(fragment, false);
+            }
+        });
+    }
+
+    // Complete the channel writes a fragment finished, or reject the ones it carried.
+    private void completed(Fragment fragment, boolean success) {
+        List<Entry> done = new ArrayList<Entry>();
+        synchronized (this) {
+            inFlight--;
+            ArrayDeque<Entry> entries = fragment.channel.entries;
+            while (!entries.isEmpty() && (success ? entries.peek().end <= fragment.end : entries.peek().start < fragment.end)) {
+                done.add(entries.poll());
+            }
+        }
+        for (Entry entry : done) {
+            if (success) {
+                entry.deferred.resolve(null);
+            }
+            else {
+                entry.deferred.reject(null);
+            }
+        }
+        pump();
+    }
+
+    // Accept writes again after reconnecting, unless the mux was closed.  The UART drops any
+    // partial frame when it disconnects, so decoding starts afresh.
+    private synchronized void connected() {
+        if (!closed) {
+            disconnected = false;
+        }
+    }
+
+    // Drop queued data, fail pending writes and end the input streams.
+    private void disconnected() {
+        List<Entry> failed = new ArrayList<Entry>();
+        synchronized (this) {
+            disconnected = true;
+            for (Group group : groups) {
+                for (Channel channel : group.channels) {
+                    channel.outgoing.clear();
+                    failed.addAll(channel.entries);
+                    channel.entries.clear();
+                }
+            }
+            notifyAll();
+        }
+        for (Entry entry : failed) {
+            entry.deferred.reject(null);
+        }
+    }
+
+    // Wait up to the timeout until the channel has received data.  Returns false at the end of the
+    // stream.  Must hold the lock.
+    private boolean awaitReceived(Channel channel, ChannelInputStream stream, int timeout) throws IOException {
+        long deadline = timeout > 0 ? System.nanoTime() / 1000000 + timeout : 0;
+        while (channel.received.isEmpty()) {
+            if (stream.closed) {
+                throw new IOException("Stream closed.");
+            }
+            if (disconnected) {
+                return false;
+            }
+            long wait = 0;
+            if (deadline != 0) {
+                wait = deadline - System.nanoTime() / 1000000;
+                if (wait <= 0) {
+                    throw new InterruptedIOException("Read timed out.");
+                }
+            }
+            try {
+                wait(wait);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Read interrupted.");
+            }
+        }
+        return true;
+    }
+
+    // Input stream of a channel's received data, reads wait up to the UART's read timeout.
+    private class ChannelInputStream extends InputStream {
+        private final Channel channel;
+        private volatile boolean closed;
+
+        ChannelInputStream(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int timeout = uart.getReadTimeout();
+            synchronized (UARTMux.this) {
+                if (closed) {
+                    throw new IOException("Stream closed.");
+                }
+                return awaitReceived(channel, this, timeout) ? channel.received.read(1)[0] & 0xFF : -1;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            int timeout = uart.getReadTimeout();
+            synchronized (UARTMux.this) {
+                if (closed) {
+                    throw new IOException("Stream closed.");
+                }
+                if (len == 0) {
+                    return 0;
+                }
+                return awaitReceived(channel, this, timeout) ? channel.received.read(b, off, len) : -1;
+            }
+        }
+
+        @Override
+        public int available() throws IOException {
+            return channel.available();
+        }
+
+        @Override
+        public void close() {
+            synchronized (UARTMux.this) {
+                closed = true;
+                UARTMux.this.notifyAll();
+            }
+        }
+    }
+
+    // Output stream of a channel, writes wait until the data was written to the UART.
+    private class ChannelOutputStream extends OutputStream {
+        private final Channel channel;
+        private final byte[] single = new byte[1];
+        private boolean closed;
+
+        ChannelOutputStream(Channel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            single[0] = (byte)b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (off < 0 || len < 0 || len > b.length - off) {
+                throw new IndexOutOfBoundsException();
+            }
+            if (closed) {
+                throw new IOException("Stream closed.");
+            }
+            Promise<Void, Void, Void> write = channel.write(b, off, len);
+            try {
+                write.waitSafely();
+            }
+            catch (InterruptedException e) {
+                throw new InterruptedIOException("Write interrupted.");
+            }
+            if (!write.isResolved()) {
+                throw new IOException("Write failed.");
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+        }
+    }
+}
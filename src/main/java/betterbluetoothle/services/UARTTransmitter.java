@@ -0,0 +1,385 @@
+package betterbluetoothle.services;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.jdeferred.DoneCallback;
+import org.jdeferred.FailCallback;
+import org.jdeferred.Promise;
+import org.jdeferred.impl.DeferredObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import betterbluetoothle.async.AsyncBluetoothGatt;
+import betterbluetoothle.io.ThroughputMeter;
+
+// Transmit engine for the UART TX characteristic.  Writes are queued in order and split into
+// packets of at most the packet size, and every write reports its own progress and completion.
+//
+// With acknowledged writes one packet is in flight and the next is sent when onCharacteristicWrite
+// reports the previous one done, so the shared characteristic value is never overwritten.  In
+// write without response mode several packets are kept in flight, limited by a credit window.
+// The window grows by one packet per window of sent packets and halves whenever the stack refuses
+// a write because its buffers are full (additive increase, multiplicative decrease), so it settles
+// just below what the controller can take.
+class UARTTransmitter {
+
+    static final int DEFAULT_MAX_CREDITS = 8;
+
+    // Queued write.  The data buffer's position is advanced as packets are sent.
+    private static class Request {
+        final ByteBuffer data;
+        final int length;
+        final DeferredObject<Void, Integer, Integer> deferred = new DeferredObject<Void, Integer, Integer>();
+        int acknowledged;
+        boolean failed;
+
+        Request(ByteBuffer data) {
+            this.data = data;
+            this.length = data.remaining();
+        }
+    }
+
+    // Completion callbacks for the packets sent on one connection.  Each connection gets its own,
+    // so a late completion from an earlier connection can't take a packet of the current one out
+    // of flight.
+    private class Connection implements DoneCallback<BluetoothGattCharacteristic>, FailCallback<Integer> {
+        @Override
+        public void onDone(BluetoothGattCharacteristic result) {
+            packetDone(this, null);
+        }
+
+        @Override
+        public void onFail(Integer status) {
+            packetDone(this, status == null ? -1 : status);
+        }
+    }
+
+    private final AsyncBluetoothGatt gatt;
+    private final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+    private BluetoothGattCharacteristic tx;
+    private Connection connection = new Connection();
+    private int packetSize = UART.DEFAULT_PACKET_SIZE;
+    // Reused for full packets, the characteristic value is copied when the write starts.
+    private byte[] packet = new byte[packetSize];
+    private boolean withoutResponse;
+    private int maxCredits = DEFAULT_MAX_CREDITS;
+    // Credit window in packets, fractional so it can grow by less than a packet per acknowledgement.
+    private double window = 1;
+    // Packets in flight, oldest first, as a ring of the request and length of each packet.
+    private Request[] flightRequests = new Request[DEFAULT_MAX_CREDITS];
+    private int[] flightLengths = new int[DEFAULT_MAX_CREDITS];
+    private int flightHead;
+    private int flightCount;
+    private long bytesSent;
+    private long packetsSent;
+    private long refused;
+    private final ThroughputMeter meter = new ThroughputMeter();
+    // Writes which failed immediately because a packet couldn't be sent, they're rejected after
+    // releasing the lock.
+    private final ArrayList<Request> rejected = new ArrayList<Request>();
+    // Packet writes started while holding the lock, attached to after releasing it.
+    private final ArrayList<Promise<BluetoothGattCharacteristic, Integer, Void>> started = new ArrayList<Promise<BluetoothGattCharacteristic, Integer, Void>>();
+
+    UARTTransmitter(AsyncBluetoothGatt gatt) {
+        this.gatt = gatt;
+    }
+
+    // Start sending to the TX characteristic of a new connection, or stop if it is null.  Packets
+    // still in flight on the previous connection fail, and the credit window starts over since
+    // the new link's buffers are unknown.
+    void setCharacteristic(BluetoothGattCharacteristic tx) {
+        List<Request> lost = new ArrayList<Request>();
+        synchronized (this) {
+            this.tx = tx;
+            if (tx != null) {
+                clearFlight(lost);
+                // Drop the rest of the writes which were cut off.
+                queue.removeAll(lost);
+                connection = new Connection();
+                window = 1;
+            }
+            applyWriteType();
+        }
+        reject(lost);
+    }
+
+    synchronized void setPacketSize(int packetSize) {
+        if (packetSize <= 0 || packetSize > 512) {
+            throw new IllegalArgumentException("Packet size must be between 1 and 512 bytes.");
+        }
+        this.packetSize = packetSize;
+        packet = new byte[packetSize];
+    }
+
+    synchronized int getPacketSize() {
+        return packetSize;
+    }
+
+    // Switch between acknowledged writes and write without response streaming with at most
+    // maxCredits packets in flight.  Takes effect for the next packet.
+    synchronized void setWriteWithoutResponse(boolean enabled, int maxCredits) {
+        if (maxCredits <= 0) {
+            throw new IllegalArgumentException("Credit window must be at least one packet.");
+        }
+        withoutResponse = enabled;
+        this.maxCredits = maxCredits;
+        window = enabled ? Math.min(window, maxCredits) : 1;
+        if (flightRequests.length < maxCredits) {
+            Request[] requests = new Request[maxCredits];
+            int[] lengths = new int[maxCredits];
+            for (int i = 0; i < flightCount; ++i) {
+                requests[i] = flightRequests[(flightHead + i) % flightRequests.length];
+                lengths[i] = flightLengths[(flightHead + i) % flightLengths.length];
+            }
+            flightRequests = requests;
+            flightLengths = lengths;
+            flightHead = 0;
+        }
+        applyWriteType();
+    }
+
+    synchronized boolean isWriteWithoutResponse() {
+        return withoutResponse;
+    }
+
+    // Current number of packets allowed in flight.
+    synchronized int getCredits() {
+        return (int)window;
+    }
+
+    synchronized long getBytesSent() {
+        return bytesSent;
+    }
+
+    synchronized long getPacketsSent() {
+        return packetsSent;
+    }
+
+    // Number of packet writes the stack refused because its buffers were full.
+    synchronized long getRefused() {
+        return refused;
+    }
+
+    ThroughputMeter getMeter() {
+        return meter;
+    }
+
+    // Number of bytes queued and not yet acknowledged.
+    synchronized int getPending() {
+        int pending = 0;
+        for (Request request : queue) {
+            pending += request.data.remaining();
+        }
+        for (int i = 0; i < flightCount; ++i) {
+            pending += flightLengths[(flightHead + i) % flightLengths.length];
+        }
+        return pending;
+    }
+
+    // Queue the remaining bytes of the buffer.  The promise reports the number of bytes of this
+    // write acknowledged so far and resolves once all of them are acknowledged, or is rejected with
+    // the GATT status of the failed packet (null when not connected).  The buffer must not be
+    // modified until the promise completes.
+    Promise<Void, Integer, Integer> write(ByteBuffer data) {
+        Request request = new Request(data);
+        List<Promise<BluetoothGattCharacteristic, Integer, Void>> writes;
+        List<Request> failed;
+        Connection current;
+        synchronized (this) {
+            if (tx == null) {
+                rejected.add(request);
+            }
+            else if (request.length > 0) {
+                queue.add(request);
+                sendNext();
+            }
+            writes = takeStarted();
+            failed = takeRejected();
+            current = connection;
+        }
+        if (request.length == 0 && failed == null) {
+            request.deferred.resolve(null);
+        }
+        reject(failed);
+        attach(writes, current);
+        return request.deferred.promise();
+    }
+
+    // Fail every queued write, called when the UART disconnects.
+    void cancel() {
+        List<Request> cancelled = new ArrayList<Request>();
+        synchronized (this) {
+            clearFlight(cancelled);
+            for (Request request : queue) {
+                fail(request, cancelled);
+            }
+            queue.clear();
+            tx = null;
+        }
+        reject(cancelled);
+    }
+
+    // Fail the writes of the packets in flight and empty the ring.  Must hold the lock.
+    private void clearFlight(List<Request> failed) {
+        for (int i = 0; i < flightCount; ++i) {
+            int index = (flightHead + i) % flightRequests.length;
+            fail(flightRequests[index], failed);
+            flightRequests[index] = null;
+        }
+        flightHead = 0;
+        flightCount = 0;
+    }
+
+    // Must hold the lock.
+    private static void fail(Request request, List<Request> failed) {
+        if (!request.failed) {
+            request.failed = true;
+            failed.add(request);
+        }
+    }
+
+    // Must hold the lock.
+    private void applyWriteType() {
+        if (tx != null) {
+            tx.setWriteType(withoutResponse ? BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE : BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        }
+    }
+
+    // Send packets while credits are available.  Started writes are collected for the caller to
+    // attach to after releasing the lock and completing the previous write.  Must hold the lock.
+    private void sendNext() {
+        while (tx != null && flightCount < (int)window && !queue.isEmpty()) {
+            Request request = queue.peek();
+            int position = request.data.position();
+            int length = Math.min(request.data.remaining(), packetSize);
+            byte[] value = length == packet.length ? packet : new byte[length];
+            request.data.get(value);
+            tx.setValue(value);
+            Promise<BluetoothGattCharacteristic, Integer, Void> write = gatt.writeCharacteristic(tx);
+            if (write.isRejected()) {
+                if (withoutResponse && flightCount > 0) {
+                    // The stack's buffers are full, halve the window and retry the packet when an
+                    // earlier packet completes.
+                    refused++;
+                    window = Math.max(1, (int)window / 2);
+                    request.data.position(position);
+                    return;
+                }
+                queue.poll();
+                fail(request, rejected);
+                continue;
+            }
+            int tail = (flightHead + flightCount) % flightRequests.length;
+            flightRequests[tail] = request;
+            flightLengths[tail] = length;
+            flightCount++;
+            if (!request.data.hasRemaining()) {
+                queue.poll();
+            }
+            started.add(write);
+        }
+    }
+
+    // Listen for completion of the packet writes sent on the connection.  Writes which already
+    // completed are handled now.
+    private static void attach(List<Promise<BluetoothGattCharacteristic, Integer, Void>> writes, Connection connection) {
+        if (writes == null) {
+            return;
+        }
+        for (Promise<BluetoothGattCharacteristic, Integer, Void> write : writes) {
+            write.then(connection, connection);
+        }
+    }
+
+    // Must hold the lock.
+    private List<Promise<BluetoothGattCharacteristic, Integer, Void>> takeStarted() {
+        if (started.isEmpty()) {
+            return null;
+        }
+        List<Promise<BluetoothGattCharacteristic, Integer, Void>> result = new ArrayList<Promise<BluetoothGattCharacteristic, Integer, Void>>(started);
+        started.clear();
+        return result;
+    }
+
+    // Must hold the lock.
+    private List<Request> takeRejected() {
+        if (rejected.isEmpty()) {
+            return null;
+        }
+        List<Request> result = new ArrayList<Request>(rejected);
+        rejected.clear();
+        return result;
+    }
+
+    // Handle the completion of the oldest packet in flight, status is null on success.  Completions
+    // from an earlier connection are ignored, its packets were already failed.
+    private void packetDone(Connection from, Integer status) {
+        Request current;
+        int length;
+        int progress = 0;
+        boolean complete = false;
+        boolean failed = false;
+        List<Promise<BluetoothGattCharacteristic, Integer, Void>> writes;
+        List<Request> failedRequests;
+        synchronized (this) {
+            if (from != connection || flightCount == 0) {
+                return;
+            }
+            current = flightRequests[flightHead];
+            length = flightLengths[flightHead];
+            flightRequests[flightHead] = null;
+            flightHead = (flightHead + 1) % flightRequests.length;
+            flightCount--;
+            if (status != null) {
+                if (!current.failed) {
+                    // Drop the rest of the failed write.
+                    current.failed = true;
+                    failed = true;
+                    queue.remove(current);
+                }
+            }
+            else {
+                bytesSent += length;
+                packetsSent++;
+                if (withoutResponse && window < maxCredits) {
+                    window = Math.min(maxCredits, window + 1.0 / (int)window);
+                }
+                if (!current.failed) {
+                    current.acknowledged += length;
+                    progress = current.acknowledged;
+                    complete = current.acknowledged == current.length;
+                }
+            }
+            sendNext();
+            writes = takeStarted();
+            failedRequests = takeRejected();
+        }
+        if (status == null) {
+            meter.record(length);
+        }
+        if (failed) {
+            current.deferred.reject(status);
+        }
+        else if (progress > 0) {
+            current.deferred.notify(progress);
+            if (complete) {
+                current.deferred.resolve(null);
+            }
+        }
+        reject(failedRequests);
+        attach(writes, from);
+    }
+
+    // Reject writes which couldn't be sent because the UART isn't connected.
+    private static void reject(List<Request> requests) {
+        if (requests == null) {
+            return;
+        }
+        for (Request request : requests) {
+            request.deferred.reject(null);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package betterbluetoothle.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+// Bulk transfer protocol for moving large blobs like files or log dumps over a UART.  Messages
+// are COBS frames, and every message ends with a CRC32 of the rest of it so corrupt or merged
+// frames (e.g. from a lost packet) are dropped.  All integers are big endian.
+//
+//   START  type 1, transfer id (4), total length (4), chunk size (2)
+//   DATA   type 2, transfer id (4), sequence number (4), chunk data
+//   ACK    type 3, transfer id (4), next sequence number (4), selective acknowledgement mask (4)
+//
+// The sender announces a transfer with START and the receiver answers with an ACK of the chunks
+// it already has, so a transfer which was interrupted resumes from where it stopped.  The data is
+// then split into numbered chunks of the chunk size and a window of them is kept in flight.  The
+// receiver acknowledges every chunk with the number of the first chunk it is missing plus a mask
+// where bit i means chunk next + 1 + i was received, which lets the sender resend only the
+// missing chunks.
+public final class Transfer {
+
+    public static final int START = 1;
+    public static final int DATA = 2;
+    public static final int ACK = 3;
+
+    public static final int DEFAULT_CHUNK_SIZE = 128;
+    public static final int MAX_CHUNK_SIZE = 4000;
+    public static final int DEFAULT_WINDOW = 8;
+    // Longest frame a peer has to decode, a full chunk with its header and CRC.
+    public static final int MAX_FRAME_LENGTH = MAX_CHUNK_SIZE + 16;
+    // Number of chunks after the next one covered by an acknowledgement's mask.
+    public static final int ACK_MASK_BITS = 32;
+
+    // Where a peer writes its encoded frames, e.g. a UART.
+    public interface Output {
+        public void write(byte[] data);
+    }
+
+    private Transfer() {
+    }
+
+    // Start a message with the type and transfer id, leaving room for the body and CRC.
+    static ByteBuffer message(int type, int id, int bodyLength) {
+        ByteBuffer message = ByteBuffer.allocate(1 + 4 + bodyLength + 4);
+        message.put((byte)type);
+        message.putInt(id);
+        return message;
+    }
+
+    // Append the CRC of the message and return its bytes.
+    static byte[] seal(ByteBuffer message, CRC32 crc) {
+        crc.reset();
+        crc.update(message.array(), 0, message.position());
+        message.putInt((int)crc.getValue());
+        return message.array();
+    }
+
+    // Check a received message's CRC and return a buffer over it without the CRC, or null if it
+    // is corrupt.
+    static ByteBuffer open(byte[] frame, int offset, int length, CRC32 crc) {
+        if (length < 1 + 4 + 4) {
+            return null;
+        }
+        int end = offset + length - 4;
+        crc.reset();
+        crc.update(frame, offset, end - offset);
+        ByteBuffer message = ByteBuffer.wrap(frame, offset, length);
+        if (message.getInt(end) != (int)crc.getValue()) {
+            return null;
+        }
+        message.limit(end);
+        return message;
+    }
+
+    // Number of chunks of the chunk size in length bytes.
+    static int chunkCount(int length, int chunkSize) {
+        return (int)(((long)length + chunkSize - 1) / chunkSize);
+    }
+}
@@ -0,0 +1,145 @@
+package betterbluetoothle.transfer;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import betterbluetoothle.io.CobsFramer;
+import betterbluetoothle.io.Framer;
+
+// Reference receiving side of the bulk transfer protocol, e.g. to stand in for a device in tests
+// or as a model for firmware.  Feed it the bytes sent by a TransferSender and it writes the
+// acknowledgements to its output.  Transfers are kept by id, so when a sender starts an
+// interrupted transfer again it resumes from the chunks already received.
+public class TransferReceiver implements Framer.Listener {
+
+    // State of one transfer.
+    private static class State {
+        final int chunkSize;
+        final int chunkCount;
+        final byte[] data;
+        final BitSet received = new BitSet();
+        // First chunk not received yet.
+        int next;
+
+        State(int length, int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunkCount = Transfer.chunkCount(length, chunkSize);
+            this.data = new byte[length];
+        }
+    }
+
+    private final Transfer.Output output;
+    private final CobsFramer framer = new CobsFramer(Transfer.MAX_FRAME_LENGTH);
+    private final CRC32 crc = new CRC32();
+    private final HashMap<Integer, State> transfers = new HashMap<Integer, State>();
+    private long chunks;
+    private long corrupt;
+
+    public TransferReceiver(Transfer.Output output) {
+        this.output = output;
+    }
+
+    // Decode bytes from the sender.
+    public synchronized void receive(byte[] data, int offset, int length) {
+        framer.feed(data, offset, length, this);
+    }
+
+    public void receive(byte[] data) {
+        receive(data, 0, data.length);
+    }
+
+    // Handle a decoded message.
+    @Override
+    public synchronized void onFrame(byte[] frame, int offset, int length) {
+        ByteBuffer message = Transfer.open(frame, offset, length, crc);
+        if (message == null) {
+            corrupt++;
+            return;
+        }
+        int type = message.get();
+        int id = message.getInt();
+        State state = transfers.get(id);
+        if (type == Transfer.START && message.remaining() == 6) {
+            int total = message.getInt();
+            int chunkSize = message.getShort() & 0xFFFF;
+            if (total < 0 || chunkSize == 0) {
+                corrupt++;
+                return;
+            }
+            if (state == null || state.data.length != total || state.chunkSize != chunkSize) {
+                // New transfer, or the sender changed it so start over.
+                state = new State(total, chunkSize);
+                transfers.put(id, state);
+            }
+            acknowledge(id, state);
+        }
+        else if (type == Transfer.DATA && state != null && message.remaining() >= 4) {
+            int sequence = message.getInt();
+            int start = sequence * state.chunkSize;
+            if (sequence < 0 || sequence >= state.chunkCount || message.remaining() != Math.min(state.chunkSize, state.data.length - start)) {
+                corrupt++;
+                return;
+            }
+            if (!state.received.get(sequence)) {
+                message.get(state.data, start, message.remaining());
+                state.received.set(sequence);
+                chunks++;
+                while (state.next < state.chunkCount && state.received.get(state.next)) {
+                    state.next++;
+                }
+            }
+            acknowledge(id, state);
+        }
+    }
+
+    // Whether every chunk of the transfer was received.
+    public synchronized boolean isComplete(int id) {
+        State state = transfers.get(id);
+        return state != null && state.next == state.chunkCount;
+    }
+
+    // Data of a complete transfer, or null if it isn't complete.
+    public synchronized byte[] getData(int id) {
+        return isComplete(id) ? transfers.get(id).data : null;
+    }
+
+    // Number of bytes received in order from the start of the transfer.
+    public synchronized int getReceived(int id) {
+        State state = transfers.get(id);
+        if (state == null) {
+            return 0;
+        }
+        return (int)Math.min((long)state.next * state.chunkSize, state.data.length);
+    }
+
+    // Drop a transfer, e.g. once its data has been stored.
+    public synchronized void forget(int id) {
+        transfers.remove(id);
+    }
+
+    // Number of new chunks received, not counting duplicates.
+    public synchronized long getChunks() {
+        return chunks;
+    }
+
+    // Number of messages dropped because their CRC or contents were wrong.
+    public synchronized long getCorrupt() {
+        return corrupt;
+    }
+
+    // Must hold the lock.
+    private void acknowledge(int id, State state) {
+        int mask = 0;
+        for (int i = 0; i < Transfer.ACK_MASK_BITS; ++i) {
+            if (state.received.get(state.next + 1 + i)) {
+                mask |= 1 << i;
+            }
+        }
+        ByteBuffer ack = Transfer.message(Transfer.ACK, id, 8);
+        ack.putInt(state.next);
+        ack.putInt(mask);
+        output.write(framer.encode(Transfer.seal(ack, crc)));
+    }
+}
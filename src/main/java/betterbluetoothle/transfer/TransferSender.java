@@ -0,0 +1,350 @@
+package betterbluetoothle.transfer;
+
+import org.jdeferred.Promise;
+import org.jdeferred.impl.DeferredObject;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import betterbluetoothle.io.CobsFramer;
+import betterbluetoothle.io.Framer;
+import betterbluetoothle.services.UART;
+
+// Sending side of the bulk transfer protocol.  A window of chunks is kept in flight so the link
+// stays busy while acknowledgements come back.  A chunk is resent when acknowledgements for later
+// chunks keep showing it missing, or after a timeout without any progress, so a lost packet only
+// costs the chunks it hit.  One transfer is sent at a time.
+public class TransferSender implements Framer.Listener {
+
+    public static final long DEFAULT_TIMEOUT = 2000;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    // Number of acknowledgements showing a chunk missing before it is resent.
+    static final int RESEND_THRESHOLD = 2;
+
+    private final Transfer.Output output;
+    private final ScheduledExecutorService scheduler;
+    private final CobsFramer framer = new CobsFramer(Transfer.MAX_FRAME_LENGTH);
+    // Decodes bytes passed to receive.
+    private final CobsFramer decoder = new CobsFramer(Transfer.MAX_FRAME_LENGTH);
+    private final CRC32 crc = new CRC32();
+    private int chunkSize = Transfer.DEFAULT_CHUNK_SIZE;
+    private int window = Transfer.DEFAULT_WINDOW;
+    private long timeout = DEFAULT_TIMEOUT;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private long chunksSent;
+    private long resent;
+
+    // Current transfer, data is null when idle.
+    private DeferredObject<Void, Void, Integer> deferred;
+    private int id;
+    private byte[] data;
+    private int transferChunkSize;
+    private int chunkCount;
+    private boolean started;
+    // First chunk not acknowledged.
+    private int base;
+    private final BitSet acknowledged = new BitSet();
+    // Chunks sent since they were last found missing.
+    private final BitSet sent = new BitSet();
+    // Number of acknowledgements which showed each chunk of the window missing, and the order in
+    // which each chunk of the window was last sent.
+    private int[] missing = new int[Transfer.DEFAULT_WINDOW];
+    private long[] sendOrder = new long[Transfer.DEFAULT_WINDOW];
+    private long sends;
+    // Counts acknowledgements which made progress, checked by the timeout timer.
+    private long progress;
+    private long timerProgress;
+    private int retries;
+    private boolean timerPending;
+
+    private final Runnable timeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            timeout();
+        }
+    };
+
+    // Create a sender which writes frames to the output.  The scheduler times retransmissions,
+    // without one lost chunks are only resent when later chunks are acknowledged.
+    public TransferSender(Transfer.Output output, ScheduledExecutorService scheduler) {
+        this.output = output;
+        this.scheduler = scheduler;
+    }
+
+    // Create a sender for the peer on the other end of a UART.  Data received by the UART is
+    // decoded as transfer messages from then on.
+    public static TransferSender attach(final UART uart, ScheduledExecutorService scheduler) {
+        final TransferSender sender = new TransferSender(new Transfer.Output() {
+            @Override
+            public void write(byte[] data) {
+                uart.write(data);
+            }
+        }, scheduler);
+        uart.setFramer(new CobsFramer(Transfer.MAX_FRAME_LENGTH), sender);
+        uart.register(new UART.Callback() {
+            @Override
+            public void connected() {
+            }
+
+            @Override
+            public void disconnected() {
+                sender.cancel();
+            }
+
+            @Override
+            public void available() {
+            }
+        });
+        return sender;
+    }
+
+    public synchronized void setChunkSize(int chunkSize) {
+        if (chunkSize <= 0 || chunkSize > Transfer.MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + Transfer.MAX_CHUNK_SIZE + " bytes.");
+        }
+        this.chunkSize = chunkSize;
+    }
+
+    public synchronized int getChunkSize() {
+        return chunkSize;
+    }
+
+    // Set the number of chunks kept in flight, applies to the next transfer.
+    public synchronized void setWindow(int window) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("Window must be at least one chunk.");
+        }
+        this.window = window;
+    }
+
+    public synchronized int getWindow() {
+        return window;
+    }
+
+    // Resend unacknowledged chunks after timeout milliseconds without progress, and fail the
+    // transfer after maxRetries timeouts in a row.
+    public synchronized void setTimeout(long timeout, int maxRetries) {
+        if (timeout <= 0 || maxRetries < 0) {
+            throw new IllegalArgumentException("Timeout must be positive and retries can't be negative.");
+        }
+        this.timeout = timeout;
+        this.maxRetries = maxRetries;
+    }
+
+    // Number of chunks sent, including resent chunks.
+    public synchronized long getChunksSent() {
+        return chunksSent;
+    }
+
+    // Number of chunks resent.
+    public synchronized long getResent() {
+        return resent;
+    }
+
+    // Send data as the transfer with the id.  If the receiver already has part of a transfer with
+    // the same id, length and chunk size it resumes after that part.  The promise progress is the
+    // number of bytes acknowledged in order, and it is rejected if the transfer times out or is
+    // cancelled.  Don't modify the data until the promise completes.
+    public Promise<Void, Void, Integer> send(int id, byte[] data) {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        Promise<Void, Void, Integer> result;
+        synchronized (this) {
+            if (this.data != null) {
+                throw new IllegalStateException("A transfer is already in progress.");
+            }
+            deferred = new DeferredObject<Void, Void, Integer>();
+            result = deferred.promise();
+            this.id = id;
+            this.data = data;
+            transferChunkSize = chunkSize;
+            chunkCount = Transfer.chunkCount(data.length, chunkSize);
+            started = false;
+            base = 0;
+            acknowledged.clear();
+            sent.clear();
+            if (missing.length != window) {
+                missing = new int[window];
+                sendOrder = new long[window];
+            }
+            retries = 0;
+            frames.add(start());
+            scheduleTimeout();
+        }
+        write(frames);
+        return result;
+    }
+
+    // Decode bytes from the receiver, when not attached to a UART.
+    public void receive(byte[] data, int offset, int length) {
+        synchronized (decoder) {
+            decoder.feed(data, offset, length, this);
+        }
+    }
+
+    public void receive(byte[] data) {
+        receive(data, 0, data.length);
+    }
+
+    // Handle a decoded acknowledgement.
+    @Override
+    public void onFrame(byte[] frame, int offset, int length) {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        DeferredObject<Void, Void, Integer> current;
+        int notify = -1;
+        boolean complete;
+        synchronized (this) {
+            ByteBuffer message = Transfer.open(frame, offset, length, crc);
+            if (data == null || message == null || message.remaining() != 13 || message.get() != Transfer.ACK || message.getInt() != id) {
+                return;
+            }
+            int next = message.getInt();
+            int mask = message.getInt();
+            if (next < 0 || next > chunkCount) {
+                return;
+            }
+            started = true;
+            if (next > base) {
+                base = next;
+                progress++;
+                retries = 0;
+                notify = (int)Math.min((long)base * transferChunkSize, data.length);
+            }
+            int highest = -1;
+            for (int i = 0; i < Transfer.ACK_MASK_BITS && next + 1 + i < chunkCount; ++i) {
+                if ((mask & (1 << i)) != 0) {
+                    acknowledged.set(next + 1 + i);
+                    highest = next + 1 + i;
+                }
+            }
+            // Chunks sent before the highest acknowledged one which are still missing were
+            // probably lost, resend them once enough acknowledgements agree.
+            for (int i = base; i < highest; ++i) {
+                if (acknowledged.get(i) || !sent.get(i) || sendOrder[i % missing.length] > sendOrder[highest % missing.length]) {
+                    continue;
+                }
+                if (++missing[i % missing.length] >= RESEND_THRESHOLD) {
+                    sent.clear(i);
+                    resent++;
+                }
+            }
+            fillWindow(frames);
+            current = deferred;
+            complete = base == chunkCount;
+            if (complete) {
+                finish();
+            }
+        }
+        write(frames);
+        if (notify >= 0) {
+            current.notify(notify);
+        }
+        if (complete) {
+            current.resolve(null);
+        }
+    }
+
+    // Stop the current transfer and reject its promise.  The receiver keeps what it received, so
+    // sending the transfer again resumes it.
+    public void cancel() {
+        DeferredObject<Void, Void, Integer> current;
+        synchronized (this) {
+            if (data == null) {
+                return;
+            }
+            current = deferred;
+            finish();
+        }
+        current.reject(null);
+    }
+
+    // Must hold the lock.
+    private byte[] start() {
+        ByteBuffer message = Transfer.message(Transfer.START, id, 6);
+        message.putInt(data.length);
+        message.putShort((short)transferChunkSize);
+        return framer.encode(Transfer.seal(message, crc));
+    }
+
+    // Send the chunks of the window which aren't in flight.  Must hold the lock.
+    private void fillWindow(List<byte[]> frames) {
+        int end = (int)Math.min((long)base + missing.length, chunkCount);
+        for (int i = base; i < end; ++i) {
+            if (acknowledged.get(i) || sent.get(i)) {
+                continue;
+            }
+            int start = i * transferChunkSize;
+            int length = Math.min(transferChunkSize, data.length - start);
+            ByteBuffer message = Transfer.message(Transfer.DATA, id, 4 + length);
+            message.putInt(i);
+            message.put(data, start, length);
+            frames.add(framer.encode(Transfer.seal(message, crc)));
+            sent.set(i);
+            missing[i % missing.length] = 0;
+            sendOrder[i % missing.length] = ++sends;
+            chunksSent++;
+        }
+    }
+
+    // Must hold the lock.
+    private void finish() {
+        data = null;
+        deferred = null;
+    }
+
+    // Must hold the lock.
+    private void scheduleTimeout() {
+        if (scheduler != null && !timerPending) {
+            timerPending = true;
+            timerProgress = progress;
+            scheduler.schedule(timeoutTask, timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Resend everything unacknowledged if there was no progress since the last check.
+    private void timeout() {
+        List<byte[]> frames = new ArrayList<byte[]>();
+        DeferredObject<Void, Void, Integer> failed = null;
+        synchronized (this) {
+            timerPending = false;
+            if (data == null) {
+                return;
+            }
+            if (progress == timerProgress) {
+                if (++retries > maxRetries) {
+                    failed = deferred;
+                    finish();
+                }
+                else if (!started) {
+                    frames.add(start());
+                }
+                else {
+                    for (int i = base; i < base + missing.length && i < chunkCount; ++i) {
+                        if (sent.get(i) && !acknowledged.get(i)) {
+                            sent.clear(i);
+                            resent++;
+                        }
+                    }
+                    fillWindow(frames);
+                }
+            }
+            if (failed == null) {
+                scheduleTimeout();
+            }
+        }
+        write(frames);
+        if (failed != null) {
+            failed.reject(null);
+        }
+    }
+
+    private void write(List<byte[]> frames) {
+        for (byte[] frame : frames) {
+            output.write(frame);
+        }
+    }
+}
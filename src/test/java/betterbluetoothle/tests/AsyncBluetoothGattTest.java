@@ -480,6 +480,62 @@ public class AsyncBluetoothGattTest {
         assertThat(testCh).isEqualTo(ch2);
     }
 
+    @Test
+    public void test_write_without_response_is_pipelined() throws Exception {
+        AsyncBluetoothGatt gatt = connectedAsyncGatt();
+        BluetoothGattService service = mockService(TEST_UUID1, 0);
+        BluetoothGattCharacteristic ch = mockCharacteristic(TEST_UUID1, 0, service);
+        when(ch.getWriteType()).thenReturn(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        when(gatt.getGatt().writeCharacteristic(ch)).thenReturn(true);
+
+        Promise<BluetoothGattCharacteristic, Integer, Void> writeCh1 = gatt.writeCharacteristic(ch);
+        Promise<BluetoothGattCharacteristic, Integer, Void> writeCh2 = gatt.writeCharacteristic(ch);
+        assertThat(writeCh1).isNotSameAs(writeCh2);
+        gatt.onCharacteristicWrite(gatt.getGatt(), ch, BluetoothGatt.GATT_SUCCESS);
+
+        assertThat(writeCh1.isResolved()).isTrue();
+        assertThat(writeCh2.isPending()).isTrue();
+        gatt.onCharacteristicWrite(gatt.getGatt(), ch, BluetoothGatt.GATT_FAILURE);
+        assertThat(writeCh2.isRejected()).isTrue();
+    }
+
+    @Test
+    public void test_reconnect_rejects_queued_writes_without_response() throws Exception {
+        AsyncBluetoothGatt gatt = connectedAsyncGatt();
+        gatt.onConnectionStateChange(gatt.getGatt(), BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+        BluetoothGattService service = mockService(TEST_UUID1, 0);
+        BluetoothGattCharacteristic ch = mockCharacteristic(TEST_UUID1, 0, service);
+        when(ch.getWriteType()).thenReturn(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        when(gatt.getGatt().writeCharacteristic(ch)).thenReturn(true);
+        when(gatt.getGatt().connect()).thenReturn(true);
+
+        Promise<BluetoothGattCharacteristic, Integer, Void> writeCh1 = gatt.writeCharacteristic(ch);
+        Promise<BluetoothGattCharacteristic, Integer, Void> writeCh2 = gatt.writeCharacteristic(ch);
+        gatt.connect();
+
+        assertThat(writeCh1.isRejected()).isTrue();
+        assertThat(writeCh2.isRejected()).isTrue();
+    }
+
+    @Test
+    public void test_write_without_response_refused_rejects_promise() throws Exception {
+        AsyncBluetoothGatt gatt = connectedAsyncGatt();
+        BluetoothGattService service = mockService(TEST_UUID1, 0);
+        BluetoothGattCharacteristic ch = mockCharacteristic(TEST_UUID1, 0, service);
+        when(ch.getWriteType()).thenReturn(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        when(gatt.getGatt().writeCharacteristic(ch)).thenReturn(true, false, true);
+
+        Promise<BluetoothGattCharacteristic, Integer, Void> writeCh1 = gatt.writeCharacteristic(ch);
+        Promise<BluetoothGattCharacteristic, Integer, Void> writeCh2 = gatt.writeCharacteristic(ch);
+        Promise<BluetoothGattCharacteristic, Integer, Void> writeCh3 = gatt.writeCharacteristic(ch);
+        gatt.onCharacteristicWrite(gatt.getGatt(), ch, BluetoothGatt.GATT_SUCCESS);
+        gatt.onCharacteristicWrite(gatt.getGatt(), ch, BluetoothGatt.GATT_SUCCESS);
+
+        assertThat(writeCh1.isResolved()).isTrue();
+        assertThat(writeCh2.isRejected()).isTrue();
+        assertThat(writeCh3.isResolved()).isTrue();
+    }
+
     @Test
     public void test_read_descriptor_immediate_failure_rejects_promise() throws Exception {
         AsyncBluetoothGatt gatt = connectedAsyncGatt();
@@ -0,0 +1,135 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.jdeferred.ProgressCallback;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.scan.Beacon;
+import betterbluetoothle.scan.BeaconDecoder;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class BeaconDecoderTest {
+
+    private static final byte[] IBEACON = bytes(
+            "02 01 06 1A FF 4C 00 02 15 E2 C5 6D B5 DF FB 48 D2 B0 60 D0 F5 A7 10 96 E0 00 01 00 02 C5");
+    private static final byte[] ALTBEACON = bytes(
+            "02 01 06 1B FF 18 01 BE AC E2 C5 6D B5 DF FB 48 D2 B0 60 D0 F5 A7 10 96 E0 00 03 00 04 C4 00");
+    private static final byte[] EDDYSTONE_UID = bytes(
+            "02 01 06 03 03 AA FE 17 16 AA FE 00 E7 00 01 02 03 04 05 06 07 08 09 0A 0B 0C 0D 0E 0F 00 00");
+    private static final byte[] EDDYSTONE_URL = bytes(
+            "03 03 AA FE 0D 16 AA FE 10 EB 01 67 6F 6F 67 6C 65 07");
+
+    private ArrayList<Integer> types = new ArrayList<Integer>();
+
+    @Before
+    public void setup() {
+        types.clear();
+    }
+
+    // Parse a string of space separated hex bytes.
+    private static byte[] bytes(String hex) {
+        String[] parts = hex.split(" ");
+        byte[] result = new byte[parts.length];
+        for (int i = 0; i < parts.length; ++i) {
+            result[i] = (byte)Integer.parseInt(parts[i], 16);
+        }
+        return result;
+    }
+
+    @Test
+    public void test_decode_ibeacon() throws Exception {
+        Beacon beacon = new Beacon();
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+
+        assertThat(BeaconDecoder.decode(d1, -60, IBEACON, Beacon.TYPE_ALL, beacon)).isTrue();
+
+        assertThat(beacon.getType()).isEqualTo(Beacon.TYPE_IBEACON);
+        assertThat(beacon.getDevice()).isEqualTo(d1);
+        assertThat(beacon.getRssi()).isEqualTo(-60);
+        assertThat(beacon.getUuid()).isEqualTo(UUID.fromString("e2c56db5-dffb-48d2-b060-d0f5a71096e0"));
+        assertThat(beacon.getMajor()).isEqualTo(1);
+        assertThat(beacon.getMinor()).isEqualTo(2);
+        assertThat(beacon.getTxPower()).isEqualTo(-59);
+    }
+
+    @Test
+    public void test_decode_altbeacon() throws Exception {
+        Beacon beacon = new Beacon();
+
+        assertThat(BeaconDecoder.decode(null, -60, ALTBEACON, Beacon.TYPE_ALL, beacon)).isTrue();
+
+        assertThat(beacon.getType()).isEqualTo(Beacon.TYPE_ALTBEACON);
+        assertThat(beacon.getManufacturer()).isEqualTo(0x0118);
+        assertThat(beacon.getUuid()).isEqualTo(UUID.fromString("e2c56db5-dffb-48d2-b060-d0f5a71096e0"));
+        assertThat(beacon.getMajor()).isEqualTo(3);
+        assertThat(beacon.getMinor()).isEqualTo(4);
+        assertThat(beacon.getTxPower()).isEqualTo(-60);
+    }
+
+    @Test
+    public void test_decode_eddystone_uid() throws Exception {
+        Beacon beacon = new Beacon();
+
+        assertThat(BeaconDecoder.decode(null, -60, EDDYSTONE_UID, Beacon.TYPE_ALL, beacon)).isTrue();
+
+        assertThat(beacon.getType()).isEqualTo(Beacon.TYPE_EDDYSTONE_UID);
+        assertThat(beacon.getTxPower()).isEqualTo(-25);
+        assertThat(beacon.getNamespace()).isEqualTo(bytes("00 01 02 03 04 05 06 07 08 09"));
+        assertThat(beacon.getInstance()).isEqualTo(bytes("0A 0B 0C 0D 0E 0F"));
+    }
+
+    @Test
+    public void test_decode_eddystone_url() throws Exception {
+        Beacon beacon = new Beacon();
+
+        assertThat(BeaconDecoder.decode(null, -60, EDDYSTONE_URL, Beacon.TYPE_ALL, beacon)).isTrue();
+
+        assertThat(beacon.getType()).isEqualTo(Beacon.TYPE_EDDYSTONE_URL);
+        assertThat(beacon.getTxPower()).isEqualTo(-21);
+        assertThat(beacon.getUrl()).isEqualTo("https://www.google.com");
+    }
+
+    @Test
+    public void test_unselected_types_are_not_decoded() throws Exception {
+        Beacon beacon = new Beacon();
+
+        assertThat(BeaconDecoder.decode(null, -60, IBEACON, Beacon.TYPE_EDDYSTONE_UID, beacon)).isFalse();
+        assertThat(BeaconDecoder.decode(null, -60, new byte[]{ 0x02, 0x02, 0x01, 0x02 }, Beacon.TYPE_ALL, beacon)).isFalse();
+        assertThat(BeaconDecoder.decode(null, -60, new byte[0], Beacon.TYPE_ALL, beacon)).isFalse();
+        assertThat(beacon.getType()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_beacon_scan_notifies_only_selected_beacons() throws Exception {
+        BluetoothAdapter adapter = mock(BluetoothAdapter.class);
+        AsyncBluetoothLeScan scanner = new AsyncBluetoothLeScan(adapter);
+        when(adapter.startLeScan(scanner)).thenReturn(true);
+
+        scanner.startBeacons(Beacon.TYPE_IBEACON | Beacon.TYPE_EDDYSTONE_URL).progress(new ProgressCallback<Beacon>() {
+            @Override
+            public void onProgress(Beacon beacon) {
+                types.add(beacon.getType());
+            }
+        });
+        scanner.onLeScan(mock(BluetoothDevice.class), -60, IBEACON);
+        scanner.onLeScan(mock(BluetoothDevice.class), -60, ALTBEACON);
+        scanner.onLeScan(mock(BluetoothDevice.class), -60, EDDYSTONE_UID);
+        scanner.onLeScan(mock(BluetoothDevice.class), -60, EDDYSTONE_URL);
+        scanner.onLeScan(mock(BluetoothDevice.class), -60, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+
+        assertThat(types).containsExactly(Beacon.TYPE_IBEACON, Beacon.TYPE_EDDYSTONE_URL);
+    }
+}
@@ -0,0 +1,154 @@
+package betterbluetoothle.tests;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import betterbluetoothle.io.ByteRingBuffer;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class ByteRingBufferTest {
+
+    @Test
+    public void test_write_then_read_returns_bytes_in_order() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer();
+
+        buffer.write(new byte[]{ 1, 2, 3 });
+        buffer.write(new byte[]{ 4, 5 });
+
+        assertThat(buffer.size()).isEqualTo(5);
+        assertThat(buffer.read(2)).isEqualTo(new byte[]{ 1, 2 });
+        assertThat(buffer.readAll()).isEqualTo(new byte[]{ 3, 4, 5 });
+        assertThat(buffer.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void test_read_more_than_available_returns_available() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer();
+
+        buffer.write(new byte[]{ 1, 2 });
+
+        assertThat(buffer.read(10)).isEqualTo(new byte[]{ 1, 2 });
+        assertThat(buffer.read(10)).isEqualTo(new byte[0]);
+    }
+
+    @Test
+    public void test_wrapped_data_is_read_in_order() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 4, ByteRingBuffer.OverflowPolicy.FAIL);
+
+        buffer.write(new byte[]{ 1, 2, 3 });
+        buffer.read(2);
+        buffer.write(new byte[]{ 4, 5, 6 });
+
+        assertThat(buffer.capacity()).isEqualTo(4);
+        assertThat(buffer.get(0)).isEqualTo((byte)3);
+        assertThat(buffer.get(3)).isEqualTo((byte)6);
+        assertThat(buffer.readAll()).isEqualTo(new byte[]{ 3, 4, 5, 6 });
+    }
+
+    @Test
+    public void test_buffer_grows_and_keeps_wrapped_data() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 1024, ByteRingBuffer.OverflowPolicy.FAIL);
+
+        buffer.write(new byte[]{ 1, 2, 3 });
+        buffer.read(2);
+        buffer.write(new byte[]{ 4, 5, 6, 7, 8, 9, 10 });
+
+        assertThat(buffer.capacity()).isEqualTo(8);
+        assertThat(buffer.readAll()).isEqualTo(new byte[]{ 3, 4, 5, 6, 7, 8, 9, 10 });
+    }
+
+    @Test
+    public void test_drop_oldest_policy() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 4, ByteRingBuffer.OverflowPolicy.DROP_OLDEST);
+
+        buffer.write(new byte[]{ 1, 2, 3 });
+        buffer.write(new byte[]{ 4, 5 });
+        assertThat(buffer.getDropped()).isEqualTo(1);
+        assertThat(buffer.readAll()).isEqualTo(new byte[]{ 2, 3, 4, 5 });
+        buffer.write(new byte[]{ 1, 2, 3, 4, 5, 6 });
+
+        assertThat(buffer.readAll()).isEqualTo(new byte[]{ 3, 4, 5, 6 });
+        assertThat(buffer.getDropped()).isEqualTo(3);
+    }
+
+    @Test
+    public void test_drop_newest_policy() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 4, ByteRingBuffer.OverflowPolicy.DROP_NEWEST);
+
+        buffer.write(new byte[]{ 1, 2, 3 });
+        assertThat(buffer.write(new byte[]{ 4, 5 })).isEqualTo(1);
+
+        assertThat(buffer.readAll()).isEqualTo(new byte[]{ 1, 2, 3, 4 });
+        assertThat(buffer.getDropped()).isEqualTo(1);
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void test_fail_policy_throws() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 4, ByteRingBuffer.OverflowPolicy.FAIL);
+
+        buffer.write(new byte[]{ 1, 2, 3, 4, 5 });
+    }
+
+    @Test
+    public void test_set_limit_shrinks_buffer() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer();
+        buffer.write(new byte[1000]);
+        buffer.write(new byte[]{ 1, 2 });
+
+        buffer.setLimit(2, ByteRingBuffer.OverflowPolicy.DROP_OLDEST);
+
+        assertThat(buffer.capacity()).isEqualTo(2);
+        assertThat(buffer.readAll()).isEqualTo(new byte[]{ 1, 2 });
+    }
+
+    @Test
+    public void test_peek_does_not_remove() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer();
+        byte[] data = new byte[2];
+
+        buffer.write(new byte[]{ 1, 2, 3 });
+
+        assertThat(buffer.peek(1, data, 0, 2)).isEqualTo(2);
+        assertThat(data).isEqualTo(new byte[]{ 2, 3 });
+        assertThat(buffer.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void test_byte_buffer_read_and_write() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 4, ByteRingBuffer.OverflowPolicy.FAIL);
+        ByteBuffer direct = ByteBuffer.allocateDirect(3);
+        direct.put(new byte[]{ 4, 5, 6 }).flip();
+        ByteBuffer dst = ByteBuffer.allocate(10);
+
+        buffer.write(ByteBuffer.wrap(new byte[]{ 1, 2, 3 }));
+        buffer.read(new byte[2], 0, 2);
+        assertThat(buffer.write(direct)).isEqualTo(3);
+        assertThat(direct.hasRemaining()).isFalse();
+
+        assertThat(buffer.read(dst)).isEqualTo(4);
+        dst.flip();
+        assertThat(dst.remaining()).isEqualTo(4);
+        assertThat(dst.get(0)).isEqualTo((byte)3);
+        assertThat(dst.get(3)).isEqualTo((byte)6);
+        assertThat(buffer.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void test_byte_buffer_write_drop_oldest() throws Exception {
+        ByteRingBuffer buffer = new ByteRingBuffer(4, 4, ByteRingBuffer.OverflowPolicy.DROP_OLDEST);
+        ByteBuffer direct = ByteBuffer.allocateDirect(5);
+        direct.put(new byte[]{ 1, 2, 3, 4, 5 }).flip();
+
+        buffer.write(new byte[]{ 9 });
+        buffer.write(direct);
+
+        assertThat(buffer.readAll()).isEqualTo(new byte[]{ 2, 3, 4, 5 });
+        assertThat(buffer.getDropped()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,169 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.async.AsyncBluetoothLeScan.ScanResult;
+import betterbluetoothle.scan.DutyCycledScan;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class DutyCycledScanTest {
+
+    private ArrayList<ScanResult> found = new ArrayList<ScanResult>();
+    private BluetoothAdapter adapter;
+    private AsyncBluetoothLeScan scanner;
+    private ScheduledExecutorService executor;
+
+    @Before
+    public void setup() {
+        found.clear();
+        adapter = mock(BluetoothAdapter.class);
+        scanner = new AsyncBluetoothLeScan(adapter);
+        when(adapter.startLeScan(scanner)).thenReturn(true);
+        executor = mock(ScheduledExecutorService.class);
+    }
+
+    // Build a mock BluetoothDevice with the specified address.
+    private BluetoothDevice mockDevice(String address) {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address);
+        return device;
+    }
+
+    // Run the most recently scheduled task and return the delay it was scheduled with.
+    private long runScheduled(int count) {
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(executor, times(count)).schedule(task.capture(), delay.capture(), eq(TimeUnit.MILLISECONDS));
+        task.getValue().run();
+        return delay.getValue();
+    }
+
+    @Test
+    public void test_windows_start_and_stop_scanning() throws Exception {
+        DutyCycledScan duty = new DutyCycledScan(scanner, executor, 2000, 8000);
+
+        duty.start();
+        verify(adapter, times(1)).startLeScan(scanner);
+        assertThat(runScheduled(1)).isEqualTo(2000);
+        verify(adapter, times(1)).stopLeScan(scanner);
+        assertThat(runScheduled(2)).isEqualTo(8000);
+        verify(adapter, times(2)).startLeScan(scanner);
+    }
+
+    @Test
+    public void test_results_from_all_windows_use_one_promise() throws Exception {
+        DutyCycledScan duty = new DutyCycledScan(scanner, executor, 2000, 8000);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+
+        Promise<Void, Void, ScanResult> promise = duty.start();
+        promise.progress(new ProgressCallback<ScanResult>() {
+            @Override
+            public void onProgress(ScanResult result) {
+                found.add(result);
+            }
+        });
+        scanner.onLeScan(d1, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        runScheduled(1);
+        // Advertisements between windows are not delivered.
+        scanner.onLeScan(d2, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        runScheduled(2);
+        scanner.onLeScan(d2, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+
+        assertThat(found.size()).isEqualTo(2);
+        assertThat(found.get(0).device).isEqualTo(d1);
+        assertThat(found.get(1).device).isEqualTo(d2);
+        assertThat(promise.isPending()).isTrue();
+    }
+
+    @Test
+    public void test_interval_adapts_to_new_devices() throws Exception {
+        DutyCycledScan duty = new DutyCycledScan(scanner, executor, 2000, 8000);
+        duty.setAdaptive(1000, 32000);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        duty.start();
+        // Window with no new devices stretches the interval.
+        runScheduled(1);
+        assertThat(duty.getInterval()).isEqualTo(16000);
+        runScheduled(2);
+        runScheduled(3);
+        assertThat(duty.getInterval()).isEqualTo(32000);
+        runScheduled(4);
+        // Window with a new device shrinks the interval.
+        scanner.onLeScan(d1, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        runScheduled(5);
+        assertThat(duty.getInterval()).isEqualTo(16000);
+        runScheduled(6);
+        // Same device again is not new.
+        scanner.onLeScan(d1, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        runScheduled(7);
+        assertThat(duty.getInterval()).isEqualTo(32000);
+    }
+
+    @Test
+    public void test_stop_resolves_promise() throws Exception {
+        DutyCycledScan duty = new DutyCycledScan(scanner, executor, 2000, 8000);
+
+        Promise<Void, Void, ScanResult> promise = duty.start();
+        duty.stop();
+
+        assertThat(promise.isResolved()).isTrue();
+        verify(adapter, times(1)).stopLeScan(scanner);
+    }
+
+    @Test
+    public void test_windows_and_results_on_other_threads_do_not_block() throws Exception {
+        ScheduledExecutorService windows = Executors.newSingleThreadScheduledExecutor();
+        final DutyCycledScan duty = new DutyCycledScan(scanner, windows, 1, 0);
+        final BluetoothDevice device = mockDevice("00:00:00:00:00:01");
+        final Throwable[] error = new Throwable[1];
+        duty.start();
+
+        // Results arrive on the binder thread while windows start and stop on the executor.
+        Thread binder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    long end = System.currentTimeMillis() + 300;
+                    while (System.currentTimeMillis() < end) {
+                        scanner.onLeScan(device, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+                    }
+                }
+                catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        });
+        binder.start();
+        binder.join(10000);
+        boolean blocked = binder.isAlive();
+        duty.stop();
+        windows.shutdownNow();
+
+        assertThat(blocked).isFalse();
+        assertThat(error[0]).isNull();
+    }
+}
@@ -0,0 +1,189 @@
+package betterbluetoothle.tests;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import betterbluetoothle.io.CobsFramer;
+import betterbluetoothle.io.DelimiterFramer;
+import betterbluetoothle.io.Framer;
+import betterbluetoothle.io.LengthPrefixFramer;
+import betterbluetoothle.io.SlipFramer;
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class FramerTest {
+
+    // Listener which copies the frames it receives.
+    private static class Frames implements Framer.Listener {
+        final List<byte[]> frames = new ArrayList<byte[]>();
+
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            frames.add(Arrays.copyOfRange(frame, offset, offset + length));
+        }
+
+        String string(int index) {
+            return new String(frames.get(index));
+        }
+    }
+
+    // Feed the data to the framer one byte at a time.
+    private static void feedBytes(Framer framer, byte[] data, Framer.Listener listener) {
+        for (int i = 0; i < data.length; ++i) {
+            framer.feed(data, i, 1, listener);
+        }
+    }
+
+    @Test
+    public void test_lines_split_across_feeds() throws Exception {
+        Framer framer = DelimiterFramer.lines();
+        Frames frames = new Frames();
+
+        framer.feed("hel".getBytes(), frames);
+        assertThat(frames.frames).isEmpty();
+        framer.feed("lo\r\nwor".getBytes(), frames);
+        framer.feed("ld\n\n".getBytes(), frames);
+
+        assertThat(frames.frames).hasSize(3);
+        assertThat(frames.string(0)).isEqualTo("hello");
+        assertThat(frames.string(1)).isEqualTo("world");
+        assertThat(frames.string(2)).isEqualTo("");
+        assertThat(framer.getFrames()).isEqualTo(3);
+    }
+
+    @Test
+    public void test_delimiter_encode() throws Exception {
+        Framer framer = new DelimiterFramer((byte)0, 16);
+
+        assertThat(framer.encode(new byte[]{ 1, 2 })).isEqualTo(new byte[]{ 1, 2, 0 });
+    }
+
+    @Test
+    public void test_oversize_frame_is_dropped() throws Exception {
+        Framer framer = DelimiterFramer.lines(4);
+        Frames frames = new Frames();
+
+        framer.feed("toolong\nok\n".getBytes(), frames);
+
+        assertThat(frames.frames).hasSize(1);
+        assertThat(frames.string(0)).isEqualTo("ok");
+        assertThat(framer.getErrors()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_length_prefix_round_trip() throws Exception {
+        Framer framer = new LengthPrefixFramer(2, ByteOrder.BIG_ENDIAN, 1024);
+        Frames frames = new Frames();
+        byte[] payload = new byte[300];
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] = (byte)i;
+        }
+
+        byte[] encoded = framer.encode(payload);
+        assertThat(encoded.length).isEqualTo(302);
+        assertThat(encoded[0]).isEqualTo((byte)1);
+        assertThat(encoded[1]).isEqualTo((byte)44);
+        feedBytes(framer, encoded, frames);
+        framer.feed(framer.encode(new byte[0]), frames);
+
+        assertThat(frames.frames).hasSize(2);
+        assertThat(frames.frames.get(0)).isEqualTo(payload);
+        assertThat(frames.frames.get(1)).isEmpty();
+    }
+
+    @Test
+    public void test_varint_length_prefix() throws Exception {
+        Framer framer = LengthPrefixFramer.varint(1024);
+        Frames frames = new Frames();
+        byte[] payload = new byte[200];
+
+        byte[] encoded = framer.encode(payload);
+        assertThat(encoded.length).isEqualTo(202);
+        assertThat(encoded[0]).isEqualTo((byte)0xC8);
+        assertThat(encoded[1]).isEqualTo((byte)0x01);
+        framer.feed(encoded, 0, 100, frames);
+        framer.feed(encoded, 100, 102, frames);
+
+        assertThat(frames.frames).hasSize(1);
+        assertThat(frames.frames.get(0)).isEqualTo(payload);
+    }
+
+    @Test
+    public void test_slip_round_trip() throws Exception {
+        Framer framer = new SlipFramer(64);
+        Frames frames = new Frames();
+        byte[] payload = new byte[]{ 1, SlipFramer.END, 2, SlipFramer.ESC, 3 };
+
+        byte[] encoded = framer.encode(payload);
+        for (int i = 1; i < encoded.length - 1; ++i) {
+            assertThat(encoded[i]).isNotEqualTo(SlipFramer.END);
+        }
+        feedBytes(framer, encoded, frames);
+
+        assertThat(frames.frames).hasSize(1);
+        assertThat(frames.frames.get(0)).isEqualTo(payload);
+    }
+
+    @Test
+    public void test_slip_bad_escape_drops_frame() throws Exception {
+        Framer framer = new SlipFramer(64);
+        Frames frames = new Frames();
+
+        framer.feed(new byte[]{ 1, SlipFramer.ESC, 5, SlipFramer.END, 2, SlipFramer.END }, frames);
+
+        assertThat(frames.frames).hasSize(1);
+        assertThat(frames.frames.get(0)).isEqualTo(new byte[]{ 2 });
+        assertThat(framer.getErrors()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_cobs_round_trip() throws Exception {
+        Framer framer = new CobsFramer(1024);
+        Frames frames = new Frames();
+        byte[] payload = new byte[600];
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] = (byte)(i % 7 == 0 ? 0 : i);
+        }
+        byte[] zeros = new byte[]{ 0, 0 };
+
+        byte[] encoded = framer.encode(payload);
+        for (int i = 0; i < encoded.length - 1; ++i) {
+            assertThat(encoded[i]).isNotEqualTo((byte)0);
+        }
+        feedBytes(framer, encoded, frames);
+        framer.feed(framer.encode(zeros), frames);
+
+        assertThat(frames.frames).hasSize(2);
+        assertThat(frames.frames.get(0)).isEqualTo(payload);
+        assertThat(frames.frames.get(1)).isEqualTo(zeros);
+    }
+
+    @Test
+    public void test_uart_delivers_frames() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        Frames frames = new Frames();
+
+        peripheral.send("first\nsec".getBytes());
+        uart.setFramer(DelimiterFramer.lines(), frames);
+        assertThat(frames.frames).hasSize(1);
+        peripheral.send("ond\n".getBytes());
+
+        assertThat(frames.frames).hasSize(2);
+        assertThat(frames.string(0)).isEqualTo("first");
+        assertThat(frames.string(1)).isEqualTo("second");
+        assertThat(uart.available()).isEqualTo(0);
+
+        uart.writeFrame("hi".getBytes());
+        assertThat(peripheral.getWritten()).hasSize(1);
+        assertThat(peripheral.getWritten().get(0)).isEqualTo("hi\n".getBytes());
+    }
+}
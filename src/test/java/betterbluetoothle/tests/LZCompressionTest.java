@@ -0,0 +1,177 @@
+package betterbluetoothle.tests;
+
+import org.jdeferred.Promise;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import betterbluetoothle.io.CobsFramer;
+import betterbluetoothle.io.Framer;
+import betterbluetoothle.io.LZDecoder;
+import betterbluetoothle.io.LZEncoder;
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class LZCompressionTest {
+
+    private static byte[] telemetry(int records) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < records; ++i) {
+            text.append("{\"t\":").append(1000 + i).append(",\"temp\":21.").append(i % 10).append(",\"hum\":40}\n");
+        }
+        return text.toString().getBytes();
+    }
+
+    @Test
+    public void test_round_trip_split_anywhere() throws Exception {
+        LZEncoder encoder = new LZEncoder(256);
+        LZDecoder decoder = new LZDecoder(256);
+        byte[] data = telemetry(50);
+
+        byte[] compressed = encoder.compress(data);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < compressed.length; i += 7) {
+            out.write(decoder.decompress(compressed, i, Math.min(7, compressed.length - i)));
+        }
+
+        assertThat(out.toByteArray()).isEqualTo(data);
+        assertThat(compressed.length).isLessThan(data.length / 3);
+        assertThat(encoder.getRatio()).isGreaterThan(3.0);
+        assertThat(decoder.getBytesOut()).isEqualTo(data.length);
+        assertThat(decoder.getErrors()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_matches_span_calls() throws Exception {
+        LZEncoder encoder = new LZEncoder();
+        LZDecoder decoder = new LZDecoder();
+        byte[] record = "{\"sensor\":\"accel\",\"x\":12,\"y\":-3,\"z\":981}".getBytes();
+
+        byte[] first = encoder.compress(record);
+        byte[] second = encoder.compress(record);
+
+        assertThat(first.length).isGreaterThan(record.length);
+        assertThat(second.length).isLessThan(8);
+        assertThat(decoder.decompress(first)).isEqualTo(record);
+        assertThat(decoder.decompress(second)).isEqualTo(record);
+    }
+
+    @Test
+    public void test_random_data_round_trip() throws Exception {
+        LZEncoder encoder = new LZEncoder(1024);
+        LZDecoder decoder = new LZDecoder(1024);
+        Random random = new Random(1);
+        ByteArrayOutputStream in = new ByteArrayOutputStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 200; ++i) {
+            byte[] data = new byte[random.nextInt(300)];
+            for (int j = 0; j < data.length; ++j) {
+                // Small alphabet so there are matches of every length.
+                data[j] = (byte)random.nextInt(i % 2 == 0 ? 3 : 256);
+            }
+            in.write(data);
+            out.write(decoder.decompress(encoder.compress(data)));
+        }
+
+        assertThat(out.toByteArray()).isEqualTo(in.toByteArray());
+    }
+
+    @Test
+    public void test_uart_negotiates_compression() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        LZEncoder device = new LZEncoder(1024);
+        LZDecoder deviceDecoder = new LZDecoder(1024);
+        byte[] data = telemetry(20);
+
+        Promise<Boolean, Void, Void> negotiated = uart.negotiateCompression(1024);
+        peripheral.acknowledge();
+        assertThat(peripheral.getWritten().get(0)).isEqualTo(new byte[]{ 0, 'L', 'Z', UART.COMPRESSION_VERSION, 10 });
+        byte[] compressed = device.compress(data);
+        byte[] reply = new byte[4 + 10];
+        reply[0] = 'L';
+        reply[1] = 'Z';
+        reply[2] = UART.COMPRESSION_VERSION;
+        reply[3] = 10;
+        System.arraycopy(compressed, 0, reply, 4, 10);
+        peripheral.send(reply);
+        byte[] rest = new byte[compressed.length - 10];
+        System.arraycopy(compressed, 10, rest, 0, rest.length);
+        peripheral.send(rest);
+
+        assertThat(negotiated.isResolved()).isTrue();
+        assertThat(uart.isCompressed()).isTrue();
+        assertThat(uart.readAll()).isEqualTo(data);
+        assertThat(uart.getDecompressor().getRatio()).isGreaterThan(2.0);
+
+        uart.write(data);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        while (peripheral.acknowledge(android.bluetooth.BluetoothGatt.GATT_SUCCESS, 100)) {
+        }
+        for (byte[] packet : peripheral.getWritten().subList(1, peripheral.getWritten().size())) {
+            sent.write(deviceDecoder.decompress(packet));
+        }
+        assertThat(sent.toByteArray()).isEqualTo(data);
+        assertThat(uart.getCompressor().getBytesIn()).isEqualTo(data.length);
+    }
+
+    @Test
+    public void test_uart_compression_refused() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        Promise<Boolean, Void, Void> negotiated = uart.negotiateCompression(1024);
+        peripheral.send(new byte[]{ 'N', 'O', 0, 0 });
+
+        assertThat(negotiated.isResolved()).isTrue();
+        assertThat(uart.isCompressed()).isFalse();
+        assertThat(uart.getCompressor()).isNull();
+    }
+
+    @Test
+    public void test_set_compression_leaves_buffered_data_alone() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        LZEncoder device = new LZEncoder(1024);
+        byte[] data = telemetry(5);
+
+        peripheral.send(new byte[]{ 'p', 'l', 'a', 'i', 'n' });
+        uart.setCompression(true, 1024);
+        peripheral.send(device.compress(data));
+
+        assertThat(uart.read(5)).isEqualTo(new byte[]{ 'p', 'l', 'a', 'i', 'n' });
+        assertThat(uart.readAll()).isEqualTo(data);
+        assertThat(uart.getDecompressor().getErrors()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_disconnect_turns_compression_off() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        uart.setCompression(true, 1024);
+
+        peripheral.disconnect();
+
+        assertThat(uart.isCompressed()).isFalse();
+        assertThat(uart.getCompressor()).isNull();
+        assertThat(uart.getDecompressor()).isNull();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_negotiation_needs_the_receive_buffer() throws Exception {
+        UART uart = new MockUARTPeripheral().connect();
+        uart.setFramer(new CobsFramer(), new Framer.Listener() {
+            @Override
+            public void onFrame(byte[] frame, int offset, int length) {
+            }
+        });
+
+        uart.negotiateCompression(1024);
+    }
+}
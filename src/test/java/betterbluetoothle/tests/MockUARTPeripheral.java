@@ -0,0 +1,215 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import betterbluetoothle.services.UART;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// Mock Bluetooth device with a UART service for testing UART.  Drives the GATT callbacks for
+// connection setup, received data and write acknowledgements, and records the packets written to
+// the TX characteristic.
+public class MockUARTPeripheral {
+
+    private static final UUID CLIENT_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothDevice device = mock(BluetoothDevice.class);
+    private final Context context = mock(Context.class);
+    private final BluetoothGatt gatt = mock(BluetoothGatt.class);
+    private final BluetoothGattService service = mock(BluetoothGattService.class);
+    private final BluetoothGattCharacteristic rx = mock(BluetoothGattCharacteristic.class);
+    private final BluetoothGattCharacteristic tx = mock(BluetoothGattCharacteristic.class);
+    private final BluetoothGattDescriptor client = mock(BluetoothGattDescriptor.class);
+    private final List<byte[]> written = new ArrayList<byte[]>();
+    private BluetoothGattCallback callback;
+    private byte[] rxValue;
+    private byte[] txValue;
+    private int acknowledged;
+    private int writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    private int bufferSize = Integer.MAX_VALUE;
+
+    public MockUARTPeripheral() {
+        this("00:00:00:00:00:01");
+    }
+
+    public MockUARTPeripheral(String address) {
+        when(device.getAddress()).thenReturn(address);
+        when(device.connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class))).thenAnswer(new Answer<BluetoothGatt>() {
+            @Override
+            public BluetoothGatt answer(InvocationOnMock invocation) throws Throwable {
+                callback = (BluetoothGattCallback)invocation.getArguments()[2];
+                return gatt;
+            }
+        });
+        when(gatt.discoverServices()).thenReturn(true);
+        when(gatt.getService(UART.UART_UUID)).thenReturn(service);
+        when(gatt.writeDescriptor(client)).thenReturn(true);
+        when(gatt.setCharacteristicNotification(rx, true)).thenReturn(true);
+        when(gatt.writeCharacteristic(tx)).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                synchronized (MockUARTPeripheral.this) {
+                    if (written.size() - acknowledged >= bufferSize) {
+                        // Stack buffers are full.
+                        return false;
+                    }
+                    written.add(txValue);
+                    MockUARTPeripheral.this.notifyAll();
+                }
+                return true;
+            }
+        });
+        when(service.getUuid()).thenReturn(UART.UART_UUID);
+        when(service.getCharacteristic(UART.RX_UUID)).thenReturn(rx);
+        when(service.getCharacteristic(UART.TX_UUID)).thenReturn(tx);
+        when(rx.getUuid()).thenReturn(UART.RX_UUID);
+        when(rx.getService()).thenReturn(service);
+        when(rx.getDescriptor(CLIENT_UUID)).thenReturn(client);
+        when(rx.getValue()).thenAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) throws Throwable {
+                return rxValue;
+            }
+        });
+        when(tx.getUuid()).thenReturn(UART.TX_UUID);
+        when(tx.getService()).thenReturn(service);
+        when(tx.getValue()).thenAnswer(new Answer<byte[]>() {
+            @Override
+            public byte[] answer(InvocationOnMock invocation) throws Throwable {
+                return txValue;
+            }
+        });
+        doAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                txValue = ((byte[])invocation.getArguments()[0]).clone();
+                return true;
+            }
+        }).when(tx).setValue(any(byte[].class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                writeType = (Integer)invocation.getArguments()[0];
+                return null;
+            }
+        }).when(tx).setWriteType(anyInt());
+        when(tx.getWriteType()).thenAnswer(new Answer<Integer>() {
+            @Override
+            public Integer answer(InvocationOnMock invocation) throws Throwable {
+                return writeType;
+            }
+        });
+        when(client.getUuid()).thenReturn(CLIENT_UUID);
+        when(client.getCharacteristic()).thenReturn(rx);
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public Context getContext() {
+        return context;
+    }
+
+    public BluetoothGatt getGatt() {
+        return gatt;
+    }
+
+    public BluetoothGattCharacteristic getTx() {
+        return tx;
+    }
+
+    // Create a UART for this device and take it through connection, service discovery and
+    // notification setup.
+    public UART connect() {
+        UART uart = new UART(device, context, false);
+        connect(uart);
+        return uart;
+    }
+
+    public void connect(UART uart) {
+        uart.connect();
+        completeConnect();
+    }
+
+    // Drive the connection setup of a UART which already called connect.
+    public void completeConnect() {
+        callback.onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+        callback.onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS);
+        callback.onDescriptorWrite(gatt, client, BluetoothGatt.GATT_SUCCESS);
+    }
+
+    // Send data from the device as an RX notification.
+    public void send(byte[] data) {
+        rxValue = data;
+        callback.onCharacteristicChanged(gatt, rx);
+    }
+
+    // Fail the connection attempt of a UART which called connect.
+    public void failConnect(int status) {
+        callback.onConnectionStateChange(gatt, status, BluetoothGatt.STATE_CONNECTED);
+    }
+
+    public void disconnect() {
+        callback.onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_DISCONNECTED);
+    }
+
+    // Limit how many written packets can wait for acknowledgement, further writes are refused.
+    public synchronized void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    // Number of written packets not yet acknowledged.
+    public synchronized int getOutstanding() {
+        return written.size() - acknowledged;
+    }
+
+    public int getWriteType() {
+        return writeType;
+    }
+
+    // Packets written to the TX characteristic so far.
+    public synchronized List<byte[]> getWritten() {
+        return new ArrayList<byte[]>(written);
+    }
+
+    // Wait until a packet has been written and not yet acknowledged, then acknowledge it with the
+    // specified status.  Returns false if nothing was written within the timeout.
+    public boolean acknowledge(int status, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (this) {
+            while (written.size() <= acknowledged) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                wait(wait);
+            }
+            acknowledged++;
+        }
+        callback.onCharacteristicWrite(gatt, tx, status);
+        return true;
+    }
+
+    public boolean acknowledge() throws InterruptedException {
+        return acknowledge(BluetoothGatt.GATT_SUCCESS, 1000);
+    }
+}
@@ -0,0 +1,197 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import betterbluetoothle.scan.NearestDevices;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class NearestDevicesTest {
+
+    private long now;
+    private ArrayList<String> entered = new ArrayList<String>();
+    private ArrayList<String> exited = new ArrayList<String>();
+
+    @Before
+    public void setup() {
+        now = 0;
+        entered.clear();
+        exited.clear();
+    }
+
+    // Build a ranking which uses the test's clock.
+    private NearestDevices ranking(double alpha, int maxDevices) {
+        return new NearestDevices(alpha, maxDevices) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    // Build a mock BluetoothDevice with the specified address.
+    private BluetoothDevice mockDevice(String address) {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address);
+        return device;
+    }
+
+    @Test
+    public void test_top_returns_strongest_first() throws Exception {
+        NearestDevices ranking = ranking(1.0, 10);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+        BluetoothDevice d3 = mockDevice("00:00:00:00:00:03");
+
+        ranking.update(d1, -70);
+        ranking.update(d2, -40);
+        ranking.update(d3, -55);
+        List<NearestDevices.Entry> top = ranking.top(2);
+
+        assertThat(top.size()).isEqualTo(2);
+        assertThat(top.get(0).device).isEqualTo(d2);
+        assertThat(top.get(1).device).isEqualTo(d3);
+        assertThat(ranking.nearest().device).isEqualTo(d2);
+    }
+
+    @Test
+    public void test_rssi_is_smoothed() throws Exception {
+        NearestDevices ranking = ranking(0.5, 10);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+
+        ranking.update(d1, -40);
+        ranking.update(d2, -60);
+        // One strong outlier doesn't make d2 the nearest.
+        ranking.update(d2, -30);
+        assertThat(ranking.nearest().device).isEqualTo(d1);
+        assertThat(ranking.top(2).get(1).rssi).isEqualTo(-45.0);
+        ranking.update(d2, -30);
+
+        assertThat(ranking.nearest().device).isEqualTo(d2);
+    }
+
+    @Test
+    public void test_full_ranking_keeps_strongest_devices() throws Exception {
+        NearestDevices ranking = ranking(1.0, 2);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+        BluetoothDevice d3 = mockDevice("00:00:00:00:00:03");
+        BluetoothDevice d4 = mockDevice("00:00:00:00:00:04");
+
+        ranking.update(d1, -50);
+        ranking.update(d2, -60);
+        ranking.update(d3, -90);
+        ranking.update(d4, -40);
+        List<NearestDevices.Entry> top = ranking.top(10);
+
+        assertThat(top.size()).isEqualTo(2);
+        assertThat(top.get(0).device).isEqualTo(d4);
+        assertThat(top.get(1).device).isEqualTo(d1);
+    }
+
+    @Test
+    public void test_stale_devices_are_dropped() throws Exception {
+        NearestDevices ranking = ranking(1.0, 10);
+        ranking.setMaxAge(1000);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+
+        ranking.update(d1, -40);
+        now = 800;
+        ranking.update(d2, -60);
+        now = 1500;
+
+        assertThat(ranking.nearest().device).isEqualTo(d2);
+        assertThat(ranking.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_full_ranking_drops_stale_devices_for_new_ones() throws Exception {
+        NearestDevices ranking = ranking(1.0, 2);
+        ranking.setMaxAge(1000);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+        BluetoothDevice d3 = mockDevice("00:00:00:00:00:03");
+
+        ranking.update(d1, -40);
+        ranking.update(d2, -50);
+        now = 800;
+        ranking.update(d2, -50);
+        now = 1500;
+        ranking.update(d3, -90);
+        List<NearestDevices.Entry> top = ranking.top(10);
+
+        assertThat(top.size()).isEqualTo(2);
+        assertThat(top.get(0).device).isEqualTo(d2);
+        assertThat(top.get(1).device).isEqualTo(d3);
+    }
+
+    @Test
+    public void test_threshold_crossings_are_reported() throws Exception {
+        NearestDevices ranking = ranking(1.0, 10);
+        ranking.setThreshold(-50, new NearestDevices.Callback() {
+            @Override
+            public void entered(NearestDevices.Entry entry) {
+                entered.add(entry.address);
+            }
+            @Override
+            public void exited(NearestDevices.Entry entry) {
+                exited.add(entry.address);
+            }
+        });
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        ranking.update(d1, -70);
+        ranking.update(d1, -45);
+        ranking.update(d1, -40);
+        ranking.update(d1, -60);
+
+        assertThat(entered).containsExactly("00:00:00:00:00:01");
+        assertThat(exited).containsExactly("00:00:00:00:00:01");
+    }
+
+    @Test
+    public void test_dropped_devices_exit() throws Exception {
+        NearestDevices ranking = ranking(1.0, 2);
+        ranking.setMaxAge(1000);
+        ranking.setThreshold(-60, new NearestDevices.Callback() {
+            @Override
+            public void entered(NearestDevices.Entry entry) {
+                entered.add(entry.address);
+            }
+            @Override
+            public void exited(NearestDevices.Entry entry) {
+                exited.add(entry.address);
+            }
+        });
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+        BluetoothDevice d3 = mockDevice("00:00:00:00:00:03");
+        BluetoothDevice d4 = mockDevice("00:00:00:00:00:04");
+
+        ranking.update(d1, -40);
+        ranking.update(d2, -50);
+        now = 500;
+        ranking.update(d1, -40);
+        ranking.update(d3, -30);
+        assertThat(exited).containsExactly("00:00:00:00:00:02");
+        now = 1600;
+        ranking.update(d4, -90);
+
+        assertThat(exited).containsExactly("00:00:00:00:00:02", "00:00:00:00:00:01", "00:00:00:00:00:03");
+        assertThat(entered).containsExactly("00:00:00:00:00:01", "00:00:00:00:00:02", "00:00:00:00:00:03");
+        assertThat(ranking.size()).isEqualTo(1);
+    }
+}
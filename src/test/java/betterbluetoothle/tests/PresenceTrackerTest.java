@@ -0,0 +1,165 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.scan.PresenceTracker;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class PresenceTrackerTest {
+
+    private long now;
+    private ArrayList<BluetoothDevice> found = new ArrayList<BluetoothDevice>();
+    private ArrayList<BluetoothDevice> lost = new ArrayList<BluetoothDevice>();
+
+    @Before
+    public void setup() {
+        now = 0;
+        found.clear();
+        lost.clear();
+    }
+
+    // Build a tracker which uses the test's clock and records events.
+    private PresenceTracker tracker(long timeout, long tick) {
+        return new PresenceTracker(timeout, tick, new PresenceTracker.Callback() {
+            @Override
+            public void found(BluetoothDevice device) {
+                found.add(device);
+            }
+            @Override
+            public void lost(BluetoothDevice device) {
+                lost.add(device);
+            }
+        }) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    // Build a mock BluetoothDevice with the specified address.
+    private BluetoothDevice mockDevice(String address) {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address);
+        return device;
+    }
+
+    // Advance the clock one tick at a time up to the specified time.
+    private void advance(PresenceTracker tracker, long to, long tick) {
+        while (now < to) {
+            now = Math.min(to, now + tick);
+            tracker.tick();
+        }
+    }
+
+    @Test
+    public void test_first_sighting_reports_found() throws Exception {
+        PresenceTracker tracker = tracker(1000, 100);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        tracker.seen(d1);
+        tracker.seen(d1);
+
+        assertThat(found).containsExactly(d1);
+        assertThat(tracker.isPresent("00:00:00:00:00:01")).isTrue();
+    }
+
+    @Test
+    public void test_device_not_seen_for_timeout_is_lost() throws Exception {
+        PresenceTracker tracker = tracker(1000, 100);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        tracker.seen(d1);
+        advance(tracker, 900, 100);
+        assertThat(lost).isEmpty();
+        advance(tracker, 1100, 100);
+
+        assertThat(lost).containsExactly(d1);
+        assertThat(tracker.isPresent("00:00:00:00:00:01")).isFalse();
+    }
+
+    @Test
+    public void test_sightings_keep_device_present() throws Exception {
+        PresenceTracker tracker = tracker(1000, 100);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        for (int i = 0; i < 10; ++i) {
+            tracker.seen(d1);
+            advance(tracker, now + 500, 100);
+        }
+        assertThat(lost).isEmpty();
+        advance(tracker, now + 1000, 100);
+
+        assertThat(lost).containsExactly(d1);
+    }
+
+    @Test
+    public void test_lost_device_is_found_again() throws Exception {
+        PresenceTracker tracker = tracker(1000, 100);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        tracker.seen(d1);
+        advance(tracker, 2000, 100);
+        tracker.seen(d1);
+
+        assertThat(found).containsExactly(d1, d1);
+        assertThat(lost).containsExactly(d1);
+    }
+
+    @Test
+    public void test_per_device_timeout() throws Exception {
+        PresenceTracker tracker = tracker(1000, 100);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+        tracker.setTimeout("00:00:00:00:00:02", 5000);
+
+        tracker.seen(d1);
+        tracker.seen(d2);
+        advance(tracker, 2000, 100);
+        assertThat(lost).containsExactly(d1);
+        advance(tracker, 5200, 100);
+
+        assertThat(lost).containsExactly(d1, d2);
+    }
+
+    @Test
+    public void test_long_pause_expires_all_devices() throws Exception {
+        PresenceTracker tracker = tracker(1000, 100);
+        for (int i = 0; i < 1000; ++i) {
+            tracker.seen(mockDevice(String.format("00:00:00:00:%02X:%02X", i / 256, i % 256)));
+        }
+
+        now = 60000;
+        tracker.tick();
+
+        assertThat(lost.size()).isEqualTo(1000);
+        assertThat(tracker.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_track_scan_promise() throws Exception {
+        BluetoothAdapter adapter = mock(BluetoothAdapter.class);
+        AsyncBluetoothLeScan scanner = new AsyncBluetoothLeScan(adapter);
+        when(adapter.startLeScan(scanner)).thenReturn(true);
+        PresenceTracker tracker = tracker(1000, 100);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        tracker.track(scanner.start());
+        scanner.onLeScan(d1, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+
+        assertThat(found).containsExactly(d1);
+    }
+}
@@ -0,0 +1,149 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.jdeferred.ProgressCallback;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.async.AsyncBluetoothLeScan.ScanResult;
+import betterbluetoothle.scan.ScanAggregator;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanAggregatorTest {
+
+    private long now;
+    private ArrayList<ScanResult> found = new ArrayList<ScanResult>();
+
+    @Before
+    public void setup() {
+        now = 0;
+        found.clear();
+    }
+
+    // Build an aggregator which uses the test's clock.
+    private ScanAggregator aggregator(int maxDevices, long emitInterval) {
+        return new ScanAggregator(maxDevices, emitInterval) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    // Build a mock BluetoothDevice with the specified address.
+    private BluetoothDevice mockDevice(String address) {
+        BluetoothDevice device = mock(BluetoothDevice.class);
+        when(device.getAddress()).thenReturn(address);
+        return device;
+    }
+
+    @Test
+    public void test_first_sighting_is_emitted_and_repeats_are_not() throws Exception {
+        ScanAggregator aggregator = aggregator(10, 0);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        assertThat(aggregator.update(d1, -50, new byte[]{ 0x02, 0x01, 0x06 })).isTrue();
+        assertThat(aggregator.update(d1, -60, new byte[]{ 0x02, 0x01, 0x06 })).isFalse();
+        assertThat(aggregator.update(d1, -40, new byte[]{ 0x02, 0x01, 0x06 })).isFalse();
+        assertThat(aggregator.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_rssi_statistics_are_updated() throws Exception {
+        ScanAggregator aggregator = aggregator(10, 0);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        aggregator.update(d1, -50, new byte[]{ 0x01 });
+        aggregator.update(d1, -60, new byte[]{ 0x01 });
+        aggregator.update(d1, -40, new byte[]{ 0x01 });
+        ScanAggregator.Entry entry = aggregator.get("00:00:00:00:00:01");
+
+        assertThat(entry.getLastRssi()).isEqualTo(-40);
+        assertThat(entry.getMinRssi()).isEqualTo(-60);
+        assertThat(entry.getMaxRssi()).isEqualTo(-40);
+        assertThat(entry.getMeanRssi()).isEqualTo(-50.0);
+        assertThat(entry.getCount()).isEqualTo(3);
+    }
+
+    @Test
+    public void test_payload_change_is_emitted_and_updated_in_place() throws Exception {
+        ScanAggregator aggregator = aggregator(10, 0);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        aggregator.update(d1, -50, new byte[]{ 0x01, 0x02 });
+        byte[] stored = aggregator.get("00:00:00:00:00:01").getBytes();
+
+        assertThat(aggregator.update(d1, -50, new byte[]{ 0x01, 0x03 })).isTrue();
+        assertThat(aggregator.get("00:00:00:00:00:01").getBytes()).isSameAs(stored);
+        assertThat(stored).isEqualTo(new byte[]{ 0x01, 0x03 });
+    }
+
+    @Test
+    public void test_unchanged_device_is_emitted_after_interval() throws Exception {
+        ScanAggregator aggregator = aggregator(10, 1000);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+
+        assertThat(aggregator.update(d1, -50, new byte[]{ 0x01 })).isTrue();
+        now = 999;
+        assertThat(aggregator.update(d1, -50, new byte[]{ 0x01 })).isFalse();
+        now = 1000;
+        assertThat(aggregator.update(d1, -50, new byte[]{ 0x01 })).isTrue();
+        now = 1500;
+        assertThat(aggregator.update(d1, -50, new byte[]{ 0x01 })).isFalse();
+    }
+
+    @Test
+    public void test_least_recently_seen_device_is_evicted() throws Exception {
+        ScanAggregator aggregator = aggregator(2, 0);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+        BluetoothDevice d3 = mockDevice("00:00:00:00:00:03");
+
+        aggregator.update(d1, -50, new byte[]{ 0x01 });
+        aggregator.update(d2, -50, new byte[]{ 0x01 });
+        aggregator.update(d1, -50, new byte[]{ 0x01 });
+        aggregator.update(d3, -50, new byte[]{ 0x01 });
+
+        assertThat(aggregator.size()).isEqualTo(2);
+        assertThat(aggregator.get("00:00:00:00:00:01")).isNotNull();
+        assertThat(aggregator.get("00:00:00:00:00:02")).isNull();
+        assertThat(aggregator.get("00:00:00:00:00:03")).isNotNull();
+    }
+
+    @Test
+    public void test_scan_with_aggregator_suppresses_repeats() throws Exception {
+        BluetoothAdapter adapter = mock(BluetoothAdapter.class);
+        AsyncBluetoothLeScan scanner = new AsyncBluetoothLeScan(adapter);
+        when(adapter.startLeScan(scanner)).thenReturn(true);
+        BluetoothDevice d1 = mockDevice("00:00:00:00:00:01");
+        BluetoothDevice d2 = mockDevice("00:00:00:00:00:02");
+        scanner.setAggregator(aggregator(10, 0));
+
+        scanner.start().progress(new ProgressCallback<ScanResult>() {
+            @Override
+            public void onProgress(ScanResult result) {
+                found.add(result);
+            }
+        });
+        for (int i = 0; i < 100; ++i) {
+            scanner.onLeScan(d1, -50, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+            scanner.onLeScan(d2, -50, new byte[]{ 0x02, 0x02, 0x03, 0x04 });
+        }
+
+        assertThat(found.size()).isEqualTo(2);
+        assertThat(found.get(0).device).isEqualTo(d1);
+        assertThat(found.get(1).device).isEqualTo(d2);
+        assertThat(scanner.getAggregator().get("00:00:00:00:00:01").getCount()).isEqualTo(100);
+    }
+}
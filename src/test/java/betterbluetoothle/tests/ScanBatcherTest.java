@@ -0,0 +1,123 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.scan.ScanBatcher;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanBatcherTest {
+
+    private ArrayList<Integer> sizes = new ArrayList<Integer>();
+    private ArrayList<Integer> rssis = new ArrayList<Integer>();
+    private ArrayList<ScanBatcher.Batch> batches = new ArrayList<ScanBatcher.Batch>();
+    private ScheduledExecutorService executor;
+    private ScanBatcher.Callback callback = new ScanBatcher.Callback() {
+        @Override
+        public void onBatch(ScanBatcher.Batch batch) {
+            sizes.add(batch.size());
+            batches.add(batch);
+            for (int i = 0; i < batch.size(); ++i) {
+                rssis.add(batch.getRssi(i));
+            }
+        }
+    };
+
+    @Before
+    public void setup() {
+        sizes.clear();
+        rssis.clear();
+        batches.clear();
+        // Executor which runs submitted tasks immediately.
+        executor = mock(ScheduledExecutorService.class);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable)invocation.getArguments()[0]).run();
+                return null;
+            }
+        }).when(executor).execute(any(Runnable.class));
+    }
+
+    @Test
+    public void test_full_batch_is_delivered() throws Exception {
+        ScanBatcher batcher = new ScanBatcher(3, 0, executor, callback);
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+
+        for (int i = 0; i < 7; ++i) {
+            batcher.add(d1, i, new byte[]{ 0x01 });
+        }
+
+        assertThat(sizes).containsExactly(3, 3);
+        assertThat(rssis).containsExactly(0, 1, 2, 3, 4, 5);
+    }
+
+    @Test
+    public void test_batches_are_reused() throws Exception {
+        ScanBatcher batcher = new ScanBatcher(2, 0, executor, callback);
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+
+        for (int i = 0; i < 4; ++i) {
+            batcher.add(d1, i, new byte[]{ 0x01 });
+        }
+
+        assertThat(batches.size()).isEqualTo(2);
+        assertThat(batches.get(0)).isSameAs(batches.get(1));
+        assertThat(batches.get(0).size()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_window_timer_flushes_partial_batch() throws Exception {
+        ScanBatcher batcher = new ScanBatcher(100, 500, executor, callback);
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+
+        batcher.add(d1, -40, new byte[]{ 0x01 });
+        batcher.add(d1, -41, new byte[]{ 0x01 });
+        ArgumentCaptor<Runnable> timer = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor).schedule(timer.capture(), eq(500L), eq(TimeUnit.MILLISECONDS));
+        assertThat(sizes).isEmpty();
+        timer.getValue().run();
+
+        assertThat(sizes).containsExactly(2);
+        assertThat(rssis).containsExactly(-40, -41);
+    }
+
+    @Test
+    public void test_scan_delivers_batches_and_flushes_on_stop() throws Exception {
+        BluetoothAdapter adapter = mock(BluetoothAdapter.class);
+        AsyncBluetoothLeScan scanner = new AsyncBluetoothLeScan(adapter);
+        when(adapter.startLeScan(scanner)).thenReturn(true);
+        scanner.setBatcher(new ScanBatcher(2, 0, executor, callback));
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+
+        scanner.start();
+        scanner.onLeScan(d1, 1, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        scanner.onLeScan(d1, 2, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        scanner.onLeScan(d1, 3, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        scanner.stop();
+
+        assertThat(sizes).containsExactly(2, 1);
+        assertThat(rssis).containsExactly(1, 2, 3);
+    }
+}
@@ -0,0 +1,224 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.scan.ScanCaptureReader;
+import betterbluetoothle.scan.ScanCaptureWriter;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanCaptureTest {
+
+    private File file;
+    private ArrayList<String> addresses = new ArrayList<String>();
+    private ArrayList<Integer> rssis = new ArrayList<Integer>();
+    private ArrayList<byte[]> payloads = new ArrayList<byte[]>();
+    private ScanCaptureReader.Visitor collect = new ScanCaptureReader.Visitor() {
+        @Override
+        public void visit(ScanCaptureReader.Record record) {
+            addresses.add(record.getAddress());
+            rssis.add(record.getRssi());
+            payloads.add(record.copyPayload());
+        }
+    };
+
+    @Before
+    public void setup() throws Exception {
+        file = File.createTempFile("capture", ".blec");
+        file.delete();
+        addresses.clear();
+        rssis.clear();
+        payloads.clear();
+    }
+
+    @After
+    public void teardown() {
+        file.delete();
+    }
+
+    // Count of records and sum of RSSI values.
+    private static class Totals {
+        long count;
+        long rssi;
+    }
+
+    @Test
+    public void test_records_round_trip() throws Exception {
+        ScanCaptureWriter writer = new ScanCaptureWriter(file);
+        writer.append(1000, "00:11:22:AA:BB:CC", -60, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        writer.append(2000, "FF:EE:DD:CC:BB:AA", -70, new byte[]{ 0x02, 0x02, 0x03, 0x04, 0x05 });
+        writer.close();
+
+        ScanCaptureReader reader = new ScanCaptureReader(file);
+        reader.read(collect);
+        reader.close();
+
+        assertThat(addresses).containsExactly("00:11:22:AA:BB:CC", "FF:EE:DD:CC:BB:AA");
+        assertThat(rssis).containsExactly(-60, -70);
+        assertThat(payloads.get(0)).isEqualTo(new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        assertThat(payloads.get(1)).isEqualTo(new byte[]{ 0x02, 0x02, 0x03, 0x04, 0x05 });
+    }
+
+    @Test
+    public void test_appending_keeps_existing_records() throws Exception {
+        ScanCaptureWriter writer = new ScanCaptureWriter(file);
+        writer.append(1000, "00:00:00:00:00:01", -60, new byte[]{ 0x01 });
+        writer.close();
+        writer = new ScanCaptureWriter(file);
+        writer.append(2000, "00:00:00:00:00:02", -60, new byte[]{ 0x02 });
+        writer.close();
+
+        ScanCaptureReader reader = new ScanCaptureReader(file);
+        reader.read(collect);
+        reader.close();
+
+        assertThat(addresses).containsExactly("00:00:00:00:00:01", "00:00:00:00:00:02");
+    }
+
+    @Test
+    public void test_replay_applies_uuid_filter() throws Exception {
+        ScanCaptureWriter writer = new ScanCaptureWriter(file);
+        writer.append(1000, "00:00:00:00:00:01", -60, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        writer.append(1000, "00:00:00:00:00:02", -60, new byte[]{ 0x02, 0x02, 0x03, 0x04 });
+        writer.close();
+
+        ScanCaptureReader reader = new ScanCaptureReader(file);
+        reader.replay(new UUID[] { UUID.fromString("00000201-0000-1000-8000-00805f9b34fb") }, collect);
+        reader.close();
+
+        assertThat(addresses).containsExactly("00:00:00:00:00:01");
+    }
+
+    @Test
+    public void test_largest_payload_fits_the_write_buffer() throws Exception {
+        byte[] payload = new byte[ScanCaptureWriter.MAX_PAYLOAD];
+        payload[payload.length - 1] = 7;
+        ScanCaptureWriter writer = new ScanCaptureWriter(file);
+        writer.append(1000, "00:00:00:00:00:01", -60, new byte[]{ 0x01 });
+        writer.append(2000, "00:00:00:00:00:02", -60, payload);
+        writer.close();
+
+        ScanCaptureReader reader = new ScanCaptureReader(file);
+        reader.read(collect);
+        reader.close();
+
+        assertThat(addresses).containsExactly("00:00:00:00:00:01", "00:00:00:00:00:02");
+        assertThat(payloads.get(1)).isEqualTo(payload);
+    }
+
+    @Test
+    public void test_uuid_filter_only_sees_the_record_payload() throws Exception {
+        ScanCaptureWriter writer = new ScanCaptureWriter(file);
+        // The first payload is longer and leaves its UUIDs in the reused record buffer.
+        writer.append(1000, "00:00:00:00:00:01", -60, new byte[]{ 0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18 });
+        writer.append(1000, "00:00:00:00:00:02", -60, new byte[]{ 0x02, 0x01, 0x06 });
+        writer.append(1000, "00:00:00:00:00:03", -60, new byte[]{ 0x11, 0x07,
+                (byte)0x9E, (byte)0xCA, (byte)0xDC, 0x24, 0x0E, (byte)0xE5, (byte)0xA9, (byte)0xE0,
+                (byte)0x93, (byte)0xF3, (byte)0xA3, (byte)0xB5, 0x01, 0x00, 0x40, 0x6E });
+        writer.close();
+
+        ScanCaptureReader reader = new ScanCaptureReader(file);
+        reader.replay(new UUID[] {
+            UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb"),
+            UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e")
+        }, collect);
+        reader.close();
+
+        assertThat(addresses).containsExactly("00:00:00:00:00:01", "00:00:00:00:00:03");
+    }
+
+    @Test
+    public void test_damaged_record_resyncs_at_next_sync() throws Exception {
+        ScanCaptureWriter writer = new ScanCaptureWriter(file, 2);
+        for (int i = 0; i < 6; ++i) {
+            writer.append(i, "00:00:00:00:00:01", -i, new byte[]{ 0x01, 0x02 });
+        }
+        writer.close();
+        // Corrupt the type of the first advertisement (header + sync record + length field).
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.seek(ScanCaptureWriter.HEADER_LENGTH + 2 + ScanCaptureWriter.SYNC_LENGTH + 2);
+        raw.write(0x7F);
+        raw.close();
+
+        ScanCaptureReader reader = new ScanCaptureReader(file);
+        reader.read(collect);
+        reader.close();
+
+        assertThat(rssis).containsExactly(-2, -3, -4, -5);
+    }
+
+    @Test
+    public void test_parallel_analysis_matches_sequential_read() throws Exception {
+        ScanCaptureWriter writer = new ScanCaptureWriter(file, 64);
+        long expected = 0;
+        for (int i = 0; i < 20000; ++i) {
+            writer.append(i, "00:00:00:00:00:01", -(i % 100), new byte[]{ 0x02, 0x01, 0x06, (byte)i });
+            expected += -(i % 100);
+        }
+        writer.close();
+
+        ScanCaptureReader reader = new ScanCaptureReader(file);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        Totals totals = reader.analyze(new ScanCaptureReader.Analysis<Totals>() {
+            @Override
+            public Totals create() {
+                return new Totals();
+            }
+            @Override
+            public void accept(Totals accumulator, ScanCaptureReader.Record record) {
+                accumulator.count++;
+                accumulator.rssi += record.getRssi();
+            }
+            @Override
+            public Totals combine(Totals first, Totals second) {
+                first.count += second.count;
+                first.rssi += second.rssi;
+                return first;
+            }
+        }, executor, 8);
+        executor.shutdown();
+        reader.close();
+
+        assertThat(totals.count).isEqualTo(20000);
+        assertThat(totals.rssi).isEqualTo(expected);
+    }
+
+    @Test
+    public void test_scan_captures_unfiltered_advertisements() throws Exception {
+        BluetoothAdapter adapter = mock(BluetoothAdapter.class);
+        AsyncBluetoothLeScan scanner = new AsyncBluetoothLeScan(adapter);
+        when(adapter.startLeScan(scanner)).thenReturn(true);
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+        when(d1.getAddress()).thenReturn("00:00:00:00:00:01");
+        ScanCaptureWriter writer = new ScanCaptureWriter(file);
+        scanner.setCapture(writer);
+
+        scanner.start(UUID.fromString("00000201-0000-1000-8000-00805f9b34fb"));
+        scanner.onLeScan(d1, -50, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        scanner.onLeScan(d1, -51, new byte[]{ 0x02, 0x02, 0x03, 0x04 });
+        writer.close();
+
+        ScanCaptureReader reader = new ScanCaptureReader(file);
+        reader.read(collect);
+        reader.close();
+        assertThat(rssis).containsExactly(-50, -51);
+    }
+}
@@ -0,0 +1,175 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import org.jdeferred.ProgressCallback;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.async.AsyncBluetoothLeScan.ScanResult;
+import betterbluetoothle.scan.ScanHub;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class ScanHubTest {
+
+    private ArrayList<ScanResult> foundA = new ArrayList<ScanResult>();
+    private ArrayList<ScanResult> foundB = new ArrayList<ScanResult>();
+    private BluetoothAdapter adapter;
+    private AsyncBluetoothLeScan scanner;
+
+    @Before
+    public void setup() {
+        foundA.clear();
+        foundB.clear();
+        adapter = mock(BluetoothAdapter.class);
+        scanner = new AsyncBluetoothLeScan(adapter);
+        when(adapter.startLeScan(scanner)).thenReturn(true);
+    }
+
+    // Progress callback which adds results to the specified list.
+    private ProgressCallback<ScanResult> collect(final ArrayList<ScanResult> found) {
+        return new ProgressCallback<ScanResult>() {
+            @Override
+            public void onProgress(ScanResult result) {
+                found.add(result);
+            }
+        };
+    }
+
+    @Test
+    public void test_subscribers_share_one_adapter_scan() throws Exception {
+        ScanHub hub = new ScanHub(scanner);
+
+        hub.subscribe();
+        hub.subscribe(UUID.fromString("00000201-0000-1000-8000-00805f9b34fb"));
+
+        verify(adapter, times(1)).startLeScan(scanner);
+        assertThat(hub.getSubscriberCount()).isEqualTo(2);
+    }
+
+    @Test
+    public void test_results_fan_out_to_matching_subscribers() throws Exception {
+        ScanHub hub = new ScanHub(scanner);
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+        BluetoothDevice d2 = mock(BluetoothDevice.class);
+
+        hub.subscribe().promise().progress(collect(foundA));
+        hub.subscribe(UUID.fromString("00000201-0000-1000-8000-00805f9b34fb")).promise().progress(collect(foundB));
+        scanner.onLeScan(d1, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+        scanner.onLeScan(d2, 0, new byte[]{ 0x02, 0x02, 0x03, 0x04 });
+
+        assertThat(foundA.size()).isEqualTo(2);
+        assertThat(foundB.size()).isEqualTo(1);
+        assertThat(foundB.get(0).device).isEqualTo(d1);
+        // Both subscribers receive the same parsed result.
+        assertThat(foundB.get(0)).isSameAs(foundA.get(0));
+    }
+
+    @Test
+    public void test_last_cancel_stops_adapter_scan() throws Exception {
+        ScanHub hub = new ScanHub(scanner);
+
+        ScanHub.Subscription a = hub.subscribe();
+        ScanHub.Subscription b = hub.subscribe();
+        a.cancel();
+        verify(adapter, never()).stopLeScan(scanner);
+        assertThat(a.promise().isResolved()).isTrue();
+        assertThat(b.promise().isPending()).isTrue();
+        b.cancel();
+
+        verify(adapter, times(1)).stopLeScan(scanner);
+        assertThat(b.promise().isResolved()).isTrue();
+    }
+
+    @Test
+    public void test_cancelled_subscriber_receives_no_results() throws Exception {
+        ScanHub hub = new ScanHub(scanner);
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+
+        ScanHub.Subscription a = hub.subscribe();
+        a.promise().progress(collect(foundA));
+        hub.subscribe().promise().progress(collect(foundB));
+        a.cancel();
+        scanner.onLeScan(d1, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+
+        assertThat(foundA.size()).isEqualTo(0);
+        assertThat(foundB.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_startlescan_failure_rejects_subscriptions() throws Exception {
+        when(adapter.startLeScan(scanner)).thenReturn(false);
+        ScanHub hub = new ScanHub(scanner);
+
+        ScanHub.Subscription a = hub.subscribe();
+
+        assertThat(a.promise().isRejected()).isTrue();
+        assertThat(hub.getSubscriberCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_for_adapter_returns_shared_hub() throws Exception {
+        assertThat(ScanHub.forAdapter(adapter)).isSameAs(ScanHub.forAdapter(adapter));
+        assertThat(ScanHub.forAdapter(adapter)).isNotSameAs(ScanHub.forAdapter(mock(BluetoothAdapter.class)));
+    }
+
+    @Test
+    public void test_cancelling_while_results_arrive_does_not_throw() throws Exception {
+        final ScanHub hub = new ScanHub(scanner);
+        final BluetoothDevice d1 = mock(BluetoothDevice.class);
+        final Throwable[] error = new Throwable[1];
+        // Keeps the adapter scan running while other subscriptions come and go.
+        hub.subscribe().promise().progress(collect(foundA));
+
+        Thread binder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < 20000; ++i) {
+                        scanner.onLeScan(d1, 0, new byte[]{ 0x02, 0x02, 0x01, 0x02 });
+                    }
+                }
+                catch (Throwable e) {
+                    error[0] = e;
+                }
+            }
+        });
+        binder.start();
+        while (binder.isAlive()) {
+            hub.subscribe().cancel();
+        }
+
+        assertThat(error[0]).isNull();
+        assertThat(foundA.size()).isEqualTo(20000);
+    }
+
+    @Test
+    public void test_unused_hub_does_not_keep_its_adapter() throws Exception {
+        BluetoothAdapter unused = mock(BluetoothAdapter.class);
+        ScanHub.forAdapter(unused);
+        WeakReference<BluetoothAdapter> reference = new WeakReference<BluetoothAdapter>(unused);
+        unused = null;
+
+        for (int i = 0; i < 50 && reference.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertThat(reference.get()).isNull();
+    }
+}
@@ -0,0 +1,308 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.locks.LockSupport;
+
+import betterbluetoothle.services.UART;
+
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+// UART peripheral on a simulated BLE link, for benchmarks.  A link thread runs connection events
+// every connection interval, and each event carries up to packetsPerEvent packets in each
+// direction: TX writes are acknowledged and RX notifications delivered through the GATT callback,
+// so the link thread plays the part of the binder thread.  A packet is lost with the loss
+// probability and, like the link layer, retransmitted in the next event, holding up the packets
+// behind it.  The peripheral can echo TX data back, and stream generated data at up to the
+// notification rate.
+public class SimulatedUARTPeripheral {
+
+    private static final UUID CLIENT_UUID = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    private final BluetoothDevice device = mock(BluetoothDevice.class);
+    private final Context context = mock(Context.class);
+    private final BluetoothGatt gatt = mock(BluetoothGatt.class);
+    // Real GATT objects, only the connection is mocked, so reading and writing values costs what it
+    // does on a device.
+    private final BluetoothGattService service = new BluetoothGattService(UART.UART_UUID, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+    private final BluetoothGattCharacteristic rx = new BluetoothGattCharacteristic(UART.RX_UUID, BluetoothGattCharacteristic.PROPERTY_NOTIFY, 0);
+    private final BluetoothGattCharacteristic tx = new BluetoothGattCharacteristic(UART.TX_UUID, BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, BluetoothGattCharacteristic.PERMISSION_WRITE);
+    private final BluetoothGattDescriptor client = new BluetoothGattDescriptor(CLIENT_UUID, BluetoothGattDescriptor.PERMISSION_WRITE);
+    private final Random random = new Random(1);
+    private BluetoothGattCallback callback;
+    private Thread thread;
+    private volatile boolean running;
+
+    // Link settings.
+    private long intervalNanos = 7500000;
+    private int packetsPerEvent = 6;
+    private int mtu = 23;
+    private double loss;
+    private double notificationRate;
+    private boolean echo;
+    // Packets written by the UART and not yet acknowledged, limited to the stack's buffers.
+    private final ArrayDeque<byte[]> written = new ArrayDeque<byte[]>();
+    private int bufferSize = 16;
+    // Notifications waiting to be sent, and generated stream bytes left to send.
+    private final ArrayDeque<byte[]> notifications = new ArrayDeque<byte[]>();
+    private long streamRemaining;
+    private double notificationAllowance;
+    // Statistics, guarded by the lock.
+    private long connectionEvents;
+    private long bytesWritten;
+    private long notificationsSent;
+    private long retransmissions;
+    // Time spent in the GATT callback for each notification.
+    private long[] notifyNanos = new long[1024];
+
+    public SimulatedUARTPeripheral() {
+        when(device.getAddress()).thenReturn("00:00:00:00:00:01");
+        when(device.connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class))).thenAnswer(new Answer<BluetoothGatt>() {
+            @Override
+            public BluetoothGatt answer(InvocationOnMock invocation) throws Throwable {
+                callback = (BluetoothGattCallback)invocation.getArguments()[2];
+                return gatt;
+            }
+        });
+        when(gatt.discoverServices()).thenReturn(true);
+        when(gatt.getService(UART.UART_UUID)).thenReturn(service);
+        when(gatt.writeDescriptor(client)).thenReturn(true);
+        when(gatt.setCharacteristicNotification(rx, true)).thenReturn(true);
+        when(gatt.writeCharacteristic(tx)).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                synchronized (SimulatedUARTPeripheral.this) {
+                    if (written.size() >= bufferSize) {
+                        return false;
+                    }
+                    // The stack copies the value when the write starts.
+                    written.add(tx.getValue().clone());
+                }
+                return true;
+            }
+        });
+        rx.addDescriptor(client);
+        service.addCharacteristic(rx);
+        service.addCharacteristic(tx);
+    }
+
+    // Set the connection interval in milliseconds and the packets carried in each direction by a
+    // connection event.
+    public void setConnectionInterval(double milliseconds, int packetsPerEvent) {
+        this.intervalNanos = (long)(milliseconds * 1000000);
+        this.packetsPerEvent = packetsPerEvent;
+    }
+
+    // Set the ATT MTU, packets carry up to mtu - 3 bytes.
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public int getPayloadSize() {
+        return mtu - 3;
+    }
+
+    // Probability that a packet has to be retransmitted in the next connection event.
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+
+    // Limit notifications to the rate per second, 0 for as fast as the link allows.
+    public void setNotificationRate(double notificationRate) {
+        this.notificationRate = notificationRate;
+    }
+
+    // Send TX data back as notifications.
+    public void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    // Number of written packets the stack buffers before refusing writes.
+    public synchronized void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    // Create a UART for the peripheral, connect it and start the link.
+    public UART connect() {
+        UART uart = new UART(device, context, false);
+        uart.setPacketSize(getPayloadSize());
+        uart.connect();
+        callback.onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_CONNECTED);
+        callback.onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS);
+        callback.onDescriptorWrite(gatt, client, BluetoothGatt.GATT_SUCCESS);
+        running = true;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runLink();
+            }
+        }, "SimulatedUARTPeripheral");
+        thread.start();
+        return uart;
+    }
+
+    // Stop the link and disconnect the UART.
+    public void disconnect() throws InterruptedException {
+        running = false;
+        thread.join();
+        callback.onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS, BluetoothGatt.STATE_DISCONNECTED);
+    }
+
+    // Stream count generated bytes to the UART as fast as the link and notification rate allow.
+    public synchronized void stream(long count) {
+        streamRemaining += count;
+    }
+
+    // Bytes the UART has written to the peripheral.
+    public synchronized long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    // Connection events run so far, the link's own clock in connection intervals.
+    public synchronized long getConnectionEvents() {
+        return connectionEvents;
+    }
+
+    public synchronized long getNotificationsSent() {
+        return notificationsSent;
+    }
+
+    public synchronized long getRetransmissions() {
+        return retransmissions;
+    }
+
+    // Nanoseconds spent in the GATT callback for each notification sent so far.
+    public synchronized long[] getNotifyNanos() {
+        return Arrays.copyOf(notifyNanos, (int)Math.min(notificationsSent, notifyNanos.length));
+    }
+
+    // Clear the statistics.
+    public synchronized void resetStatistics() {
+        connectionEvents = 0;
+        bytesWritten = 0;
+        notificationsSent = 0;
+        retransmissions = 0;
+    }
+
+    // Bytes allocated by one call to the mocked writeCharacteristic, so benchmarks can leave the
+    // mock's own cost out of their allocation figures.  Returns -1 when the JVM can't tell.
+    public long measureWriteOverhead() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean)threads).isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)threads;
+        long thread = Thread.currentThread().getId();
+        // A characteristic which isn't stubbed goes through the mock without queueing a packet.
+        BluetoothGattCharacteristic probe = new BluetoothGattCharacteristic(UART.TX_UUID, 0, 0);
+        for (int i = 0; i < 2000; ++i) {
+            gatt.writeCharacteristic(probe);
+        }
+        int calls = 10000;
+        long start = hotspot.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < calls; ++i) {
+            gatt.writeCharacteristic(probe);
+        }
+        return (hotspot.getThreadAllocatedBytes(thread) - start) / calls;
+    }
+
+    private void runLink() {
+        long next = System.nanoTime() + intervalNanos;
+        while (running) {
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+                continue;
+            }
+            next += intervalNanos;
+            connectionEvent();
+        }
+    }
+
+    // Carry up to packetsPerEvent packets in each direction.
+    private void connectionEvent() {
+        synchronized (this) {
+            connectionEvents++;
+        }
+        for (int i = 0; i < packetsPerEvent; ++i) {
+            byte[] packet;
+            synchronized (this) {
+                packet = written.peek();
+                if (packet == null) {
+                    break;
+                }
+                if (lost()) {
+                    break;
+                }
+                written.poll();
+                bytesWritten += packet.length;
+                if (echo) {
+                    notifications.add(packet);
+                }
+            }
+            callback.onCharacteristicWrite(gatt, tx, BluetoothGatt.GATT_SUCCESS);
+        }
+        if (notificationRate > 0) {
+            notificationAllowance = Math.min(packetsPerEvent, notificationAllowance + notificationRate * intervalNanos / 1e9);
+        }
+        for (int i = 0; i < packetsPerEvent; ++i) {
+            synchronized (this) {
+                if (notificationRate > 0 && notificationAllowance < 1) {
+                    break;
+                }
+                if (notifications.isEmpty() && streamRemaining > 0) {
+                    int length = (int)Math.min(getPayloadSize(), streamRemaining);
+                    byte[] data = new byte[length];
+                    for (int j = 0; j < length; ++j) {
+                        data[j] = (byte)(streamRemaining - j);
+                    }
+                    streamRemaining -= length;
+                    notifications.add(data);
+                }
+                if (notifications.isEmpty() || lost()) {
+                    break;
+                }
+                rx.setValue(notifications.poll());
+                if (notificationRate > 0) {
+                    notificationAllowance--;
+                }
+            }
+            long start = System.nanoTime();
+            callback.onCharacteristicChanged(gatt, rx);
+            long elapsed = System.nanoTime() - start;
+            synchronized (this) {
+                if (notificationsSent == notifyNanos.length) {
+                    notifyNanos = Arrays.copyOf(notifyNanos, notifyNanos.length * 2);
+                }
+                notifyNanos[(int)notificationsSent++] = elapsed;
+            }
+        }
+    }
+
+    // Must hold the lock.
+    private boolean lost() {
+        if (loss > 0 && random.nextDouble() < loss) {
+            retransmissions++;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,245 @@
+package betterbluetoothle.tests;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.BufferOverflowException;
+
+import betterbluetoothle.io.ByteRingBuffer;
+import betterbluetoothle.io.SpillQueue;
+import betterbluetoothle.io.SpillingByteRingBuffer;
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class SpillingBufferTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("spill", "test");
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static byte[] sequence(int start, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            data[i] = (byte)(start + i);
+        }
+        return data;
+    }
+
+    @Test
+    public void test_queue_reads_across_segments_in_order() throws Exception {
+        SpillQueue queue = new SpillQueue(directory, 16);
+
+        queue.write(sequence(0, 40), 0, 40);
+        byte[] data = new byte[40];
+
+        assertThat(queue.size()).isEqualTo(40);
+        assertThat(queue.get(33)).isEqualTo((byte)33);
+        assertThat(queue.read(data, 0, 40)).isEqualTo(40);
+        assertThat(data).isEqualTo(sequence(0, 40));
+        assertThat(queue.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void test_queue_recycles_consumed_segments() throws Exception {
+        SpillQueue queue = new SpillQueue(directory, 16);
+        byte[] data = new byte[16];
+
+        for (int i = 0; i < 20; ++i) {
+            queue.write(sequence(i, 16), 0, 16);
+            queue.read(data, 0, 16);
+            assertThat(data).isEqualTo(sequence(i, 16));
+        }
+
+        assertThat(queue.getSegmentsCreated()).isLessThanOrEqualTo(2);
+        queue.close();
+        assertThat(directory.listFiles()).isEmpty();
+    }
+
+    @Test
+    public void test_buffer_spills_beyond_memory_limit() throws Exception {
+        SpillingByteRingBuffer buffer = new SpillingByteRingBuffer(8, new SpillQueue(directory, 16));
+
+        assertThat(buffer.write(sequence(0, 30))).isEqualTo(30);
+
+        assertThat(buffer.size()).isEqualTo(30);
+        assertThat(buffer.getMemorySize()).isEqualTo(8);
+        assertThat(buffer.getSpillSize()).isEqualTo(22);
+        assertThat(buffer.get(20)).isEqualTo((byte)20);
+        assertThat(buffer.readAll()).isEqualTo(sequence(0, 30));
+        assertThat(buffer.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void test_writes_after_spilling_stay_in_order() throws Exception {
+        SpillingByteRingBuffer buffer = new SpillingByteRingBuffer(8, new SpillQueue(directory, 16));
+
+        buffer.write(sequence(0, 12));
+        assertThat(buffer.read(4)).isEqualTo(sequence(0, 4));
+        buffer.write(sequence(12, 4));
+
+        assertThat(buffer.getMemorySize()).isEqualTo(4);
+        assertThat(buffer.read(6)).isEqualTo(sequence(4, 6));
+        assertThat(buffer.getMemorySize()).isEqualTo(6);
+        assertThat(buffer.getSpillSize()).isEqualTo(0);
+        assertThat(buffer.readAll()).isEqualTo(sequence(10, 6));
+    }
+
+    @Test
+    public void test_peek_and_skip_cover_spilled_bytes() throws Exception {
+        SpillingByteRingBuffer buffer = new SpillingByteRingBuffer(4, new SpillQueue(directory, 16));
+        byte[] data = new byte[6];
+
+        buffer.write(sequence(0, 20));
+
+        assertThat(buffer.peek(2, data, 0, 6)).isEqualTo(6);
+        assertThat(data).isEqualTo(sequence(2, 6));
+        assertThat(buffer.skip(10)).isEqualTo(10);
+        assertThat(buffer.readAll()).isEqualTo(sequence(10, 10));
+    }
+
+    @Test
+    public void test_queue_truncates_newest_bytes() throws Exception {
+        SpillQueue queue = new SpillQueue(directory, 16);
+
+        queue.write(sequence(0, 40), 0, 40);
+        queue.skip(4);
+
+        assertThat(queue.truncate(30)).isEqualTo(30);
+        assertThat(queue.size()).isEqualTo(6);
+        queue.write(sequence(10, 4), 0, 4);
+        byte[] data = new byte[10];
+        assertThat(queue.read(data, 0, 10)).isEqualTo(10);
+        assertThat(data).isEqualTo(sequence(4, 10));
+    }
+
+    @Test
+    public void test_limit_covers_memory_and_disk() throws Exception {
+        SpillingByteRingBuffer buffer = new SpillingByteRingBuffer(8, new SpillQueue(directory, 16));
+        buffer.setLimit(20, ByteRingBuffer.OverflowPolicy.DROP_OLDEST);
+
+        buffer.write(sequence(0, 30));
+
+        assertThat(buffer.size()).isEqualTo(20);
+        assertThat(buffer.getDropped()).isEqualTo(10);
+        assertThat(buffer.readAll()).isEqualTo(sequence(10, 20));
+    }
+
+    @Test
+    public void test_lowering_the_limit_drops_newest_spilled_bytes() throws Exception {
+        SpillingByteRingBuffer buffer = new SpillingByteRingBuffer(8, new SpillQueue(directory, 16));
+        buffer.write(sequence(0, 30));
+
+        buffer.setLimit(5, ByteRingBuffer.OverflowPolicy.DROP_NEWEST);
+        buffer.write(sequence(30, 5));
+
+        assertThat(buffer.getSpillSize()).isEqualTo(0);
+        assertThat(buffer.getDropped()).isEqualTo(30);
+        assertThat(buffer.readAll()).isEqualTo(sequence(0, 5));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void test_fail_policy_applies_to_spilled_bytes() throws Exception {
+        SpillingByteRingBuffer buffer = new SpillingByteRingBuffer(4, new SpillQueue(directory, 16));
+        buffer.setLimit(10, ByteRingBuffer.OverflowPolicy.FAIL);
+
+        buffer.write(sequence(0, 8));
+        buffer.write(sequence(8, 4));
+    }
+
+    @Test
+    public void test_disk_error_loses_only_unwritten_bytes() throws Exception {
+        File segments = new File(directory, "segments");
+        segments.mkdirs();
+        SpillingByteRingBuffer buffer = new SpillingByteRingBuffer(4, new SpillQueue(segments, 16));
+        buffer.write(sequence(0, 12));
+        for (File file : segments.listFiles()) {
+            file.delete();
+        }
+        segments.delete();
+
+        // 8 bytes fit the open segment, the next segment can't be created.
+        assertThat(buffer.write(sequence(12, 20))).isEqualTo(8);
+        assertThat(buffer.getSpilled()).isEqualTo(16);
+        assertThat(buffer.getDropped()).isEqualTo(12);
+        assertThat(buffer.readAll()).isEqualTo(sequence(0, 20));
+    }
+
+    @Test
+    public void test_uart_keeps_its_buffer_if_spilling_fails() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        uart.setReceiveBufferLimit(100, ByteRingBuffer.OverflowPolicy.FAIL);
+        peripheral.send(sequence(0, 50));
+
+        try {
+            uart.setReceiveSpill(new File(directory, "missing"), 10);
+            fail("Spilling to a missing directory should fail.");
+        }
+        catch (IllegalStateException e) {
+            // Expected.
+        }
+
+        assertThat(uart.getReceiveSpilled()).isEqualTo(0);
+        assertThat(uart.readAll()).isEqualTo(sequence(0, 50));
+    }
+
+    @Test
+    public void test_uart_keeps_receive_limit_when_spilling() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        uart.setReceiveBufferLimit(50, ByteRingBuffer.OverflowPolicy.DROP_OLDEST);
+        uart.setReceiveSpill(directory, 10);
+
+        for (int i = 0; i < 5; ++i) {
+            peripheral.send(sequence(i * 20, 20));
+        }
+
+        assertThat(uart.available()).isEqualTo(50);
+        assertThat(uart.getReceiveDropped()).isEqualTo(50);
+        uart.setReceiveBufferLimit(60, ByteRingBuffer.OverflowPolicy.DROP_NEWEST);
+        uart.setReceiveSpill(null, 0);
+        peripheral.send(sequence(100, 20));
+        assertThat(uart.readAll()).isEqualTo(sequence(50, 60));
+    }
+
+    @Test
+    public void test_uart_reads_spilled_data_in_order() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        uart.setReceiveSpill(directory, 10);
+
+        for (int i = 0; i < 5; ++i) {
+            peripheral.send(sequence(i * 20, 20));
+        }
+
+        assertThat(uart.available()).isEqualTo(100);
+        assertThat(uart.getReceiveSpilled()).isEqualTo(90);
+        InputStream in = uart.getInputStream();
+        byte[] data = new byte[30];
+        assertThat(in.read(data, 0, 30)).isEqualTo(30);
+        assertThat(data).isEqualTo(sequence(0, 30));
+        assertThat(uart.readAll()).isEqualTo(sequence(30, 70));
+        assertThat(uart.getReceiveSpilled()).isEqualTo(0);
+    }
+}
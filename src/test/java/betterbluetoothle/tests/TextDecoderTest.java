@@ -0,0 +1,91 @@
+package betterbluetoothle.tests;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import betterbluetoothle.io.ByteRingBuffer;
+import betterbluetoothle.io.TextDecoder;
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class TextDecoderTest {
+
+    @Test
+    public void test_character_split_across_decodes() throws Exception {
+        TextDecoder decoder = new TextDecoder();
+        byte[] data = "a\u00e9\u20ac".getBytes("UTF-8");
+
+        decoder.decode(data, 0, 2);
+        assertThat(decoder.take()).isEqualTo("a");
+        assertThat(decoder.getIncomplete()).isEqualTo(1);
+        decoder.decode(data, 2, 2);
+        assertThat(decoder.take()).isEqualTo("\u00e9");
+        decoder.decode(data, 4, 2);
+
+        assertThat(decoder.take()).isEqualTo("\u20ac");
+        assertThat(decoder.getIncomplete()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_decode_from_ring_buffer() throws Exception {
+        TextDecoder decoder = new TextDecoder();
+        ByteRingBuffer buffer = new ByteRingBuffer();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 200; ++i) {
+            text.append("\u00fc\u20ac");
+        }
+        buffer.write(text.toString().getBytes("UTF-8"));
+
+        decoder.decode(buffer, 3);
+        assertThat(buffer.size()).isEqualTo(997);
+        decoder.decode(buffer, buffer.size());
+
+        assertThat(decoder.take()).isEqualTo(text.toString());
+        assertThat(buffer.isEmpty()).isTrue();
+    }
+
+    @Test
+    public void test_read_lines() throws Exception {
+        TextDecoder decoder = new TextDecoder();
+
+        decoder.decode("one\r\ntw".getBytes("UTF-8"), 0, 7);
+        assertThat(decoder.readLine()).isEqualTo("one");
+        assertThat(decoder.readLine()).isNull();
+        decoder.decode("o\nthree".getBytes("UTF-8"), 0, 7);
+
+        assertThat(decoder.readLine()).isEqualTo("two");
+        assertThat(decoder.readLine()).isNull();
+        assertThat(decoder.take()).isEqualTo("three");
+    }
+
+    @Test
+    public void test_malformed_input_is_replaced() throws Exception {
+        TextDecoder decoder = new TextDecoder();
+
+        decoder.decode(new byte[]{ 'a', (byte)0xFF, 'b' }, 0, 3);
+
+        assertThat(decoder.take()).isEqualTo("a\ufffdb");
+    }
+
+    @Test
+    public void test_uart_reads_split_characters() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        byte[] data = "\u00e9t\u00e9\nnext".getBytes("UTF-8");
+
+        peripheral.send(new byte[]{ data[0] });
+        assertThat(uart.readAllString()).isEqualTo("");
+        peripheral.send(new byte[]{ data[1], data[2], data[3] });
+        assertThat(uart.readString(1)).isEqualTo("\u00e9");
+        byte[] rest = new byte[data.length - 4];
+        System.arraycopy(data, 4, rest, 0, rest.length);
+        peripheral.send(rest);
+
+        assertThat(uart.readLine()).isEqualTo("t\u00e9");
+        assertThat(uart.readLine()).isNull();
+        assertThat(uart.readAllString()).isEqualTo("next");
+    }
+}
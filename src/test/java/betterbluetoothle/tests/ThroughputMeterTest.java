@@ -0,0 +1,63 @@
+package betterbluetoothle.tests;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import betterbluetoothle.io.ThroughputMeter;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class ThroughputMeterTest {
+
+    // Meter with a clock controlled by the test.
+    private static class TestMeter extends ThroughputMeter {
+        long time = 10000;
+
+        TestMeter() {
+            super(10, 100);
+        }
+
+        @Override
+        protected long now() {
+            return time;
+        }
+    }
+
+    @Test
+    public void test_rate_over_window() throws Exception {
+        TestMeter meter = new TestMeter();
+
+        for (int i = 0; i < 20; ++i) {
+            meter.record(100);
+            meter.time += 100;
+        }
+
+        // 1000 bytes per second, only the last second is counted.
+        assertThat(meter.getBytesPerSecond()).isEqualTo(1000.0);
+        assertThat(meter.getTotal()).isEqualTo(2000);
+    }
+
+    @Test
+    public void test_rate_before_window_fills() throws Exception {
+        TestMeter meter = new TestMeter();
+
+        meter.record(100);
+        meter.time += 500;
+        meter.record(100);
+
+        assertThat(meter.getBytesPerSecond()).isEqualTo(400.0);
+    }
+
+    @Test
+    public void test_rate_drops_to_zero_when_idle() throws Exception {
+        TestMeter meter = new TestMeter();
+
+        meter.record(1000);
+        meter.time += 5000;
+
+        assertThat(meter.getBytesPerSecond()).isEqualTo(0.0);
+        assertThat(meter.getTotal()).isEqualTo(1000);
+    }
+}
@@ -0,0 +1,253 @@
+package betterbluetoothle.tests;
+
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import betterbluetoothle.services.UART;
+import betterbluetoothle.transfer.Transfer;
+import betterbluetoothle.transfer.TransferReceiver;
+import betterbluetoothle.transfer.TransferSender;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+public class TransferTest {
+
+    // Output which queues frames until the test delivers them.
+    private static class Queue implements Transfer.Output {
+        final ArrayDeque<byte[]> frames = new ArrayDeque<byte[]>();
+        int written;
+
+        @Override
+        public void write(byte[] data) {
+            frames.add(data);
+            written++;
+        }
+    }
+
+    private Queue toReceiver;
+    private Queue toSender;
+    private TransferReceiver receiver;
+    private ScheduledExecutorService executor;
+    private ArrayList<Integer> progress = new ArrayList<Integer>();
+
+    @Before
+    public void setup() {
+        toReceiver = new Queue();
+        toSender = new Queue();
+        receiver = new TransferReceiver(toSender);
+        executor = mock(ScheduledExecutorService.class);
+        progress.clear();
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private ProgressCallback<Integer> collect() {
+        return new ProgressCallback<Integer>() {
+            @Override
+            public void onProgress(Integer bytes) {
+                progress.add(bytes);
+            }
+        };
+    }
+
+    // Deliver queued frames in both directions until none are left.  Frames to the receiver whose
+    // (1 based) number is in drop are lost.
+    private void pump(TransferSender sender, int... drop) {
+        int number = 0;
+        while (!toReceiver.frames.isEmpty() || !toSender.frames.isEmpty()) {
+            while (!toReceiver.frames.isEmpty()) {
+                byte[] frame = toReceiver.frames.poll();
+                number++;
+                boolean lost = false;
+                for (int d : drop) {
+                    lost |= d == number;
+                }
+                if (!lost) {
+                    receiver.receive(frame);
+                }
+            }
+            while (!toSender.frames.isEmpty()) {
+                sender.receive(toSender.frames.poll());
+            }
+        }
+    }
+
+    // Run the most recently scheduled timeout.
+    private void runTimeout() {
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, atLeast(1)).schedule(task.capture(), eq(TransferSender.DEFAULT_TIMEOUT), eq(TimeUnit.MILLISECONDS));
+        task.getValue().run();
+    }
+
+    @Test
+    public void test_transfer_completes() throws Exception {
+        TransferSender sender = new TransferSender(toReceiver, null);
+        byte[] data = random(10000);
+
+        Promise<Void, Void, Integer> transfer = sender.send(7, data).progress(collect());
+        pump(sender);
+
+        assertThat(transfer.isResolved()).isTrue();
+        assertThat(receiver.getData(7)).isEqualTo(data);
+        assertThat(progress.get(progress.size() - 1)).isEqualTo(10000);
+        assertThat(sender.getChunksSent()).isEqualTo(79);
+        assertThat(sender.getResent()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_empty_transfer_completes() throws Exception {
+        TransferSender sender = new TransferSender(toReceiver, null);
+
+        Promise<Void, Void, Integer> transfer = sender.send(1, new byte[0]);
+        pump(sender);
+
+        assertThat(transfer.isResolved()).isTrue();
+        assertThat(receiver.getData(1)).isEmpty();
+    }
+
+    @Test
+    public void test_lost_chunks_are_resent_from_selective_acks() throws Exception {
+        TransferSender sender = new TransferSender(toReceiver, null);
+        byte[] data = random(5000);
+
+        // Frame 1 is START, so chunks 1 and 4 are lost.
+        Promise<Void, Void, Integer> transfer = sender.send(2, data);
+        pump(sender, 3, 6);
+
+        assertThat(transfer.isResolved()).isTrue();
+        assertThat(receiver.getData(2)).isEqualTo(data);
+        assertThat(sender.getResent()).isEqualTo(2);
+    }
+
+    @Test
+    public void test_corrupt_chunk_is_dropped_and_resent() throws Exception {
+        TransferSender sender = new TransferSender(toReceiver, null);
+        byte[] data = random(1000);
+
+        Promise<Void, Void, Integer> transfer = sender.send(3, data);
+        receiver.receive(toReceiver.frames.poll());
+        sender.receive(toSender.frames.poll());
+        byte[] frame = toReceiver.frames.peek();
+        frame[20] = (byte)(frame[20] == 1 ? 2 : 1);
+        pump(sender);
+
+        assertThat(receiver.getCorrupt()).isEqualTo(1);
+        assertThat(transfer.isResolved()).isTrue();
+        assertThat(receiver.getData(3)).isEqualTo(data);
+    }
+
+    @Test
+    public void test_timeout_resends_last_chunk() throws Exception {
+        TransferSender sender = new TransferSender(toReceiver, executor);
+        byte[] data = random(500);
+
+        Promise<Void, Void, Integer> transfer = sender.send(4, data);
+        // 4 chunks, the last one is lost so no later acknowledgement reveals it.
+        pump(sender, 5);
+        assertThat(transfer.isPending()).isTrue();
+        runTimeout();
+        assertThat(transfer.isPending()).isTrue();
+        runTimeout();
+        pump(sender);
+
+        assertThat(transfer.isResolved()).isTrue();
+        assertThat(receiver.getData(4)).isEqualTo(data);
+        assertThat(sender.getResent()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_transfer_fails_after_retries() throws Exception {
+        TransferSender sender = new TransferSender(toReceiver, executor);
+        sender.setTimeout(TransferSender.DEFAULT_TIMEOUT, 1);
+
+        Promise<Void, Void, Integer> transfer = sender.send(5, random(100));
+        toReceiver.frames.clear();
+        runTimeout();
+        assertThat(transfer.isPending()).isTrue();
+        assertThat(toReceiver.frames).hasSize(1);
+        runTimeout();
+
+        assertThat(transfer.isRejected()).isTrue();
+    }
+
+    @Test
+    public void test_transfer_resumes_from_received_chunks() throws Exception {
+        TransferSender sender = new TransferSender(toReceiver, null);
+        byte[] data = random(3000);
+
+        Promise<Void, Void, Integer> first = sender.send(6, data);
+        // Deliver START and the first window, then lose the link.
+        receiver.receive(toReceiver.frames.poll());
+        sender.receive(toSender.frames.poll());
+        while (!toReceiver.frames.isEmpty()) {
+            receiver.receive(toReceiver.frames.poll());
+        }
+        toSender.frames.clear();
+        sender.cancel();
+        assertThat(first.isRejected()).isTrue();
+        assertThat(receiver.getReceived(6)).isEqualTo(8 * 128);
+
+        TransferSender resumed = new TransferSender(toReceiver, null);
+        Promise<Void, Void, Integer> second = resumed.send(6, data).progress(collect());
+        pump(resumed);
+
+        assertThat(second.isResolved()).isTrue();
+        assertThat(receiver.getData(6)).isEqualTo(data);
+        assertThat(resumed.getChunksSent()).isEqualTo(24 - 8);
+        assertThat(progress.get(0)).isEqualTo(8 * 128);
+    }
+
+    @Test
+    public void test_transfer_over_uart() throws Exception {
+        final MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        TransferSender sender = TransferSender.attach(uart, null);
+        final List<byte[]> acks = new ArrayList<byte[]>();
+        TransferReceiver device = new TransferReceiver(new Transfer.Output() {
+            @Override
+            public void write(byte[] data) {
+                acks.add(data);
+            }
+        });
+        byte[] data = random(4000);
+
+        Promise<Void, Void, Integer> transfer = sender.send(8, data);
+        int delivered = 0;
+        while (transfer.isPending()) {
+            List<byte[]> written = peripheral.getWritten();
+            while (delivered < written.size()) {
+                device.receive(written.get(delivered++));
+            }
+            while (!acks.isEmpty()) {
+                peripheral.send(acks.remove(0));
+            }
+            if (!peripheral.acknowledge(android.bluetooth.BluetoothGatt.GATT_SUCCESS, 100)) {
+                break;
+            }
+        }
+
+        assertThat(transfer.isResolved()).isTrue();
+        assertThat(device.getData(8)).isEqualTo(data);
+    }
+}
@@ -0,0 +1,111 @@
+package betterbluetoothle.tests;
+
+import org.jdeferred.DoneCallback;
+import org.jdeferred.Promise;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import betterbluetoothle.io.ByteRingBuffer;
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTAsyncReadTest {
+
+    // Get the value of a resolved promise.
+    private static byte[] result(Promise<byte[], Void, Void> promise) throws Exception {
+        assertThat(promise.isResolved()).isTrue();
+        final byte[][] value = new byte[1][];
+        promise.done(new DoneCallback<byte[]>() {
+            @Override
+            public void onDone(byte[] result) {
+                value[0] = result;
+            }
+        });
+        return value[0];
+    }
+
+    @Test
+    public void test_read_async_resolves_when_count_is_received() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        Promise<byte[], Void, Void> read = uart.readAsync(4);
+        peripheral.send(new byte[]{ 1, 2 });
+        assertThat(read.isPending()).isTrue();
+        peripheral.send(new byte[]{ 3, 4, 5 });
+
+        assertThat(result(read)).isEqualTo(new byte[]{ 1, 2, 3, 4 });
+        assertThat(uart.available()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_read_async_resolves_from_buffered_data() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        peripheral.send(new byte[]{ 1, 2, 3 });
+
+        assertThat(result(uart.readAsync(2))).isEqualTo(new byte[]{ 1, 2 });
+        assertThat(result(uart.readAsync(0))).isEmpty();
+    }
+
+    @Test
+    public void test_read_until_delimiter() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        Promise<byte[], Void, Void> first = uart.readUntilAsync((byte)'\n');
+        Promise<byte[], Void, Void> second = uart.readUntilAsync((byte)'\n');
+        peripheral.send("OK".getBytes());
+        peripheral.send(" 1".getBytes());
+        assertThat(first.isPending()).isTrue();
+        peripheral.send("\nOK 2\nrest".getBytes());
+
+        assertThat(new String(result(first))).isEqualTo("OK 1\n");
+        assertThat(new String(result(second))).isEqualTo("OK 2\n");
+        assertThat(uart.readAllString()).isEqualTo("rest");
+    }
+
+    @Test
+    public void test_read_until_after_other_reads_consume_data() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        Promise<byte[], Void, Void> read = uart.readUntilAsync((byte)';');
+        peripheral.send("abc".getBytes());
+        assertThat(uart.read(2)).isEqualTo("ab".getBytes());
+        peripheral.send("d;".getBytes());
+
+        assertThat(new String(result(read))).isEqualTo("cd;");
+    }
+
+    @Test
+    public void test_read_until_with_dropped_data() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        uart.setReceiveBufferLimit(4, ByteRingBuffer.OverflowPolicy.DROP_OLDEST);
+
+        Promise<byte[], Void, Void> read = uart.readUntilAsync((byte)';');
+        peripheral.send("abc".getBytes());
+        peripheral.send("defg;".getBytes());
+
+        assertThat(new String(result(read))).isEqualTo("efg;");
+    }
+
+    @Test
+    public void test_disconnect_rejects_pending_reads() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        Promise<byte[], Void, Void> read = uart.readAsync(10);
+        peripheral.send(new byte[]{ 1 });
+        peripheral.disconnect();
+
+        assertThat(read.isRejected()).isTrue();
+        assertThat(uart.readAsync(1).isResolved()).isTrue();
+        assertThat(uart.readAsync(1).isRejected()).isTrue();
+    }
+}
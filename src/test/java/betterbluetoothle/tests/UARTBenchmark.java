@@ -0,0 +1,288 @@
+package betterbluetoothle.tests;
+
+import org.jdeferred.Promise;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+import betterbluetoothle.io.TextDecoder;
+import betterbluetoothle.services.UART;
+
+// Throughput and latency benchmark of UART against a SimulatedUARTPeripheral.  It measures
+//
+//   tx    sustained bytes per second of UART writes, and heap allocated per MB written
+//   rx    sustained bytes per second read from the input stream, heap allocated per MB read, and
+//         the time each notification spends in the GATT callback (i.e. on the binder thread)
+//   echo  round trip time percentiles of small writes echoed back by the peripheral
+//
+// and reports them as JSON.  The class name doesn't end in Test so it isn't part of the normal test
+// run, run it with JUnit on its own, e.g. from CI, and set the link with system properties:
+//
+//   benchmark.interval       connection interval in milliseconds (7.5)
+//   benchmark.packets        packets per connection event in each direction (6)
+//   benchmark.mtu            ATT MTU (23)
+//   benchmark.loss           probability a packet is retransmitted in the next event (0)
+//   benchmark.rate           notifications per second, 0 for unlimited (0)
+//   benchmark.noResponse     use write without response (false)
+//   benchmark.bytes          bytes sent in each direction (65536)
+//   benchmark.echoes         number of echo round trips (100)
+//   benchmark.output         file to write the JSON to, it is always printed
+//
+// Allocation is counted on every thread with the HotSpot thread MXBean (-1 when unavailable).  The
+// cost of the mocked writeCharacteristic is measured and left out of the tx figure, the rest of
+// the simulated stack is plain objects, but treat it as a figure for spotting regressions rather
+// than what a device allocates.
+@RunWith(RobolectricTestRunner.class)
+public class UARTBenchmark {
+
+    private static final int ECHO_SIZE = 8;
+    private static final int WRITE_SIZE = 1024;
+    private static final double MB = 1024 * 1024;
+
+    private double interval = 7.5;
+    private int packets = 6;
+    private int mtu = 23;
+    private double loss;
+    private double rate;
+    private boolean noResponse;
+    private long bytes = 65536;
+    private int echoes = 100;
+
+    public void setConnectionInterval(double interval, int packets) {
+        this.interval = interval;
+        this.packets = packets;
+    }
+
+    public void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    public void setLoss(double loss) {
+        this.loss = loss;
+    }
+
+    public void setNotificationRate(double rate) {
+        this.rate = rate;
+    }
+
+    public void setWriteWithoutResponse(boolean noResponse) {
+        this.noResponse = noResponse;
+    }
+
+    public void setBytes(long bytes) {
+        this.bytes = bytes;
+    }
+
+    public void setEchoes(int echoes) {
+        this.echoes = echoes;
+    }
+
+    // Benchmark with the settings from the system properties.
+    @Test
+    public void benchmark() throws Exception {
+        UARTBenchmark benchmark = new UARTBenchmark();
+        benchmark.setConnectionInterval(Double.parseDouble(System.getProperty("benchmark.interval", "7.5")), Integer.getInteger("benchmark.packets", 6));
+        benchmark.setMtu(Integer.getInteger("benchmark.mtu", 23));
+        benchmark.setLoss(Double.parseDouble(System.getProperty("benchmark.loss", "0")));
+        benchmark.setNotificationRate(Double.parseDouble(System.getProperty("benchmark.rate", "0")));
+        benchmark.setWriteWithoutResponse(Boolean.getBoolean("benchmark.noResponse"));
+        benchmark.setBytes(Long.getLong("benchmark.bytes", 65536));
+        benchmark.setEchoes(Integer.getInteger("benchmark.echoes", 100));
+        String json = benchmark.run();
+        System.out.println(json);
+        String output = System.getProperty("benchmark.output");
+        if (output != null) {
+            OutputStream out = new FileOutputStream(new File(output));
+            try {
+                out.write(json.getBytes(TextDecoder.UTF_8));
+            }
+            finally {
+                out.close();
+            }
+        }
+    }
+
+    // Run every measurement on a fresh simulated link and return the results as JSON.
+    public String run() throws Exception {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"config\":{");
+        field(json, "connectionIntervalMs", interval).append(',');
+        field(json, "packetsPerEvent", packets).append(',');
+        field(json, "mtu", mtu).append(',');
+        field(json, "loss", loss).append(',');
+        field(json, "notificationRate", rate).append(',');
+        json.append("\"writeWithoutResponse\":").append(noResponse).append(',');
+        field(json, "bytes", bytes).append(',');
+        field(json, "echoes", echoes).append("},");
+        json.append("\"tx\":");
+        transmit(json);
+        json.append(",\"rx\":");
+        receive(json);
+        json.append(",\"echo\":");
+        echo(json);
+        json.append('}');
+        return json.toString();
+    }
+
+    private SimulatedUARTPeripheral peripheral() {
+        SimulatedUARTPeripheral peripheral = new SimulatedUARTPeripheral();
+        peripheral.setConnectionInterval(interval, packets);
+        peripheral.setMtu(mtu);
+        peripheral.setLoss(loss);
+        peripheral.setNotificationRate(rate);
+        return peripheral;
+    }
+
+    private UART connect(SimulatedUARTPeripheral peripheral) {
+        UART uart = peripheral.connect();
+        uart.setWriteWithoutResponse(noResponse);
+        return uart;
+    }
+
+    private void transmit(StringBuilder json) throws Exception {
+        SimulatedUARTPeripheral peripheral = peripheral();
+        UART uart = connect(peripheral);
+        byte[] data = new byte[WRITE_SIZE];
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        Promise<Void, Integer, Integer> last = null;
+        for (long sent = 0; sent < bytes; sent += data.length) {
+            last = uart.write(data.length <= bytes - sent ? data : Arrays.copyOf(data, (int)(bytes - sent)));
+        }
+        if (last != null) {
+            last.waitSafely();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        long written = peripheral.getBytesWritten();
+        long overhead = peripheral.measureWriteOverhead();
+        if (allocated >= 0 && overhead >= 0) {
+            allocated = Math.max(0, allocated - overhead * uart.getPacketsSent());
+        }
+        peripheral.disconnect();
+        json.append('{');
+        field(json, "bytes", written).append(',');
+        field(json, "seconds", seconds).append(',');
+        field(json, "bytesPerSecond", written / seconds).append(',');
+        field(json, "allocatedBytesPerMB", perMB(allocated, written)).append(',');
+        field(json, "mockBytesPerPacket", overhead).append(',');
+        field(json, "retransmissions", peripheral.getRetransmissions()).append('}');
+    }
+
+    private void receive(StringBuilder json) throws Exception {
+        SimulatedUARTPeripheral peripheral = peripheral();
+        UART uart = connect(peripheral);
+        InputStream in = uart.getInputStream();
+        byte[] buffer = new byte[WRITE_SIZE];
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        peripheral.stream(bytes);
+        long read = 0;
+        while (read < bytes) {
+            int count = in.read(buffer, 0, buffer.length);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        allocated = allocated < 0 ? -1 : allocatedBytes() - allocated;
+        peripheral.disconnect();
+        long[] notify = peripheral.getNotifyNanos();
+        Arrays.sort(notify);
+        long total = 0;
+        for (long nanos : notify) {
+            total += nanos;
+        }
+        json.append('{');
+        field(json, "bytes", read).append(',');
+        field(json, "seconds", seconds).append(',');
+        field(json, "bytesPerSecond", read / seconds).append(',');
+        field(json, "allocatedBytesPerMB", perMB(allocated, read)).append(',');
+        field(json, "notifications", notify.length).append(',');
+        field(json, "retransmissions", peripheral.getRetransmissions()).append(',');
+        json.append("\"binderNanosPerNotification\":{");
+        field(json, "mean", notify.length == 0 ? 0 : (double)total / notify.length).append(',');
+        field(json, "p50", percentile(notify, 0.5)).append(',');
+        field(json, "p99", percentile(notify, 0.99)).append(',');
+        field(json, "max", notify.length == 0 ? 0 : notify[notify.length - 1]).append("}}");
+    }
+
+    private void echo(StringBuilder json) throws Exception {
+        SimulatedUARTPeripheral peripheral = peripheral();
+        peripheral.setEcho(true);
+        UART uart = connect(peripheral);
+        byte[] message = new byte[ECHO_SIZE];
+        long[] rtt = new long[echoes];
+        int completed = 0;
+        for (int i = 0; i < echoes; ++i) {
+            long start = System.nanoTime();
+            Promise<byte[], Void, Void> reply = uart.readAsync(message.length);
+            uart.write(message);
+            reply.waitSafely();
+            if (!reply.isResolved()) {
+                break;
+            }
+            rtt[completed++] = System.nanoTime() - start;
+        }
+        peripheral.disconnect();
+        rtt = Arrays.copyOf(rtt, completed);
+        Arrays.sort(rtt);
+        json.append('{');
+        field(json, "count", completed).append(',');
+        json.append("\"rttMs\":{");
+        field(json, "p50", percentile(rtt, 0.5) / 1e6).append(',');
+        field(json, "p90", percentile(rtt, 0.9) / 1e6).append(',');
+        field(json, "p99", percentile(rtt, 0.99) / 1e6).append(',');
+        field(json, "max", completed == 0 ? 0 : rtt[completed - 1] / 1e6).append("}}");
+    }
+
+    // Nearest rank percentile of sorted values.
+    static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int)Math.ceil(fraction * sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    private static double perMB(long allocated, long transferred) {
+        return allocated < 0 || transferred == 0 ? -1 : allocated / (transferred / MB);
+    }
+
+    // Bytes allocated so far by every live thread, or -1 when the JVM can't tell.
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)threads;
+        if (!hotspot.isThreadAllocatedMemorySupported() || !hotspot.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        long total = 0;
+        for (long allocated : hotspot.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) {
+                total += allocated;
+            }
+        }
+        return total;
+    }
+
+    private static StringBuilder field(StringBuilder json, String name, long value) {
+        return json.append('"').append(name).append("\":").append(value);
+    }
+
+    private static StringBuilder field(StringBuilder json, String name, double value) {
+        return json.append('"').append(name).append("\":").append(String.format(Locale.US, "%.3f", value));
+    }
+}
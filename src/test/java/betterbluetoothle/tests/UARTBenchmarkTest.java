@@ -0,0 +1,94 @@
+package betterbluetoothle.tests;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTBenchmarkTest {
+
+    // Get a number from the JSON by the path of keys leading to it.
+    private static double number(String json, String... path) {
+        int index = 0;
+        for (String key : path) {
+            index = json.indexOf("\"" + key + "\":", index);
+            assertThat(index).isGreaterThanOrEqualTo(0);
+        }
+        Matcher matcher = Pattern.compile("\"[^\"]+\":(-?[0-9.]+)").matcher(json);
+        assertThat(matcher.find(index)).isTrue();
+        return Double.parseDouble(matcher.group(1));
+    }
+
+    private static UARTBenchmark smallBenchmark() {
+        UARTBenchmark benchmark = new UARTBenchmark();
+        benchmark.setConnectionInterval(1, 4);
+        benchmark.setBytes(2000);
+        benchmark.setEchoes(10);
+        return benchmark;
+    }
+
+    @Test
+    public void test_benchmark_reports_every_measurement() throws Exception {
+        String json = smallBenchmark().run();
+
+        assertThat(number(json, "tx", "bytes")).isEqualTo(2000);
+        assertThat(number(json, "tx", "bytesPerSecond")).isGreaterThan(0);
+        assertThat(number(json, "rx", "bytes")).isEqualTo(2000);
+        assertThat(number(json, "rx", "notifications")).isEqualTo(100);
+        assertThat(number(json, "rx", "binderNanosPerNotification", "p99")).isGreaterThan(0);
+        assertThat(number(json, "echo", "count")).isEqualTo(10);
+        assertThat(number(json, "echo", "rttMs", "p50")).isGreaterThan(0);
+    }
+
+    @Test
+    public void test_throughput_is_limited_by_the_link() throws Exception {
+        UARTBenchmark benchmark = smallBenchmark();
+        benchmark.setConnectionInterval(2, 2);
+        benchmark.setLoss(0.1);
+
+        String json = benchmark.run();
+
+        // At most 2 packets of 20 bytes every 2 ms.
+        assertThat(number(json, "tx", "bytesPerSecond")).isLessThan(20000 * 1.1);
+        assertThat(number(json, "rx", "bytesPerSecond")).isLessThan(20000 * 1.1);
+        assertThat(number(json, "tx", "retransmissions")).isGreaterThan(0);
+    }
+
+    @Test
+    public void test_notification_rate_limits_receive_throughput() throws Exception {
+        SimulatedUARTPeripheral peripheral = new SimulatedUARTPeripheral();
+        peripheral.setConnectionInterval(1, 4);
+        peripheral.setNotificationRate(500);
+        UART uart = peripheral.connect();
+
+        peripheral.stream(20 * 1000);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (peripheral.getNotificationsSent() < 20 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        peripheral.disconnect();
+
+        // Half a notification per 1 ms event, measured on the link's clock rather than the wall's.
+        long events = peripheral.getConnectionEvents();
+        long notifications = peripheral.getNotificationsSent();
+        assertThat(notifications).isGreaterThanOrEqualTo(20);
+        assertThat(notifications).isGreaterThanOrEqualTo(events / 2 - 1).isLessThanOrEqualTo(events / 2 + 1);
+        assertThat(uart.available()).isEqualTo((int)notifications * 20);
+    }
+
+    @Test
+    public void test_percentile_uses_nearest_rank() throws Exception {
+        long[] sorted = new long[]{ 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+
+        assertThat(UARTBenchmark.percentile(sorted, 0.5)).isEqualTo(5);
+        assertThat(UARTBenchmark.percentile(sorted, 0.99)).isEqualTo(10);
+        assertThat(UARTBenchmark.percentile(new long[0], 0.5)).isEqualTo(0);
+    }
+}
@@ -0,0 +1,151 @@
+package betterbluetoothle.tests;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.util.ArrayList;
+import java.util.List;
+
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.fest.assertions.api.Assertions.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTCallbackTest {
+
+    // Callback which counts the events it receives.
+    private static class Counter implements UART.Callback {
+        int connected;
+        int disconnected;
+        int available;
+
+        @Override
+        public void connected() {
+            connected++;
+        }
+
+        @Override
+        public void disconnected() {
+            disconnected++;
+        }
+
+        @Override
+        public void available() {
+            available++;
+        }
+    }
+
+    @Test
+    public void test_callbacks_receive_events() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = new UART(peripheral.getDevice(), peripheral.getContext(), false);
+        Counter counter = new Counter();
+        uart.register(counter);
+        uart.register(counter);
+
+        peripheral.connect(uart);
+        peripheral.send(new byte[]{ 1 });
+        peripheral.send(new byte[]{ 2 });
+        peripheral.disconnect();
+
+        assertThat(counter.connected).isEqualTo(1);
+        assertThat(counter.available).isEqualTo(2);
+        assertThat(counter.disconnected).isEqualTo(1);
+    }
+
+    @Test
+    public void test_unregistered_callback_is_not_called() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        Counter first = new Counter();
+        Counter second = new Counter();
+        uart.register(first);
+        uart.register(second);
+
+        uart.unregister(first);
+        peripheral.send(new byte[]{ 1 });
+
+        assertThat(first.available).isEqualTo(0);
+        assertThat(second.available).isEqualTo(1);
+    }
+
+    @Test
+    public void test_data_callbacks_receive_data_inline() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        Counter counter = new Counter();
+        final List<byte[]> received = new ArrayList<byte[]>();
+        UART.DataCallback callback = new UART.DataCallback() {
+            @Override
+            public void received(UART uart, ByteBuffer data) {
+                byte[] copy = new byte[data.remaining()];
+                data.get(copy);
+                received.add(copy);
+                try {
+                    data.put(0, (byte)0);
+                    fail("Data should be read-only.");
+                }
+                catch (ReadOnlyBufferException e) {
+                    // Expected.
+                }
+            }
+        };
+        uart.register(counter);
+        uart.register(callback);
+        uart.register(callback);
+
+        peripheral.send(new byte[]{ 1, 2, 3 });
+        uart.unregister(callback);
+        peripheral.send(new byte[]{ 4 });
+
+        assertThat(received).hasSize(1);
+        assertThat(received.get(0)).isEqualTo(new byte[]{ 1, 2, 3 });
+        assertThat(counter.available).isEqualTo(1);
+        assertThat(uart.readAll()).isEqualTo(new byte[]{ 4 });
+    }
+
+    @Test
+    public void test_data_callbacks_run_outside_the_receive_lock() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        final UART uart = peripheral.connect();
+        final List<byte[]> received = new ArrayList<byte[]>();
+        final boolean[] blocked = new boolean[1];
+        uart.register(new UART.DataCallback() {
+            @Override
+            public void received(UART uart, ByteBuffer data) {
+                byte[] copy = new byte[data.remaining()];
+                data.get(copy);
+                received.add(copy);
+                // Another thread can take the receive lock while the callback runs.
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        uart.getFramer();
+                    }
+                });
+                thread.start();
+                try {
+                    thread.join(5000);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                blocked[0] |= thread.isAlive();
+            }
+        });
+
+        peripheral.send(new byte[]{ 1, 2 });
+        peripheral.send(new byte[]{ 3, 4, 5 });
+        peripheral.send(new byte[]{ 6 });
+
+        assertThat(blocked[0]).isFalse();
+        assertThat(received).hasSize(3);
+        assertThat(received.get(0)).isEqualTo(new byte[]{ 1, 2 });
+        assertThat(received.get(1)).isEqualTo(new byte[]{ 3, 4, 5 });
+        assertThat(received.get(2)).isEqualTo(new byte[]{ 6 });
+    }
+}
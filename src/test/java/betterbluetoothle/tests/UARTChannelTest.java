@@ -0,0 +1,90 @@
+package betterbluetoothle.tests;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTChannelTest {
+
+    @Test
+    public void test_read_copies_into_buffer_without_blocking() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        ByteBuffer dst = ByteBuffer.allocateDirect(2);
+
+        assertThat(uart.read(dst)).isEqualTo(0);
+        peripheral.send(new byte[]{ 1, 2, 3 });
+
+        assertThat(uart.read(dst)).isEqualTo(2);
+        assertThat(dst.get(0)).isEqualTo((byte)1);
+        assertThat(dst.get(1)).isEqualTo((byte)2);
+        assertThat(uart.available()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_read_returns_end_of_stream_after_disconnect() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        ByteBuffer dst = ByteBuffer.allocate(10);
+
+        peripheral.send(new byte[]{ 1 });
+        peripheral.disconnect();
+
+        assertThat(uart.read(dst)).isEqualTo(1);
+        assertThat(uart.read(dst)).isEqualTo(-1);
+    }
+
+    @Test
+    public void test_write_sends_buffer_in_packets() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        final UART uart = peripheral.connect();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final ByteBuffer src = ByteBuffer.allocateDirect(25);
+        for (int i = 0; i < 25; ++i) {
+            src.put((byte)i);
+        }
+        src.flip();
+
+        Future<Integer> write = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return uart.write(src);
+            }
+        });
+        assertThat(peripheral.acknowledge()).isTrue();
+        assertThat(peripheral.acknowledge()).isTrue();
+
+        assertThat(write.get(1, TimeUnit.SECONDS)).isEqualTo(25);
+        assertThat(src.hasRemaining()).isFalse();
+        List<byte[]> written = peripheral.getWritten();
+        assertThat(written).hasSize(2);
+        assertThat(written.get(0)[19]).isEqualTo((byte)19);
+        assertThat(written.get(1)).isEqualTo(new byte[]{ 20, 21, 22, 23, 24 });
+        executor.shutdown();
+    }
+
+    @Test(expected = ClosedChannelException.class)
+    public void test_closed_channel_throws() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        uart.close();
+
+        assertThat(uart.isOpen()).isFalse();
+        uart.read(ByteBuffer.allocate(1));
+    }
+}
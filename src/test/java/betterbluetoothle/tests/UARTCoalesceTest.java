@@ -0,0 +1,200 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.jdeferred.DoneCallback;
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyLong;
+import static org.mockito.Mockito.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTCoalesceTest {
+
+    private ScheduledExecutorService executor;
+    private MockUARTPeripheral peripheral;
+    private UART uart;
+    private ArrayList<Integer> progress = new ArrayList<Integer>();
+
+    @Before
+    public void setup() {
+        executor = mock(ScheduledExecutorService.class);
+        peripheral = new MockUARTPeripheral();
+        uart = peripheral.connect();
+        progress.clear();
+    }
+
+    // Run the most recently scheduled task and return the delay it was scheduled with.
+    private long runScheduled(int count) {
+        ArgumentCaptor<Runnable> task = ArgumentCaptor.forClass(Runnable.class);
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(executor, times(count)).schedule(task.capture(), delay.capture(), eq(TimeUnit.MILLISECONDS));
+        task.getValue().run();
+        return delay.getValue();
+    }
+
+    @Test
+    public void test_small_writes_are_merged_after_delay() throws Exception {
+        uart.setWriteCoalescing(10, executor);
+
+        Promise<Void, Integer, Integer> first = uart.write("a");
+        Promise<Void, Integer, Integer> second = uart.write("bc");
+        Promise<Void, Integer, Integer> third = uart.write("d");
+        assertThat(peripheral.getWritten()).isEmpty();
+        assertThat(uart.getWritePending()).isEqualTo(4);
+        assertThat(runScheduled(1)).isEqualTo(10);
+        peripheral.acknowledge();
+
+        List<byte[]> written = peripheral.getWritten();
+        assertThat(written).hasSize(1);
+        assertThat(written.get(0)).isEqualTo(new byte[]{ 'a', 'b', 'c', 'd' });
+        assertThat(first.isResolved()).isTrue();
+        assertThat(second.isResolved()).isTrue();
+        assertThat(third.isResolved()).isTrue();
+    }
+
+    @Test
+    public void test_full_packets_are_sent_without_waiting() throws Exception {
+        uart.setWriteCoalescing(10, executor);
+
+        for (int i = 0; i < 5; ++i) {
+            uart.write(new byte[]{ 1, 2, 3, 4, 5 });
+        }
+
+        // 25 bytes: one full packet is sent, 5 bytes wait for the timer.
+        assertThat(peripheral.getWritten()).hasSize(1);
+        assertThat(peripheral.getWritten().get(0)).hasSize(20);
+        assertThat(uart.getWritePending()).isEqualTo(25);
+        peripheral.acknowledge();
+        runScheduled(2);
+        peripheral.acknowledge();
+        assertThat(peripheral.getWritten().get(1)).hasSize(5);
+        assertThat(uart.getPacketsSent()).isEqualTo(2);
+    }
+
+    @Test
+    public void test_write_spanning_batches_reports_progress() throws Exception {
+        uart.setWriteCoalescing(10, executor);
+
+        uart.write(new byte[15]);
+        Promise<Void, Integer, Integer> spanning = uart.write(new byte[10]).progress(new ProgressCallback<Integer>() {
+            @Override
+            public void onProgress(Integer sent) {
+                progress.add(sent);
+            }
+        });
+        peripheral.acknowledge();
+        assertThat(spanning.isPending()).isTrue();
+        uart.flush();
+        peripheral.acknowledge();
+
+        assertThat(spanning.isResolved()).isTrue();
+        assertThat(progress).containsExactly(5, 10);
+    }
+
+    @Test
+    public void test_write_immediately_flushes_pending_bytes_first() throws Exception {
+        uart.setWriteCoalescing(10, executor);
+
+        uart.write("ab");
+        uart.writeImmediately("cd".getBytes());
+        peripheral.acknowledge();
+        peripheral.acknowledge();
+
+        List<byte[]> written = peripheral.getWritten();
+        assertThat(written.get(0)).isEqualTo(new byte[]{ 'a', 'b' });
+        assertThat(written.get(1)).isEqualTo(new byte[]{ 'c', 'd' });
+    }
+
+    @Test
+    public void test_write_from_a_completion_callback_keeps_order() throws Exception {
+        uart.setWriteCoalescing(10, executor);
+
+        uart.write("ab").done(new DoneCallback<Void>() {
+            @Override
+            public void onDone(Void result) {
+                uart.writeImmediately("ef".getBytes());
+            }
+        });
+        uart.write("cd");
+        uart.flush();
+        peripheral.acknowledge();
+        peripheral.acknowledge();
+
+        List<byte[]> written = peripheral.getWritten();
+        assertThat(written).hasSize(2);
+        assertThat(written.get(0)).isEqualTo(new byte[]{ 'a', 'b', 'c', 'd' });
+        assertThat(written.get(1)).isEqualTo(new byte[]{ 'e', 'f' });
+    }
+
+    @Test
+    public void test_writes_and_acknowledgements_on_separate_threads() throws Exception {
+        uart.setWriteCoalescing(10, executor);
+        uart.setWriteWithoutResponse(true);
+        final int count = 200;
+        final List<Promise<Void, Integer, Integer>> writes = new ArrayList<Promise<Void, Integer, Integer>>();
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; ++i) {
+                    writes.add(uart.write("abcdefghijklmnopqrstuvwxyz"));
+                    uart.flush();
+                }
+            }
+        });
+        writer.start();
+        // Acknowledge on this thread, as the binder thread would, until every packet is done.
+        while (writer.isAlive() || peripheral.getOutstanding() > 0) {
+            peripheral.acknowledge(BluetoothGatt.GATT_SUCCESS, 10);
+        }
+        writer.join(10000);
+
+        assertThat(writer.isAlive()).isFalse();
+        assertThat(writes).hasSize(count);
+        for (Promise<Void, Integer, Integer> write : writes) {
+            write.waitSafely(1000);
+            assertThat(write.isResolved()).isTrue();
+        }
+    }
+
+    @Test
+    public void test_disconnect_rejects_pending_writes() throws Exception {
+        uart.setWriteCoalescing(10, executor);
+
+        Promise<Void, Integer, Integer> write = uart.write("ab");
+        peripheral.disconnect();
+
+        assertThat(write.isRejected()).isTrue();
+        assertThat(uart.getWritePending()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_disabling_coalescing_flushes() throws Exception {
+        uart.setWriteCoalescing(10, executor);
+
+        uart.write("ab");
+        uart.setWriteCoalescing(0, null);
+
+        assertThat(peripheral.getWritten()).hasSize(1);
+        verify(executor, times(1)).schedule(any(Runnable.class), anyLong(), eq(TimeUnit.MILLISECONDS));
+    }
+}
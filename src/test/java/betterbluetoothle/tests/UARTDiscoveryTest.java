@@ -0,0 +1,151 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+import betterbluetoothle.async.AsyncBluetoothLeScan;
+import betterbluetoothle.scan.ScanHub;
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTDiscoveryTest {
+
+    private BluetoothAdapter adapter;
+    private AsyncBluetoothLeScan scanner;
+    private ScanHub hub;
+    private Context context;
+
+    @Before
+    public void setup() {
+        adapter = mock(BluetoothAdapter.class);
+        scanner = new AsyncBluetoothLeScan(adapter);
+        when(adapter.startLeScan(scanner)).thenReturn(true);
+        hub = new ScanHub(scanner);
+        context = mock(Context.class);
+    }
+
+    // Advertisement data with a complete list of 128-bit service UUIDs holding the UUID.
+    private static byte[] advertise(UUID uuid) {
+        byte[] bytes = new byte[18];
+        bytes[0] = 17;
+        bytes[1] = 0x07;
+        long lsb = uuid.getLeastSignificantBits();
+        long msb = uuid.getMostSignificantBits();
+        for (int i = 0; i < 8; ++i) {
+            bytes[2 + i] = (byte)(lsb >>> (8 * i));
+            bytes[10 + i] = (byte)(msb >>> (8 * i));
+        }
+        return bytes;
+    }
+
+    private static ProgressCallback<UART> collect(final ArrayList<UART> found) {
+        return new ProgressCallback<UART>() {
+            @Override
+            public void onProgress(UART progress) {
+                found.add(progress);
+            }
+        };
+    }
+
+    @Test
+    public void test_every_device_is_reported_once() throws Exception {
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+        BluetoothDevice d2 = mock(BluetoothDevice.class);
+        ArrayList<UART> found = new ArrayList<UART>();
+
+        UART.Discovery discovery = UART.discover(hub, context, false, false);
+        discovery.promise().progress(collect(found));
+        scanner.onLeScan(d1, -50, advertise(UART.UART_UUID));
+        scanner.onLeScan(d1, -40, advertise(UART.UART_UUID));
+        scanner.onLeScan(d2, -60, advertise(UART.UART_UUID));
+        scanner.onLeScan(mock(BluetoothDevice.class), -60, advertise(UUID.randomUUID()));
+
+        assertThat(found).hasSize(2);
+        assertThat(found.get(0).getDevice()).isSameAs(d1);
+        assertThat(found.get(1).getDevice()).isSameAs(d2);
+        assertThat(discovery.getFound()).isEqualTo(2);
+        verify(d1, never()).connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class));
+    }
+
+    @Test
+    public void test_parallel_discoveries_have_separate_state() throws Exception {
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+        ArrayList<UART> foundA = new ArrayList<UART>();
+        ArrayList<UART> foundB = new ArrayList<UART>();
+
+        UART.Discovery a = UART.discover(hub, context, false, false);
+        UART.Discovery b = UART.discover(hub, context, false, false);
+        a.promise().progress(collect(foundA));
+        b.promise().progress(collect(foundB));
+        scanner.onLeScan(d1, -50, advertise(UART.UART_UUID));
+        a.cancel();
+        scanner.onLeScan(mock(BluetoothDevice.class), -50, advertise(UART.UART_UUID));
+
+        assertThat(foundA).hasSize(1);
+        assertThat(foundB).hasSize(2);
+        assertThat(foundA.get(0)).isNotSameAs(foundB.get(0));
+        assertThat(a.promise().isResolved()).isTrue();
+        assertThat(b.promise().isPending()).isTrue();
+        assertThat(hub.getSubscriberCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_found_devices_connect_during_scan() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        ArrayList<UART> found = new ArrayList<UART>();
+
+        UART.Discovery discovery = UART.discover(hub, context, false, true);
+        discovery.promise().progress(collect(found));
+        scanner.onLeScan(peripheral.getDevice(), -50, advertise(UART.UART_UUID));
+        peripheral.completeConnect();
+        peripheral.send(new byte[]{ 7 });
+
+        assertThat(found).hasSize(1);
+        assertThat(found.get(0).available()).isEqualTo(1);
+        assertThat(discovery.promise().isPending()).isTrue();
+    }
+
+    @Test
+    public void test_find_first_stops_after_one_device() throws Exception {
+        BluetoothAdapter findAdapter = mock(BluetoothAdapter.class);
+        final BluetoothAdapter.LeScanCallback[] callback = new BluetoothAdapter.LeScanCallback[1];
+        when(findAdapter.startLeScan(any(BluetoothAdapter.LeScanCallback.class))).thenAnswer(new Answer<Boolean>() {
+            @Override
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                callback[0] = (BluetoothAdapter.LeScanCallback)invocation.getArguments()[0];
+                return true;
+            }
+        });
+        BluetoothDevice d1 = mock(BluetoothDevice.class);
+
+        Promise<UART, Void, Void> first = UART.findFirst(findAdapter, context, false);
+        callback[0].onLeScan(d1, -50, advertise(UART.UART_UUID));
+        callback[0].onLeScan(mock(BluetoothDevice.class), -50, advertise(UART.UART_UUID));
+
+        assertThat(first.isResolved()).isTrue();
+        assertThat(ScanHub.forAdapter(findAdapter).getSubscriberCount()).isEqualTo(0);
+        verify(findAdapter).stopLeScan(callback[0]);
+    }
+}
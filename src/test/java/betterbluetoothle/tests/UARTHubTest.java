@@ -0,0 +1,199 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import betterbluetoothle.services.UART;
+import betterbluetoothle.services.UARTHub;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.anyBoolean;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTHubTest {
+
+    // Listener which records the hub's events.
+    private static class Events implements UARTHub.Listener {
+        final List<UART> connected = new ArrayList<UART>();
+        final List<UART> disconnected = new ArrayList<UART>();
+        final List<UART> receivedFrom = new ArrayList<UART>();
+        final List<byte[]> received = new ArrayList<byte[]>();
+
+        @Override
+        public void connected(UART uart) {
+            connected.add(uart);
+        }
+
+        @Override
+        public void disconnected(UART uart) {
+            disconnected.add(uart);
+        }
+
+        @Override
+        public void received(UART uart, byte[] data) {
+            receivedFrom.add(uart);
+            received.add(data);
+        }
+    }
+
+    private static MockUARTPeripheral[] peripherals(int count) {
+        MockUARTPeripheral[] peripherals = new MockUARTPeripheral[count];
+        for (int i = 0; i < count; ++i) {
+            peripherals[i] = new MockUARTPeripheral("00:00:00:00:00:0" + i);
+        }
+        return peripherals;
+    }
+
+    @Test
+    public void test_connection_setup_is_limited() throws Exception {
+        MockUARTPeripheral[] peripherals = peripherals(3);
+        Events events = new Events();
+        UARTHub hub = new UARTHub(peripherals[0].getContext(), events, MoreExecutors.sameThreadExecutor(), 2);
+
+        for (MockUARTPeripheral peripheral : peripherals) {
+            hub.add(peripheral.getDevice());
+        }
+        assertThat(hub.size()).isEqualTo(3);
+        assertThat(hub.getConnecting()).isEqualTo(2);
+        assertThat(hub.getWaiting()).isEqualTo(1);
+        peripherals[0].completeConnect();
+
+        assertThat(hub.getConnecting()).isEqualTo(2);
+        assertThat(hub.getWaiting()).isEqualTo(0);
+        assertThat(events.connected).containsExactly(hub.getUART("00:00:00:00:00:00"));
+        peripherals[1].completeConnect();
+        peripherals[2].completeConnect();
+        assertThat(hub.getConnecting()).isEqualTo(0);
+        assertThat(events.connected).hasSize(3);
+    }
+
+    @Test
+    public void test_adding_a_device_twice_returns_its_uart() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UARTHub hub = new UARTHub(peripheral.getContext(), new Events());
+
+        UART uart = hub.add(peripheral.getDevice());
+
+        assertThat(hub.add(peripheral.getDevice())).isSameAs(uart);
+        assertThat(hub.getUARTs()).containsExactly(uart);
+    }
+
+    @Test
+    public void test_received_data_is_merged_and_tagged() throws Exception {
+        MockUARTPeripheral[] peripherals = peripherals(2);
+        Events events = new Events();
+        UARTHub hub = new UARTHub(peripherals[0].getContext(), events);
+        UART first = hub.add(peripherals[0].getDevice());
+        UART second = hub.add(peripherals[1].getDevice());
+        peripherals[0].completeConnect();
+        peripherals[1].completeConnect();
+
+        peripherals[1].send(new byte[]{ 1, 2 });
+        peripherals[0].send(new byte[]{ 3 });
+
+        assertThat(events.receivedFrom).containsExactly(second, first);
+        assertThat(events.received.get(0)).isEqualTo(new byte[]{ 1, 2 });
+        assertThat(events.received.get(1)).isEqualTo(new byte[]{ 3 });
+        assertThat(first.available()).isEqualTo(0);
+        assertThat(hub.getReceiveBytesPerSecond()).isGreaterThan(0);
+    }
+
+    @Test
+    public void test_failed_setup_frees_slot_and_drops_device() throws Exception {
+        MockUARTPeripheral[] peripherals = peripherals(2);
+        Events events = new Events();
+        UARTHub hub = new UARTHub(peripherals[0].getContext(), events, MoreExecutors.sameThreadExecutor(), 1);
+        hub.add(peripherals[0].getDevice());
+        hub.add(peripherals[1].getDevice());
+
+        peripherals[0].failConnect(BluetoothGatt.GATT_FAILURE);
+
+        assertThat(hub.getUART("00:00:00:00:00:00")).isNull();
+        assertThat(hub.getConnecting()).isEqualTo(1);
+        assertThat(hub.getWaiting()).isEqualTo(0);
+        assertThat(events.connected).isEmpty();
+    }
+
+    @Test
+    public void test_disconnect_is_reported_and_remove_disconnects() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        Events events = new Events();
+        UARTHub hub = new UARTHub(peripheral.getContext(), events);
+        UART uart = hub.add(peripheral.getDevice());
+        peripheral.completeConnect();
+
+        peripheral.disconnect();
+        assertThat(events.disconnected).containsExactly(uart);
+        assertThat(hub.size()).isEqualTo(1);
+        hub.remove(uart);
+
+        assertThat(hub.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_close_drops_waiting_devices() throws Exception {
+        MockUARTPeripheral[] peripherals = peripherals(3);
+        Events events = new Events();
+        UARTHub hub = new UARTHub(peripherals[0].getContext(), events, MoreExecutors.sameThreadExecutor(), 1);
+
+        for (MockUARTPeripheral peripheral : peripherals) {
+            hub.add(peripheral.getDevice());
+        }
+        assertThat(hub.getWaiting()).isEqualTo(2);
+        hub.remove(hub.getUART("00:00:00:00:00:02"));
+        assertThat(hub.getWaiting()).isEqualTo(1);
+        hub.close();
+
+        assertThat(hub.size()).isEqualTo(0);
+        assertThat(hub.getWaiting()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_dropped_devices_release_their_gatt() throws Exception {
+        MockUARTPeripheral[] peripherals = peripherals(3);
+        UARTHub hub = new UARTHub(peripherals[0].getContext(), new Events(), MoreExecutors.sameThreadExecutor(), 3);
+        for (MockUARTPeripheral peripheral : peripherals) {
+            hub.add(peripheral.getDevice());
+        }
+        peripherals[1].completeConnect();
+        peripherals[2].completeConnect();
+
+        peripherals[0].failConnect(BluetoothGatt.GATT_FAILURE);
+        verify(peripherals[0].getGatt()).close();
+        hub.remove(hub.getUART("00:00:00:00:00:01"));
+        verify(peripherals[1].getGatt()).close();
+        verify(peripherals[2].getGatt(), never()).close();
+        hub.close();
+
+        verify(peripherals[2].getGatt()).close();
+    }
+
+    @Test
+    public void test_device_without_a_gatt_is_dropped() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        when(peripheral.getDevice().connectGatt(any(Context.class), anyBoolean(), any(BluetoothGattCallback.class))).thenReturn(null);
+        UARTHub hub = new UARTHub(peripheral.getContext(), new Events(), MoreExecutors.sameThreadExecutor(), 1);
+        UART uart = hub.add(peripheral.getDevice());
+
+        assertThat(hub.getUART("00:00:00:00:00:01")).isNull();
+        assertThat(hub.getConnecting()).isEqualTo(0);
+        hub.remove(uart);
+        hub.close();
+
+        assertThat(hub.size()).isEqualTo(0);
+    }
+}
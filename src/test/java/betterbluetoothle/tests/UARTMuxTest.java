@@ -0,0 +1,228 @@
+package betterbluetoothle.tests;
+
+import org.jdeferred.Promise;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import betterbluetoothle.io.CobsFramer;
+import betterbluetoothle.io.Framer;
+import betterbluetoothle.services.UART;
+import betterbluetoothle.services.UARTMux;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTMuxTest {
+
+    // Decodes frames written by the mux.
+    private static class Frames implements Framer.Listener {
+        final CobsFramer framer = new CobsFramer();
+        final List<byte[]> frames = new ArrayList<byte[]>();
+
+        @Override
+        public void onFrame(byte[] frame, int offset, int length) {
+            frames.add(Arrays.copyOfRange(frame, offset, offset + length));
+        }
+
+        List<byte[]> decode(List<byte[]> packets) {
+            frames.clear();
+            framer.reset();
+            for (byte[] packet : packets) {
+                framer.feed(packet, this);
+            }
+            return frames;
+        }
+    }
+
+    private static byte[] frame(int channel, byte[] data) {
+        byte[] message = new byte[data.length + 1];
+        message[0] = (byte)channel;
+        System.arraycopy(data, 0, message, 1, data.length);
+        return new CobsFramer().encode(message);
+    }
+
+    private static int[] channelCounts(List<byte[]> frames) {
+        int[] counts = new int[UARTMux.MAX_CHANNELS];
+        for (byte[] frame : frames) {
+            counts[frame[0] & 0xFF]++;
+        }
+        return counts;
+    }
+
+    @Test
+    public void test_received_frames_are_sorted_into_channels() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        UARTMux mux = new UARTMux(uart);
+        UARTMux.Channel control = mux.open(1, 1);
+        UARTMux.Channel logs = mux.open(2, 0);
+
+        peripheral.send(frame(2, new byte[]{ 'l', 'o' }));
+        peripheral.send(frame(1, new byte[]{ 0, 1 }));
+        peripheral.send(frame(2, new byte[]{ 'g' }));
+        peripheral.send(frame(9, new byte[]{ 5 }));
+
+        assertThat(control.readAll()).isEqualTo(new byte[]{ 0, 1 });
+        assertThat(logs.available()).isEqualTo(3);
+        assertThat(logs.readAll()).isEqualTo(new byte[]{ 'l', 'o', 'g' });
+        assertThat(mux.getFramesReceived()).isEqualTo(3);
+        assertThat(mux.getUnknownFrames()).isEqualTo(1);
+        assertThat(uart.available()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_write_is_fragmented_and_resolves_when_sent() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UARTMux mux = new UARTMux(peripheral.connect());
+        UARTMux.Channel channel = mux.open(3, 0);
+        byte[] data = new byte[40];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte)i;
+        }
+
+        Promise<Void, Void, Void> write = channel.write(data);
+        assertThat(peripheral.getWritten()).hasSize(1);
+        peripheral.acknowledge();
+        peripheral.acknowledge();
+        assertThat(write.isPending()).isTrue();
+        peripheral.acknowledge();
+
+        assertThat(write.isResolved()).isTrue();
+        List<byte[]> frames = new Frames().decode(peripheral.getWritten());
+        assertThat(frames).hasSize(3);
+        ByteArrayBuilder received = new ByteArrayBuilder();
+        for (byte[] frame : frames) {
+            assertThat(frame[0]).isEqualTo((byte)3);
+            assertThat(frame.length).isLessThanOrEqualTo(UARTMux.DEFAULT_FRAGMENT_SIZE + 1);
+            received.append(frame, 1, frame.length - 1);
+        }
+        assertThat(received.toByteArray()).isEqualTo(data);
+        for (byte[] packet : peripheral.getWritten()) {
+            assertThat(packet.length).isLessThanOrEqualTo(20);
+        }
+    }
+
+    @Test
+    public void test_higher_priority_channel_goes_before_queued_data() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UARTMux mux = new UARTMux(peripheral.connect());
+        UARTMux.Channel control = mux.open(1, 10);
+        UARTMux.Channel logs = mux.open(2, 0);
+
+        logs.write(new byte[1000]);
+        peripheral.acknowledge();
+        Promise<Void, Void, Void> command = control.write(new byte[]{ 42 });
+        peripheral.acknowledge();
+        peripheral.acknowledge();
+
+        List<byte[]> frames = new Frames().decode(peripheral.getWritten());
+        assertThat(command.isResolved()).isTrue();
+        assertThat(frames.get(0)[0]).isEqualTo((byte)2);
+        assertThat(frames.get(1)[0]).isEqualTo((byte)2);
+        assertThat(frames.get(2)).isEqualTo(new byte[]{ 1, 42 });
+        assertThat(logs.getQueued()).isGreaterThan(900);
+    }
+
+    @Test
+    public void test_equal_priority_channels_share_by_weight() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UARTMux mux = new UARTMux(peripheral.connect());
+        UARTMux.Channel telemetry = mux.open(1, 0, 3);
+        UARTMux.Channel logs = mux.open(2, 0, 1);
+
+        telemetry.write(new byte[2000]);
+        logs.write(new byte[2000]);
+        for (int i = 0; i < 40; ++i) {
+            peripheral.acknowledge();
+        }
+
+        int[] counts = channelCounts(new Frames().decode(peripheral.getWritten()));
+        assertThat(counts[1]).isGreaterThanOrEqualTo(29).isLessThanOrEqualTo(32);
+        assertThat(counts[2]).isGreaterThanOrEqualTo(9).isLessThanOrEqualTo(12);
+    }
+
+    @Test
+    public void test_disconnect_fails_queued_writes_and_ends_streams() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UARTMux mux = new UARTMux(peripheral.connect());
+        UARTMux.Channel channel = mux.open(1, 0);
+        InputStream in = channel.getInputStream();
+
+        peripheral.send(frame(1, new byte[]{ 7 }));
+        Promise<Void, Void, Void> write = channel.write(new byte[100]);
+        peripheral.disconnect();
+
+        assertThat(write.isRejected()).isTrue();
+        assertThat(channel.getQueued()).isEqualTo(0);
+        assertThat(in.read()).isEqualTo(7);
+        assertThat(in.read()).isEqualTo(-1);
+        assertThat(channel.write(new byte[]{ 1 }).isRejected()).isTrue();
+    }
+
+    @Test
+    public void test_channels_resume_after_reconnecting() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        when(peripheral.getGatt().connect()).thenReturn(true);
+        UART uart = peripheral.connect();
+        UARTMux mux = new UARTMux(uart);
+        UARTMux.Channel channel = mux.open(1, 0);
+
+        // The disconnect cuts a frame short.
+        peripheral.send(new byte[]{ 3, 1 });
+        peripheral.disconnect();
+        peripheral.connect(uart);
+        peripheral.send(frame(1, new byte[]{ 7 }));
+        Promise<Void, Void, Void> write = channel.write(new byte[]{ 1 });
+        peripheral.acknowledge();
+
+        assertThat(channel.readAll()).isEqualTo(new byte[]{ 7 });
+        assertThat(write.isResolved()).isTrue();
+    }
+
+    @Test
+    public void test_close_detaches_from_the_uart() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        UARTMux mux = new UARTMux(uart);
+        UARTMux.Channel channel = mux.open(1, 0);
+        Promise<Void, Void, Void> write = channel.write(new byte[100]);
+
+        mux.close();
+        peripheral.send(frame(1, new byte[]{ 7 }));
+
+        assertThat(write.isRejected()).isTrue();
+        assertThat(uart.getFramer()).isNull();
+        assertThat(channel.available()).isEqualTo(0);
+        assertThat(uart.available()).isEqualTo(frame(1, new byte[]{ 7 }).length);
+        assertThat(channel.write(new byte[]{ 1 }).isRejected()).isTrue();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void test_channel_can_only_be_opened_once() throws Exception {
+        UARTMux mux = new UARTMux(new MockUARTPeripheral().connect());
+        mux.open(1, 0);
+        mux.open(1, 1);
+    }
+
+    // Minimal growable byte array for collecting frame payloads.
+    private static class ByteArrayBuilder {
+        private byte[] data = new byte[0];
+
+        void append(byte[] bytes, int offset, int length) {
+            byte[] grown = Arrays.copyOf(data, data.length + length);
+            System.arraycopy(bytes, offset, grown, data.length, length);
+            data = grown;
+        }
+
+        byte[] toByteArray() {
+            return data;
+        }
+    }
+}
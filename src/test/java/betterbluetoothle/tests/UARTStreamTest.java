@@ -0,0 +1,159 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothGatt;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTStreamTest {
+
+    @Test
+    public void test_read_returns_buffered_data() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        byte[] data = new byte[10];
+
+        peripheral.send(new byte[]{ 1, 2, 3 });
+        InputStream in = uart.getInputStream();
+
+        assertThat(in.available()).isEqualTo(3);
+        assertThat(in.read()).isEqualTo(1);
+        assertThat(in.read(data, 0, 10)).isEqualTo(2);
+        assertThat(data[0]).isEqualTo((byte)2);
+        assertThat(data[1]).isEqualTo((byte)3);
+    }
+
+    @Test
+    public void test_read_blocks_until_data_is_received() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        final UART uart = peripheral.connect();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        Future<Integer> read = executor.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                return uart.getInputStream().read();
+            }
+        });
+        Thread.sleep(50);
+        assertThat(read.isDone()).isFalse();
+        peripheral.send(new byte[]{ 42 });
+
+        assertThat(read.get(1, TimeUnit.SECONDS)).isEqualTo(42);
+        executor.shutdown();
+    }
+
+    @Test
+    public void test_read_returns_end_of_stream_after_disconnect() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        InputStream in = uart.getInputStream();
+
+        peripheral.send(new byte[]{ 7 });
+        peripheral.disconnect();
+
+        assertThat(in.read()).isEqualTo(7);
+        assertThat(in.read()).isEqualTo(-1);
+    }
+
+    @Test(expected = InterruptedIOException.class)
+    public void test_read_timeout() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        uart.setReadTimeout(20);
+        uart.getInputStream().read();
+    }
+
+    @Test(expected = IOException.class)
+    public void test_read_from_closed_stream_throws() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        InputStream in = uart.getInputStream();
+
+        in.close();
+        in.read();
+    }
+
+    @Test
+    public void test_write_is_split_into_acknowledged_packets() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        final UART uart = peripheral.connect();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        final byte[] data = new byte[45];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte)i;
+        }
+
+        Future<Void> write = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                uart.getOutputStream().write(data);
+                return null;
+            }
+        });
+        assertThat(peripheral.acknowledge()).isTrue();
+        assertThat(peripheral.acknowledge()).isTrue();
+        assertThat(peripheral.acknowledge()).isTrue();
+        write.get(1, TimeUnit.SECONDS);
+
+        List<byte[]> written = peripheral.getWritten();
+        assertThat(written).hasSize(3);
+        assertThat(written.get(0)).hasSize(20);
+        assertThat(written.get(1)).hasSize(20);
+        assertThat(written.get(2)).isEqualTo(new byte[]{ 40, 41, 42, 43, 44 });
+        executor.shutdown();
+    }
+
+    @Test
+    public void test_write_failure_throws() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        final UART uart = peripheral.connect();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+
+        Future<Void> write = executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                uart.getOutputStream().write(new byte[]{ 1, 2, 3 });
+                return null;
+            }
+        });
+        assertThat(peripheral.acknowledge(BluetoothGatt.GATT_FAILURE, 1000)).isTrue();
+
+        try {
+            write.get(1, TimeUnit.SECONDS);
+            throw new AssertionError("Expected write to fail.");
+        }
+        catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IOException.class);
+        }
+        executor.shutdown();
+    }
+
+    @Test(expected = IOException.class)
+    public void test_write_when_not_connected_throws() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = new UART(peripheral.getDevice(), peripheral.getContext(), false);
+        OutputStream out = uart.getOutputStream();
+
+        out.write(1);
+    }
+}
@@ -0,0 +1,224 @@
+package betterbluetoothle.tests;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import org.jdeferred.FailCallback;
+import org.jdeferred.ProgressCallback;
+import org.jdeferred.Promise;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import betterbluetoothle.services.UART;
+
+import static org.fest.assertions.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+public class UARTTransmitTest {
+
+    private ArrayList<Integer> progress = new ArrayList<Integer>();
+    private Integer failStatus;
+
+    @Before
+    public void setup() {
+        progress.clear();
+        failStatus = null;
+    }
+
+    @Test
+    public void test_write_is_split_into_packets_and_reports_progress() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        Promise<Void, Integer, Integer> write = uart.write(new byte[50]).progress(new ProgressCallback<Integer>() {
+            @Override
+            public void onProgress(Integer sent) {
+                progress.add(sent);
+            }
+        });
+        // Only one packet is in flight at a time.
+        assertThat(peripheral.getWritten()).hasSize(1);
+        assertThat(uart.getWritePending()).isEqualTo(50);
+        peripheral.acknowledge();
+        peripheral.acknowledge();
+        assertThat(write.isPending()).isTrue();
+        peripheral.acknowledge();
+
+        assertThat(write.isResolved()).isTrue();
+        assertThat(progress).containsExactly(20, 40, 50);
+        assertThat(uart.getBytesSent()).isEqualTo(50);
+        assertThat(uart.getPacketsSent()).isEqualTo(3);
+        assertThat(uart.getWritePending()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_queued_writes_are_sent_in_order() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        Promise<Void, Integer, Integer> first = uart.write(new byte[]{ 1, 2 });
+        Promise<Void, Integer, Integer> second = uart.write("hi");
+        peripheral.acknowledge();
+        assertThat(first.isResolved()).isTrue();
+        assertThat(second.isPending()).isTrue();
+        peripheral.acknowledge();
+
+        List<byte[]> written = peripheral.getWritten();
+        assertThat(second.isResolved()).isTrue();
+        assertThat(written).hasSize(2);
+        assertThat(written.get(0)).isEqualTo(new byte[]{ 1, 2 });
+        assertThat(written.get(1)).isEqualTo(new byte[]{ 'h', 'i' });
+    }
+
+    @Test
+    public void test_packet_size_can_be_changed() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        uart.setPacketSize(100);
+        uart.write(new byte[150]);
+        peripheral.acknowledge();
+        peripheral.acknowledge();
+
+        List<byte[]> written = peripheral.getWritten();
+        assertThat(written.get(0)).hasSize(100);
+        assertThat(written.get(1)).hasSize(50);
+    }
+
+    @Test
+    public void test_failed_packet_rejects_write_and_next_write_continues() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        Promise<Void, Integer, Integer> first = uart.write(new byte[30]).fail(new FailCallback<Integer>() {
+            @Override
+            public void onFail(Integer status) {
+                failStatus = status;
+            }
+        });
+        Promise<Void, Integer, Integer> second = uart.write(new byte[]{ 9 });
+        peripheral.acknowledge(BluetoothGatt.GATT_WRITE_NOT_PERMITTED, 1000);
+        peripheral.acknowledge();
+
+        assertThat(first.isRejected()).isTrue();
+        assertThat(failStatus).isEqualTo(BluetoothGatt.GATT_WRITE_NOT_PERMITTED);
+        assertThat(second.isResolved()).isTrue();
+        assertThat(peripheral.getWritten().get(1)).isEqualTo(new byte[]{ 9 });
+    }
+
+    @Test
+    public void test_disconnect_rejects_pending_writes() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        Promise<Void, Integer, Integer> first = uart.write(new byte[30]);
+        Promise<Void, Integer, Integer> second = uart.write(new byte[30]);
+        peripheral.disconnect();
+
+        assertThat(first.isRejected()).isTrue();
+        assertThat(second.isRejected()).isTrue();
+        assertThat(uart.write(new byte[1]).isRejected()).isTrue();
+    }
+
+    @Test
+    public void test_write_before_connect_is_rejected() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = new UART(peripheral.getDevice(), peripheral.getContext(), false);
+
+        assertThat(uart.write(new byte[]{ 1 }).isRejected()).isTrue();
+    }
+
+    @Test
+    public void test_write_without_response_keeps_several_packets_in_flight() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        uart.setWriteWithoutResponse(true, 4);
+        assertThat(peripheral.getWriteType()).isEqualTo(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        Promise<Void, Integer, Integer> write = uart.write(new byte[200]);
+        // The window starts at one packet and grows as packets complete.
+        assertThat(peripheral.getOutstanding()).isEqualTo(1);
+        peripheral.acknowledge();
+        assertThat(peripheral.getOutstanding()).isEqualTo(2);
+        while (peripheral.getOutstanding() > 0) {
+            assertThat(peripheral.getOutstanding()).isLessThanOrEqualTo(4);
+            peripheral.acknowledge();
+        }
+
+        assertThat(write.isResolved()).isTrue();
+        assertThat(uart.getCredits()).isEqualTo(4);
+        assertThat(peripheral.getWritten()).hasSize(10);
+        assertThat(uart.getTransmitMeter().getTotal()).isEqualTo(200);
+    }
+
+    @Test
+    public void test_reconnecting_starts_a_new_window() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        when(peripheral.getGatt().connect()).thenReturn(true);
+        UART uart = peripheral.connect();
+        uart.setWriteWithoutResponse(true, 4);
+        Promise<Void, Integer, Integer> first = uart.write(new byte[200]);
+        for (int i = 0; i < 3; ++i) {
+            peripheral.acknowledge();
+        }
+        assertThat(uart.getCredits()).isEqualTo(3);
+
+        peripheral.disconnect();
+        peripheral.connect(uart);
+        int written = peripheral.getWritten().size();
+        Promise<Void, Integer, Integer> second = uart.write(new byte[40]);
+
+        assertThat(first.isRejected()).isTrue();
+        assertThat(uart.getCredits()).isEqualTo(1);
+        assertThat(peripheral.getWritten()).hasSize(written + 1);
+        assertThat(second.isPending()).isTrue();
+    }
+
+    @Test
+    public void test_refused_writes_shrink_the_window_and_are_retried() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+        byte[] data = new byte[400];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte)i;
+        }
+
+        peripheral.setBufferSize(3);
+        uart.setWriteWithoutResponse(true, 8);
+        Promise<Void, Integer, Integer> write = uart.write(data);
+        int maxOutstanding = 0;
+        while (peripheral.getOutstanding() > 0) {
+            maxOutstanding = Math.max(maxOutstanding, peripheral.getOutstanding());
+            peripheral.acknowledge();
+        }
+
+        assertThat(write.isResolved()).isTrue();
+        assertThat(maxOutstanding).isEqualTo(3);
+        assertThat(uart.getCredits()).isLessThan(8);
+        // Every byte arrives once and in order.
+        List<byte[]> written = peripheral.getWritten();
+        assertThat(written).hasSize(20);
+        for (int i = 0; i < written.size(); ++i) {
+            assertThat(written.get(i)[0]).isEqualTo((byte)(i * 20));
+        }
+    }
+
+    @Test
+    public void test_disabling_write_without_response_restores_acknowledged_writes() throws Exception {
+        MockUARTPeripheral peripheral = new MockUARTPeripheral();
+        UART uart = peripheral.connect();
+
+        uart.setWriteWithoutResponse(true);
+        uart.setWriteWithoutResponse(false);
+        uart.write(new byte[100]);
+
+        assertThat(peripheral.getWriteType()).isEqualTo(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        assertThat(peripheral.getOutstanding()).isEqualTo(1);
+    }
+}